@@ -0,0 +1,117 @@
+package com.github.stkent.callingcard;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.nearby.messages.Message;
+import com.google.android.gms.nearby.messages.MessageListener;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Handles one background delivery of Nearby messages: decodes the cards, merges them into the
+ * collected card store with a single write, and records the encounters.
+ */
+final class BackgroundCardCollector {
+
+    // Bounds for the collected card store, which keeps cards until they are shown and dismissed.
+    static final int MAX_COLLECTED_CARDS = 1000;
+    static final long MAX_COLLECTED_CARD_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String TAG = "BackgroundCardCollector";
+
+    @NonNull
+    private final Gson gson;
+
+    @NonNull
+    private final RosterSnapshotStore collectedCardStore;
+
+    @NonNull
+    private final EncounterLog encounterLog;
+
+    @NonNull
+    private final BackgroundDiscovery backgroundDiscovery;
+
+    BackgroundCardCollector(
+            @NonNull final Gson gson,
+            @NonNull final RosterSnapshotStore collectedCardStore,
+            @NonNull final EncounterLog encounterLog,
+            @NonNull final BackgroundDiscovery backgroundDiscovery) {
+
+        this.gson = gson;
+        this.collectedCardStore = collectedCardStore;
+        this.encounterLog = encounterLog;
+        this.backgroundDiscovery = backgroundDiscovery;
+    }
+
+    /**
+     * @param onFinished run on a background thread once the delivered cards have been persisted.
+     */
+    void collect(@NonNull final CardDeliverySource source, @NonNull final Runnable onFinished) {
+        final long decodeStartCpuTimeMs = SystemClock.currentThreadTimeMillis();
+        final long now = System.currentTimeMillis();
+        final Map<User, Long> foundUsers = new HashMap<>();
+
+        source.deliverTo(new MessageListener() {
+            @Override
+            public void onFound(final Message message) {
+                final User user = decode(message);
+
+                if (user != null) {
+                    foundUsers.put(user, now);
+                    encounterLog.append(EncounterLog.Type.FOUND, user.getId());
+                }
+            }
+
+            @Override
+            public void onLost(final Message message) {
+                final User user = decode(message);
+
+                if (user != null) {
+                    encounterLog.append(EncounterLog.Type.LOST, user.getId());
+                }
+            }
+        });
+
+        final long decodeCpuTimeMs = SystemClock.currentThreadTimeMillis() - decodeStartCpuTimeMs;
+
+        if (foundUsers.isEmpty()) {
+            encounterLog.flush();
+            backgroundDiscovery.recordDelivery(0, decodeCpuTimeMs);
+            onFinished.run();
+            return;
+        }
+
+        collectedCardStore.merge(foundUsers, new RosterSnapshotStore.MergeCallback() {
+            @Override
+            public void onMergeFinished(final long mergeCpuTimeMs) {
+                encounterLog.flush();
+                backgroundDiscovery.recordDelivery(
+                        foundUsers.size(),
+                        decodeCpuTimeMs + mergeCpuTimeMs);
+
+                Log.d(TAG, "Collected " + foundUsers.size() + " cards in the background ("
+                        + decodeCpuTimeMs + " ms CPU decoding, "
+                        + mergeCpuTimeMs + " ms CPU persisting).");
+
+                onFinished.run();
+            }
+        });
+    }
+
+    @Nullable
+    private User decode(@NonNull final Message message) {
+        try {
+            return CardMessages.decode(gson, message);
+        } catch (final JsonParseException e) {
+            Log.e(TAG, "Invalid message delivered in the background.", e);
+            return null;
+        }
+    }
+
+}
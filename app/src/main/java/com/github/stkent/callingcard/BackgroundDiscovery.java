@@ -0,0 +1,128 @@
+package com.github.stkent.callingcard;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Persistent state of background discovery: whether the user has enabled it, plus counters that
+ * describe the cost of each background delivery (wakeups and CPU time).
+ */
+final class BackgroundDiscovery {
+
+    static final String PREFS_NAME = "background_discovery";
+
+    private static final String ENABLED_KEY = "ENABLED";
+    private static final String TOTAL_WAKEUP_COUNT_KEY = "TOTAL_WAKEUP_COUNT";
+    private static final String TOTAL_CARD_COUNT_KEY = "TOTAL_CARD_COUNT";
+    private static final String TOTAL_CPU_TIME_MS_KEY = "TOTAL_CPU_TIME_MS";
+    private static final String UNREPORTED_WAKEUP_COUNT_KEY = "UNREPORTED_WAKEUP_COUNT";
+    private static final String UNREPORTED_CARD_COUNT_KEY = "UNREPORTED_CARD_COUNT";
+    private static final String UNREPORTED_CPU_TIME_MS_KEY = "UNREPORTED_CPU_TIME_MS";
+
+    private static final int PENDING_INTENT_REQUEST_CODE = 0;
+
+    /**
+     * @return the PendingIntent that background subscriptions deliver to. Equal PendingIntents are
+     *         returned for every call, so the same value can later be used to unsubscribe.
+     */
+    @NonNull
+    static PendingIntent getPendingIntent(@NonNull final Context context) {
+        return PendingIntent.getBroadcast(
+                context,
+                PENDING_INTENT_REQUEST_CODE,
+                new Intent(context, BackgroundDiscoveryReceiver.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    @NonNull
+    private final SharedPreferences sharedPreferences;
+
+    BackgroundDiscovery(@NonNull final SharedPreferences sharedPreferences) {
+        this.sharedPreferences = sharedPreferences;
+    }
+
+    boolean isEnabled() {
+        return sharedPreferences.getBoolean(ENABLED_KEY, false);
+    }
+
+    void setEnabled(final boolean enabled) {
+        sharedPreferences
+                .edit()
+                .putBoolean(ENABLED_KEY, enabled)
+                .apply();
+    }
+
+    /**
+     * Records the cost of one background wakeup. Called on a background thread.
+     */
+    synchronized void recordDelivery(final int cardCount, final long cpuTimeMs) {
+        final SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        addToCounter(editor, TOTAL_WAKEUP_COUNT_KEY, 1);
+        addToCounter(editor, TOTAL_CARD_COUNT_KEY, cardCount);
+        addToCounter(editor, TOTAL_CPU_TIME_MS_KEY, cpuTimeMs);
+        addToCounter(editor, UNREPORTED_WAKEUP_COUNT_KEY, 1);
+        addToCounter(editor, UNREPORTED_CARD_COUNT_KEY, cardCount);
+        addToCounter(editor, UNREPORTED_CPU_TIME_MS_KEY, cpuTimeMs);
+
+        // Commit synchronously; the process may be killed as soon as the wakeup finishes.
+        editor.commit();
+    }
+
+    /**
+     * @return a summary of background deliveries since the last call, or null if there were none.
+     */
+    @Nullable
+    synchronized String consumeUnreportedSummary() {
+        final long wakeupCount = sharedPreferences.getLong(UNREPORTED_WAKEUP_COUNT_KEY, 0);
+
+        if (wakeupCount == 0) {
+            return null;
+        }
+
+        final long cardCount = sharedPreferences.getLong(UNREPORTED_CARD_COUNT_KEY, 0);
+        final long cpuTimeMs = sharedPreferences.getLong(UNREPORTED_CPU_TIME_MS_KEY, 0);
+
+        sharedPreferences
+                .edit()
+                .remove(UNREPORTED_WAKEUP_COUNT_KEY)
+                .remove(UNREPORTED_CARD_COUNT_KEY)
+                .remove(UNREPORTED_CPU_TIME_MS_KEY)
+                .apply();
+
+        return formatSummary(wakeupCount, cardCount, cpuTimeMs);
+    }
+
+    @NonNull
+    synchronized String getTotalSummary() {
+        return formatSummary(
+                sharedPreferences.getLong(TOTAL_WAKEUP_COUNT_KEY, 0),
+                sharedPreferences.getLong(TOTAL_CARD_COUNT_KEY, 0),
+                sharedPreferences.getLong(TOTAL_CPU_TIME_MS_KEY, 0));
+    }
+
+    private void addToCounter(
+            @NonNull final SharedPreferences.Editor editor,
+            @NonNull final String key,
+            final long delta) {
+
+        editor.putLong(key, sharedPreferences.getLong(key, 0) + delta);
+    }
+
+    @NonNull
+    private static String formatSummary(
+            final long wakeupCount,
+            final long cardCount,
+            final long cpuTimeMs) {
+
+        final long cpuTimePerWakeupMs = wakeupCount > 0 ? cpuTimeMs / wakeupCount : 0;
+
+        return "Collected " + cardCount + " cards in the background (" + wakeupCount + " wakeups, "
+                + cpuTimeMs + " ms CPU, " + cpuTimePerWakeupMs + " ms per wakeup).";
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.github.stkent.callingcard;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.messages.MessageListener;
+
+/**
+ * Receives cards found by the background subscription that NearbyActivity starts when it stops.
+ * The broadcast is kept alive with goAsync() only until the delivered cards have been persisted.
+ */
+public final class BackgroundDiscoveryReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        // If this broadcast started the process, there is no user-visible launch to trace.
+        CustomApplication.getStartupTracer(context).onNonActivityComponentStarted();
+
+        final PendingResult pendingResult = goAsync();
+
+        final BackgroundCardCollector backgroundCardCollector = new BackgroundCardCollector(
+                CustomApplication.getGson(context),
+                CustomApplication.getCollectedCardStore(context),
+                CustomApplication.getEncounterLog(context),
+                new BackgroundDiscovery(context.getSharedPreferences(
+                        BackgroundDiscovery.PREFS_NAME, Context.MODE_PRIVATE)));
+
+        final CardDeliverySource cardDeliverySource = new CardDeliverySource() {
+            @Override
+            public void deliverTo(@NonNull final MessageListener messageListener) {
+                Nearby.Messages.handleIntent(intent, messageListener);
+            }
+        };
+
+        backgroundCardCollector.collect(cardDeliverySource, new Runnable() {
+            @Override
+            public void run() {
+                pendingResult.finish();
+            }
+        });
+    }
+
+}
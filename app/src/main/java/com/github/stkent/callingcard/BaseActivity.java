@@ -1,6 +1,11 @@
 package com.github.stkent.callingcard;
 
+import android.app.Activity;
+import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.IntentSender;
 import android.os.Bundle;
 import android.support.annotation.CallSuper;
 import android.support.annotation.NonNull;
@@ -10,9 +15,9 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.google.android.gms.auth.api.Auth;
-import com.google.android.gms.auth.api.signin.GoogleSignInOptions;
 import com.google.android.gms.auth.api.signin.GoogleSignInResult;
 import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
 import com.google.android.gms.common.api.OptionalPendingResult;
@@ -22,31 +27,36 @@ import static android.widget.Toast.LENGTH_LONG;
 
 public abstract class BaseActivity extends AppCompatActivity implements OnConnectionFailedListener {
 
+    private static final int CONNECTION_RESOLUTION_REQUEST_CODE = 3391;
+
     protected abstract String getLogTag();
 
+    protected GoogleApiClientManager googleApiClientManager;
     protected GoogleApiClient signInGoogleApiClient;
     private ProgressDialog progressDialog;
 
+    // True while a resolution or error dialog for a connection failure is showing.
+    private boolean resolvingConnectionFailure = false;
+
     @Override
     protected void onCreate(@Nullable final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        final GoogleSignInOptions googleSignInOptions
-                = new GoogleSignInOptions.Builder(GoogleSignInOptions.DEFAULT_SIGN_IN)
-                .requestEmail()
-                .build();
-
-        signInGoogleApiClient = new GoogleApiClient.Builder(this)
-                .enableAutoManage(this, this)
-                .addApi(Auth.GOOGLE_SIGN_IN_API, googleSignInOptions)
-                .build();
+        // The shared client is owned by the application so that its connection survives navigation
+        // between activities.
+        googleApiClientManager = CustomApplication.getGoogleApiClientManager(this);
+        signInGoogleApiClient = googleApiClientManager.getGoogleApiClient();
     }
 
     @Override
     protected void onStart() {
         super.onStart();
 
+        googleApiClientManager.registerConnectionFailedListener(this);
+        googleApiClientManager.acquire();
+
         Log.d(getLogTag(), "onStart: Attempting silent sign-in.");
+        CustomApplication.getStartupTracer(this).mark(StartupTracer.Milestone.SIGN_IN_STARTED);
 
         final OptionalPendingResult<GoogleSignInResult> optionalPendingResult
                 = Auth.GoogleSignInApi.silentSignIn(signInGoogleApiClient);
@@ -67,7 +77,9 @@ public abstract class BaseActivity extends AppCompatActivity implements OnConnec
             Log.d(getLogTag(), "onStart: User has not signed in before, or sign-in has expired.");
             Log.d(getLogTag(), "onStart: Attempting to renew credentials or leverage cross-device sign-in.");
 
-            showProgressDialog();
+            if (shouldBlockUntilSignedIn()) {
+                showProgressDialog();
+            }
 
             optionalPendingResult.setResultCallback(new ResultCallback<GoogleSignInResult>() {
                 @Override
@@ -79,12 +91,84 @@ public abstract class BaseActivity extends AppCompatActivity implements OnConnec
         }
     }
 
+    @Override
+    protected void onStop() {
+        googleApiClientManager.release();
+        googleApiClientManager.unregisterConnectionFailedListener(this);
+        super.onStop();
+    }
+
+    @Override
+    @CallSuper
+    protected void onActivityResult(
+            final int requestCode,
+            final int resultCode,
+            final Intent data) {
+
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (requestCode == CONNECTION_RESOLUTION_REQUEST_CODE) {
+            resolvingConnectionFailure = false;
+
+            if (resultCode == Activity.RESULT_OK) {
+                // E.g. Play services was updated or the account was confirmed; try again.
+                googleApiClientManager.connect();
+            }
+        }
+    }
+
+    /**
+     * Resolves the failure if Play services offers a resolution (e.g. an update or sign-in), and
+     * otherwise shows Play services' own error dialog.
+     */
     @Override
     @CallSuper
     public void onConnectionFailed(@NonNull final ConnectionResult connectionResult) {
-        final String connectionFailedMessage = "Google API Client connection failed.";
+        Log.e(getLogTag(), "Google API Client connection failed: " + connectionResult);
+
+        if (resolvingConnectionFailure || isFinishing()) {
+            return;
+        }
+
+        if (connectionResult.hasResolution()) {
+            try {
+                resolvingConnectionFailure = true;
+                connectionResult.startResolutionForResult(
+                        this, CONNECTION_RESOLUTION_REQUEST_CODE);
+            } catch (final IntentSender.SendIntentException e) {
+                // The resolution intent was cancelled; retry the connection.
+                resolvingConnectionFailure = false;
+                googleApiClientManager.connect();
+            }
+
+            return;
+        }
+
+        final Dialog errorDialog = GoogleApiAvailability.getInstance().getErrorDialog(
+                this, connectionResult.getErrorCode(), CONNECTION_RESOLUTION_REQUEST_CODE);
 
-        toastError(connectionFailedMessage);
+        if (errorDialog == null) {
+            toastError("Google API Client connection failed.");
+            return;
+        }
+
+        resolvingConnectionFailure = true;
+        errorDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(final DialogInterface dialog) {
+                resolvingConnectionFailure = false;
+            }
+        });
+
+        errorDialog.show();
+    }
+
+    /**
+     * @return true if a blocking progress dialog should be shown while sign-in is renewed; false if
+     *         this screen can be used while sign-in is re-validated in the background.
+     */
+    protected boolean shouldBlockUntilSignedIn() {
+        return true;
     }
 
     protected final void toastError(@Nullable final String message) {
@@ -96,6 +180,8 @@ public abstract class BaseActivity extends AppCompatActivity implements OnConnec
 
     @CallSuper
     protected void handleSignInResult(final GoogleSignInResult result) {
+        CustomApplication.getStartupTracer(this).mark(StartupTracer.Milestone.SIGN_IN_RESOLVED);
+
         if (result.isSuccess()) {
             Log.d(getLogTag(), "handleSignInResult: User is signed in.");
         } else {
@@ -0,0 +1,18 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.nearby.messages.MessageListener;
+
+/**
+ * A batch of Nearby messages delivered while the app is in the background. In production this
+ * wraps the Intent received from a PendingIntent subscription; a fake can replay canned messages.
+ */
+interface CardDeliverySource {
+
+    /**
+     * Synchronously passes every found and lost message in the batch to the given listener.
+     */
+    void deliverTo(@NonNull final MessageListener messageListener);
+
+}
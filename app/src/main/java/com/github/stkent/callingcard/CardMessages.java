@@ -0,0 +1,93 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.nearby.messages.Message;
+import com.google.android.gms.nearby.messages.MessageFilter;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Encodes cards as Nearby messages: typed messages, one type per card schema version, plus the
+ * untyped messages published by older builds.
+ */
+final class CardMessages {
+
+    static final String NAMESPACE = "calling-card";
+
+    // JSON-serialized User.
+    static final String CARD_V1_TYPE = "card-v1";
+
+    // Untyped messages in the app's own namespace, as published by older builds.
+    static final String LEGACY_TYPE = "";
+
+    static final MessageFilter FILTER = new MessageFilter.Builder()
+            .includeNamespacedType(NAMESPACE, CARD_V1_TYPE)
+            .includeAllMyTypes()
+            .build();
+
+    private static final String TAG = "CardMessages";
+
+    @NonNull
+    static Message encode(@NonNull final Gson gson, @NonNull final User user) {
+        return new Message(encodeContent(gson, user), NAMESPACE, CARD_V1_TYPE);
+    }
+
+    /**
+     * @return the card in the format older builds subscribe to. Publish it alongside
+     *         {@link #encode} until those builds are no longer in use.
+     */
+    @NonNull
+    static Message encodeLegacy(@NonNull final Gson gson, @NonNull final User user) {
+        return new Message(encodeContent(gson, user));
+    }
+
+    /**
+     * @return the decoded card, or null if the message is not of a supported type (which the
+     *         subscription filter should already prevent) or the card is missing a required field.
+     * @throws JsonSyntaxException if a message of a supported type is malformed.
+     */
+    @Nullable
+    static User decode(@NonNull final Gson gson, @NonNull final Message message) {
+        final boolean isCardV1 = NAMESPACE.equals(message.getNamespace())
+                && CARD_V1_TYPE.equals(message.getType());
+
+        final boolean isLegacyCard = !NAMESPACE.equals(message.getNamespace())
+                && LEGACY_TYPE.equals(message.getType());
+
+        if (!isCardV1 && !isLegacyCard) {
+            Log.w(TAG, "Ignoring unsupported message type "
+                    + message.getNamespace() + "/" + message.getType() + ".");
+
+            return null;
+        }
+
+        final User user = gson.fromJson(new String(message.getContent()), User.class);
+
+        if (user == null || !user.isValid()) {
+            Log.w(TAG, "Ignoring card with missing fields.");
+            return null;
+        }
+
+        return user;
+    }
+
+    @NonNull
+    private static byte[] encodeContent(@NonNull final Gson gson, @NonNull final User user) {
+        final byte[] content = gson.toJson(user).getBytes();
+
+        if (content.length > Message.MAX_CONTENT_SIZE_BYTES && user.getThumbnail() != null) {
+            Log.w(TAG, "Card exceeds the Nearby payload limit; publishing it without a thumbnail.");
+            return encodeContent(gson, user.withThumbnail(null));
+        }
+
+        return content;
+    }
+
+    private CardMessages() {
+        // This class is not publicly instantiable.
+    }
+
+}
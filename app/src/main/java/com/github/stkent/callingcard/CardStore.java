@@ -0,0 +1,99 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Shares one weakly held User instance per user id. Thread-safe.
+ */
+final class CardStore {
+
+    private static final class CardReference extends WeakReference<User> {
+
+        @NonNull
+        private final String userId;
+
+        private CardReference(
+                @NonNull final User user,
+                @NonNull final ReferenceQueue<User> referenceQueue) {
+
+            super(user, referenceQueue);
+            this.userId = user.getId();
+        }
+    }
+
+    @NonNull
+    private final Map<String, CardReference> cards = new HashMap<>();
+
+    @NonNull
+    private final ReferenceQueue<User> referenceQueue = new ReferenceQueue<>();
+
+    private long internCount = 0;
+    private long reuseCount = 0;
+
+    /**
+     * @return the canonical instance for the given card: the existing instance if one with the same
+     *         contents is still in use, or else the given card itself.
+     */
+    @NonNull
+    synchronized User intern(@NonNull final User user) {
+        purgeClearedReferences();
+        internCount++;
+
+        final CardReference reference = cards.get(user.getId());
+        final User existingUser = reference != null ? reference.get() : null;
+
+        if (existingUser != null && existingUser.hasSameCardContents(user)) {
+            reuseCount++;
+            return existingUser;
+        }
+
+        cards.put(user.getId(), new CardReference(user, referenceQueue));
+        return user;
+    }
+
+    @NonNull
+    synchronized List<User> internAll(@NonNull final Collection<User> users) {
+        final List<User> result = new ArrayList<>(users.size());
+
+        for (final User user : users) {
+            result.add(intern(user));
+        }
+
+        return result;
+    }
+
+    @NonNull
+    synchronized String buildReport() {
+        purgeClearedReferences();
+
+        return String.format(Locale.US,
+                "%d live cards; %d of %d decoded cards replaced by an existing instance\n",
+                cards.size(),
+                reuseCount,
+                internCount);
+    }
+
+    private void purgeClearedReferences() {
+        Reference<? extends User> clearedReference;
+
+        while ((clearedReference = referenceQueue.poll()) != null) {
+            final String userId = ((CardReference) clearedReference).userId;
+
+            // The id may already map to a newer instance.
+            if (cards.get(userId) == clearedReference) {
+                cards.remove(userId);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+package com.github.stkent.callingcard;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+import android.util.Base64;
+import android.util.Log;
+
+import com.squareup.picasso.Picasso;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates and decodes the small Base64 JPEG avatars embedded in published cards.
+ */
+final class CardThumbnails {
+
+    interface CreateCallback {
+        /**
+         * Called on the main thread.
+         *
+         * @param thumbnail the encoded thumbnail, or null if one could not be created.
+         */
+        void onThumbnailCreated(@Nullable final String thumbnail);
+    }
+
+    interface DecodeCallback {
+        /**
+         * Called on the main thread, only if the thumbnail was decoded successfully.
+         */
+        void onThumbnailDecoded(@NonNull final String thumbnail, @NonNull final Bitmap bitmap);
+    }
+
+    private static final String TAG = "CardThumbnails";
+
+    private static final int THUMBNAIL_SIZE_PX = 32;
+
+    // Keeps the thumbnail to a small fraction of the Nearby message payload.
+    private static final int MAX_THUMBNAIL_BYTES = 600;
+
+    // The Base64 length of a MAX_THUMBNAIL_BYTES thumbnail.
+    private static final int MAX_ENCODED_THUMBNAIL_LENGTH = (MAX_THUMBNAIL_BYTES + 2) / 3 * 4;
+
+    private static final int INITIAL_JPEG_QUALITY = 70;
+    private static final int MIN_JPEG_QUALITY = 10;
+    private static final int JPEG_QUALITY_STEP = 10;
+
+    /*
+     * Lists re-bind every card in the roster on each refresh, so the cache holds a whole roster: up
+     * to MAX_ROSTER_ENTRIES recently seen plus MAX_COLLECTED_CARDS collected users, which also
+     * bounds the nearby users in practice. A decoded thumbnail takes at most 4 KB.
+     */
+    private static final int DECODED_CACHE_SIZE
+            = RosterSnapshotStore.MAX_ROSTER_ENTRIES + BackgroundCardCollector.MAX_COLLECTED_CARDS;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    // Separate from EXECUTOR so that decodes never wait behind a photo download.
+    private static final ExecutorService DECODE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final LruCache<String, Bitmap> DECODED_THUMBNAILS
+            = new LruCache<>(DECODED_CACHE_SIZE);
+
+    // Remembers rejected thumbnails so that they are not decoded again on every bind.
+    private static final LruCache<String, Boolean> REJECTED_THUMBNAILS
+            = new LruCache<>(DECODED_CACHE_SIZE);
+
+    static void create(
+            @NonNull final Picasso picasso,
+            @NonNull final Uri photoUrl,
+            @NonNull final CreateCallback callback) {
+
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                String thumbnail = null;
+
+                try {
+                    final Bitmap bitmap = picasso
+                            .load(photoUrl)
+                            .resize(THUMBNAIL_SIZE_PX, THUMBNAIL_SIZE_PX)
+                            .centerCrop()
+                            .get();
+
+                    thumbnail = encode(bitmap);
+                } catch (final IOException e) {
+                    Log.w(TAG, "Could not load photo for thumbnail.", e);
+                }
+
+                final String finalThumbnail = thumbnail;
+
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onThumbnailCreated(finalThumbnail);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the already-decoded thumbnail, or null if it has not been decoded (yet).
+     */
+    @Nullable
+    static Bitmap getDecoded(@NonNull final String thumbnail) {
+        return DECODED_THUMBNAILS.get(thumbnail);
+    }
+
+    /**
+     * Decodes the thumbnail on a background thread. Malformed or oversized thumbnails are dropped
+     * without calling back.
+     */
+    static void decode(@NonNull final String thumbnail, @NonNull final DecodeCallback callback) {
+        if (REJECTED_THUMBNAILS.get(thumbnail) != null) {
+            return;
+        }
+
+        DECODE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = DECODED_THUMBNAILS.get(thumbnail);
+
+                if (bitmap == null) {
+                    bitmap = decodeOnBackgroundThread(thumbnail);
+
+                    if (bitmap == null) {
+                        REJECTED_THUMBNAILS.put(thumbnail, true);
+                        return;
+                    }
+
+                    DECODED_THUMBNAILS.put(thumbnail, bitmap);
+                }
+
+                final Bitmap decodedBitmap = bitmap;
+
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onThumbnailDecoded(thumbnail, decodedBitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    @Nullable
+    private static Bitmap decodeOnBackgroundThread(@NonNull final String thumbnail) {
+        if (thumbnail.length() > MAX_ENCODED_THUMBNAIL_LENGTH) {
+            Log.w(TAG, "Ignoring " + thumbnail.length() + " character thumbnail.");
+            return null;
+        }
+
+        final byte[] jpegBytes;
+
+        try {
+            jpegBytes = Base64.decode(thumbnail, Base64.NO_WRAP);
+        } catch (final IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring malformed thumbnail.", e);
+            return null;
+        }
+
+        // Check the dimensions first, so a hostile header cannot trigger a huge bitmap allocation.
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpegBytes, 0, jpegBytes.length, options);
+
+        if (options.outWidth <= 0
+                || options.outHeight <= 0
+                || options.outWidth > THUMBNAIL_SIZE_PX
+                || options.outHeight > THUMBNAIL_SIZE_PX) {
+
+            Log.w(TAG, "Ignoring " + options.outWidth + "x" + options.outHeight + " thumbnail.");
+            return null;
+        }
+
+        return BitmapFactory.decodeByteArray(jpegBytes, 0, jpegBytes.length);
+    }
+
+    @Nullable
+    private static String encode(@NonNull final Bitmap bitmap) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(MAX_THUMBNAIL_BYTES);
+
+        for (int quality = INITIAL_JPEG_QUALITY;
+                quality >= MIN_JPEG_QUALITY;
+                quality -= JPEG_QUALITY_STEP) {
+
+            outputStream.reset();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, outputStream);
+
+            if (outputStream.size() <= MAX_THUMBNAIL_BYTES) {
+                Log.d(TAG, "Created " + outputStream.size() + " byte thumbnail at quality "
+                        + quality + ".");
+
+                return Base64.encodeToString(outputStream.toByteArray(), Base64.NO_WRAP);
+            }
+        }
+
+        Log.w(TAG, "Could not fit thumbnail within " + MAX_THUMBNAIL_BYTES + " bytes.");
+        return null;
+    }
+
+    private CardThumbnails() {
+        // This class is not publicly instantiable.
+    }
+
+}
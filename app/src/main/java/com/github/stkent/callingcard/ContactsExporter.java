@@ -0,0 +1,457 @@
+package com.github.stkent.callingcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.squareup.picasso.Picasso;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Exports saved users into the system Contacts provider on a background thread.
+ */
+final class ContactsExporter {
+
+    /**
+     * Applies a batch of operations to the Contacts provider. Abstracted so that the exporter can
+     * be exercised against a fake provider.
+     */
+    interface BatchApplier {
+        @NonNull
+        ContentProviderResult[] applyBatch(
+                @NonNull final ArrayList<ContentProviderOperation> operations)
+                throws RemoteException, OperationApplicationException;
+    }
+
+    interface ProgressListener {
+        void onExportProgress(final int processedCount, final int totalCount);
+
+        void onExportFinished(
+                final int writtenCount,
+                final int unchangedCount,
+                final int failedCount);
+    }
+
+    private static final String TAG = "ContactsExporter";
+
+    static final int MAX_OPERATIONS_PER_BATCH = 100;
+    static final int MAX_BYTES_PER_BATCH = 256 * 1024;
+
+    private static final int PROGRESS_INTERVAL = 200;
+    private static final int AVATAR_SIZE_PX = 96;
+    private static final int AVATAR_JPEG_QUALITY = 85;
+
+    // Rough per-operation overhead used when estimating batch sizes.
+    private static final int ESTIMATED_OPERATION_BYTES = 512;
+
+    private static final long NO_RAW_CONTACT_ID = -1;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    @NonNull
+    static BatchApplier forContentResolver(@NonNull final ContentResolver contentResolver) {
+        return new BatchApplier() {
+            @NonNull
+            @Override
+            public ContentProviderResult[] applyBatch(
+                    @NonNull final ArrayList<ContentProviderOperation> operations)
+                    throws RemoteException, OperationApplicationException {
+
+                return contentResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            }
+        };
+    }
+
+    private static final class PendingContact {
+        @NonNull
+        private final User user;
+
+        @NonNull
+        private final String fingerprint;
+
+        @Nullable
+        private final byte[] photo;
+
+        private long rawContactId;
+        private int rawContactOperationIndex;
+
+        private PendingContact(
+                @NonNull final User user,
+                @NonNull final String fingerprint,
+                @Nullable final byte[] photo,
+                final long rawContactId) {
+
+            this.user = user;
+            this.fingerprint = fingerprint;
+            this.photo = photo;
+            this.rawContactId = rawContactId;
+        }
+
+        private int getOperationCount() {
+            return (rawContactId != NO_RAW_CONTACT_ID ? 4 : 3) + (photo != null ? 1 : 0);
+        }
+
+        private int getEstimatedBytes() {
+            // Strings are parceled as UTF-16.
+            return getOperationCount() * ESTIMATED_OPERATION_BYTES
+                    + 2 * (user.getName().length() + user.getEmailAddress().length())
+                    + (photo != null ? photo.length : 0);
+        }
+    }
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final BatchApplier batchApplier;
+
+    // Maps user ids to "<raw contact id>:<fingerprint>" for every user exported so far.
+    @NonNull
+    private final SharedPreferences exportState;
+
+    @NonNull
+    private final Picasso picasso;
+
+    ContactsExporter(
+            @NonNull final BatchApplier batchApplier,
+            @NonNull final SharedPreferences exportState,
+            @NonNull final Picasso picasso) {
+
+        this.batchApplier = batchApplier;
+        this.exportState = exportState;
+        this.picasso = picasso;
+    }
+
+    void export(
+            @NonNull final Collection<User> users,
+            @NonNull final ProgressListener listener) {
+
+        final List<User> usersToExport = new ArrayList<>(users);
+
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                exportOnBackgroundThread(usersToExport, listener);
+            }
+        });
+    }
+
+    private void exportOnBackgroundThread(
+            @NonNull final List<User> users,
+            @NonNull final ProgressListener listener) {
+
+        final int totalCount = users.size();
+        final List<PendingContact> batch = new ArrayList<>();
+        int batchOperationCount = 0;
+        int batchBytes = 0;
+        int processedCount = 0;
+        int writtenCount = 0;
+        int unchangedCount = 0;
+        int failedCount = 0;
+
+        for (final User user : users) {
+            final String fingerprint = getFingerprint(user);
+            final String previousState = exportState.getString(user.getId(), null);
+
+            if (previousState != null && previousState.endsWith(":" + fingerprint)) {
+                unchangedCount++;
+            } else {
+                final PendingContact contact = new PendingContact(
+                        user,
+                        fingerprint,
+                        loadAvatar(user),
+                        getRawContactId(previousState));
+
+                if (!batch.isEmpty()
+                        && (batchOperationCount + contact.getOperationCount()
+                                > MAX_OPERATIONS_PER_BATCH
+                        || batchBytes + contact.getEstimatedBytes() > MAX_BYTES_PER_BATCH)) {
+
+                    final int batchWrittenCount = applyBatch(batch);
+                    writtenCount += batchWrittenCount;
+                    failedCount += batch.size() - batchWrittenCount;
+                    batch.clear();
+                    batchOperationCount = 0;
+                    batchBytes = 0;
+                }
+
+                batch.add(contact);
+                batchOperationCount += contact.getOperationCount();
+                batchBytes += contact.getEstimatedBytes();
+            }
+
+            processedCount++;
+
+            if (processedCount % PROGRESS_INTERVAL == 0) {
+                postProgress(listener, processedCount, totalCount);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            final int batchWrittenCount = applyBatch(batch);
+            writtenCount += batchWrittenCount;
+            failedCount += batch.size() - batchWrittenCount;
+        }
+
+        final int finalWrittenCount = writtenCount;
+        final int finalUnchangedCount = unchangedCount;
+        final int finalFailedCount = failedCount;
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onExportFinished(finalWrittenCount, finalUnchangedCount, finalFailedCount);
+            }
+        });
+    }
+
+    /**
+     * @return the number of contacts written.
+     */
+    private int applyBatch(@NonNull final List<PendingContact> batch) {
+        try {
+            applyBatchOrThrow(batch);
+            return batch.size();
+        } catch (final RemoteException | OperationApplicationException e) {
+            // Most likely a previously exported raw contact was deleted by the user. Retry one
+            // contact at a time so that only contacts whose raw contact is gone are re-inserted.
+            Log.w(TAG, "Contacts batch failed; retrying contacts individually.", e);
+
+            int writtenCount = 0;
+
+            for (final PendingContact contact : batch) {
+                if (applyContact(contact)) {
+                    writtenCount++;
+                }
+            }
+
+            return writtenCount;
+        }
+    }
+
+    /**
+     * @return true if the contact was written.
+     */
+    private boolean applyContact(@NonNull final PendingContact contact) {
+        final List<PendingContact> batch = Collections.singletonList(contact);
+
+        try {
+            applyBatchOrThrow(batch);
+            return true;
+        } catch (final RemoteException | OperationApplicationException e) {
+            if (contact.rawContactId == NO_RAW_CONTACT_ID) {
+                Log.e(TAG, "Could not export " + contact.user.getName(), e);
+                return false;
+            }
+
+            Log.w(TAG, "Raw contact " + contact.rawContactId + " is gone; re-inserting.", e);
+            contact.rawContactId = NO_RAW_CONTACT_ID;
+        }
+
+        try {
+            applyBatchOrThrow(batch);
+            return true;
+        } catch (final RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Could not export " + contact.user.getName(), e);
+            return false;
+        }
+    }
+
+    private void applyBatchOrThrow(@NonNull final List<PendingContact> batch)
+            throws RemoteException, OperationApplicationException {
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
+        for (final PendingContact contact : batch) {
+            addOperations(contact, operations);
+        }
+
+        final ContentProviderResult[] results = batchApplier.applyBatch(operations);
+        final SharedPreferences.Editor editor = exportState.edit();
+
+        for (final PendingContact contact : batch) {
+            final long rawContactId = contact.rawContactId != NO_RAW_CONTACT_ID
+                    ? contact.rawContactId
+                    : ContentUris.parseId(results[contact.rawContactOperationIndex].uri);
+
+            editor.putString(contact.user.getId(), rawContactId + ":" + contact.fingerprint);
+        }
+
+        editor.apply();
+    }
+
+    private static void addOperations(
+            @NonNull final PendingContact contact,
+            @NonNull final List<ContentProviderOperation> operations) {
+
+        final boolean isUpdate = contact.rawContactId != NO_RAW_CONTACT_ID;
+        final int rawContactOperationIndex = operations.size();
+        contact.rawContactOperationIndex = rawContactOperationIndex;
+
+        if (isUpdate) {
+            // Fail the batch if the user deleted the raw contact, rather than orphaning data rows.
+            final Uri rawContactUri
+                    = ContentUris.withAppendedId(RawContacts.CONTENT_URI, contact.rawContactId);
+
+            operations.add(ContentProviderOperation.newAssertQuery(rawContactUri)
+                    .withSelection(RawContacts.DELETED + "=0", null)
+                    .withExpectedCount(1)
+                    .build());
+
+            // Replace the data rows we own; the raw contact itself is kept.
+            operations.add(ContentProviderOperation.newDelete(Data.CONTENT_URI)
+                    .withSelection(
+                            Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + " IN (?,?,?)",
+                            new String[] {
+                                    String.valueOf(contact.rawContactId),
+                                    StructuredName.CONTENT_ITEM_TYPE,
+                                    Email.CONTENT_ITEM_TYPE,
+                                    Photo.CONTENT_ITEM_TYPE
+                            })
+                    .build());
+        } else {
+            operations.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                    .withValue(RawContacts.ACCOUNT_TYPE, null)
+                    .withValue(RawContacts.ACCOUNT_NAME, null)
+                    .build());
+        }
+
+        operations.add(newDataInsert(contact, rawContactOperationIndex)
+                .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                .withValue(StructuredName.DISPLAY_NAME, contact.user.getName())
+                .build());
+
+        operations.add(newDataInsert(contact, rawContactOperationIndex)
+                .withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE)
+                .withValue(Email.ADDRESS, contact.user.getEmailAddress())
+                .withValue(Email.TYPE, Email.TYPE_OTHER)
+                .build());
+
+        if (contact.photo != null) {
+            operations.add(newDataInsert(contact, rawContactOperationIndex)
+                    .withValue(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE)
+                    .withValue(Photo.PHOTO, contact.photo)
+                    .build());
+        }
+    }
+
+    @NonNull
+    private static ContentProviderOperation.Builder newDataInsert(
+            @NonNull final PendingContact contact,
+            final int rawContactOperationIndex) {
+
+        final ContentProviderOperation.Builder builder
+                = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+
+        if (contact.rawContactId != NO_RAW_CONTACT_ID) {
+            return builder.withValue(Data.RAW_CONTACT_ID, contact.rawContactId);
+        } else {
+            return builder.withValueBackReference(Data.RAW_CONTACT_ID, rawContactOperationIndex);
+        }
+    }
+
+    @Nullable
+    private byte[] loadAvatar(@NonNull final User user) {
+        final Uri photoUrl = user.getPhotoUrl();
+
+        if (photoUrl == null) {
+            return null;
+        }
+
+        try {
+            // Served from Picasso's caches when the avatar has already been displayed.
+            final Bitmap bitmap = picasso
+                    .load(photoUrl)
+                    .resize(AVATAR_SIZE_PX, AVATAR_SIZE_PX)
+                    .centerCrop()
+                    .get();
+
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, AVATAR_JPEG_QUALITY, outputStream);
+            return outputStream.toByteArray();
+        } catch (final IOException e) {
+            Log.w(TAG, "Could not load avatar for " + user.getName(), e);
+            return null;
+        }
+    }
+
+    private void postProgress(
+            @NonNull final ProgressListener listener,
+            final int processedCount,
+            final int totalCount) {
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onExportProgress(processedCount, totalCount);
+            }
+        });
+    }
+
+    /**
+     * @return a SHA-1 digest of the exported fields, so that edited cards are never mistaken for
+     *         unchanged ones.
+     */
+    @NonNull
+    private static String getFingerprint(@NonNull final User user) {
+        final String contents = user.getName() + '\u0000' + user.getEmailAddress() + '\u0000'
+                + user.getPhotoUrl();
+
+        try {
+            final byte[] digest
+                    = MessageDigest.getInstance("SHA-1").digest(contents.getBytes("UTF-8"));
+            final StringBuilder result = new StringBuilder(digest.length * 2);
+
+            for (final byte b : digest) {
+                result.append(String.format(Locale.US, "%02x", b));
+            }
+
+            return result.toString();
+        } catch (final NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both are guaranteed to be available on Android.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long getRawContactId(@Nullable final String exportState) {
+        if (exportState == null) {
+            return NO_RAW_CONTACT_ID;
+        }
+
+        try {
+            return Long.parseLong(exportState.substring(0, exportState.indexOf(':')));
+        } catch (final NumberFormatException | IndexOutOfBoundsException e) {
+            return NO_RAW_CONTACT_ID;
+        }
+    }
+
+}
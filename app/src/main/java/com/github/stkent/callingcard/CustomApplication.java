@@ -1,23 +1,338 @@
 package com.github.stkent.callingcard;
 
+import android.app.Activity;
 import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.squareup.picasso.Picasso;
 
+import java.io.File;
+
 public final class CustomApplication extends Application {
 
+    // Tells the StartupTracer whether this launch was started by an activity.
+    private static final class StartupActivityCallbacks implements ActivityLifecycleCallbacks {
+
+        @NonNull
+        private final StartupTracer startupTracer;
+
+        private StartupActivityCallbacks(@NonNull final StartupTracer startupTracer) {
+            this.startupTracer = startupTracer;
+        }
+
+        @Override
+        public void onActivityCreated(final Activity activity, final Bundle savedInstanceState) {
+            startupTracer.onActivityCreated();
+        }
+
+        @Override
+        public void onActivityStarted(final Activity activity) {
+        }
+
+        @Override
+        public void onActivityResumed(final Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(final Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(final Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(final Activity activity, final Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(final Activity activity) {
+        }
+    }
+
     private static final String TAG = "CustomApplication";
+    private static final String STARTUP_TRACES_FILE_NAME = "startup_traces.bin";
+    private static final String ENCOUNTER_LOG_FILE_NAME = "encounters.bin";
+    private static final String ROSTER_SNAPSHOT_FILE_NAME = "roster_snapshot.bin";
+    private static final String COLLECTED_CARDS_FILE_NAME = "collected_cards.bin";
+    private static final String SAVED_AVATARS_DIRECTORY_NAME = "avatars";
+    private static final String SAVED_AVATAR_FAILURES_PREFS_NAME = "saved_avatar_failures";
+
+    @NonNull
+    public static GoogleApiClientManager getGoogleApiClientManager(@NonNull final Context context) {
+        return from(context).googleApiClientManager;
+    }
+
+    @NonNull
+    public static StartupTracer getStartupTracer(@NonNull final Context context) {
+        return from(context).startupTracer;
+    }
+
+    @NonNull
+    static JankMonitor getJankMonitor(@NonNull final Context context) {
+        return from(context).jankMonitor;
+    }
+
+    @NonNull
+    static StrictModeViolations getStrictModeViolations(@NonNull final Context context) {
+        return from(context).strictModeViolations;
+    }
+
+    @NonNull
+    static CardStore getCardStore(@NonNull final Context context) {
+        return from(context).cardStore;
+    }
+
+    @NonNull
+    static PerformanceProfile getPerformanceProfile(@NonNull final Context context) {
+        return from(context).getPerformanceProfile();
+    }
+
+    /**
+     * Stores the chosen performance mode and returns the profile it selects.
+     */
+    @NonNull
+    static PerformanceProfile setPerformanceMode(
+            @NonNull final Context context,
+            @NonNull final PerformanceProfile.Mode mode) {
+
+        return from(context).setPerformanceMode(mode);
+    }
+
+    @NonNull
+    public static Gson getGson(@NonNull final Context context) {
+        return from(context).gson.get();
+    }
+
+    @NonNull
+    public static Picasso getPicasso(@NonNull final Context context) {
+        return from(context).picasso.get();
+    }
+
+    @NonNull
+    public static SignedInUserManager getSignedInUserManager(@NonNull final Context context) {
+        return from(context).signedInUserManager.get();
+    }
+
+    @NonNull
+    public static SavedUsersManager getSavedUsersManager(@NonNull final Context context) {
+        return from(context).savedUsersManager.get();
+    }
+
+    @NonNull
+    static SavedAvatarStore getSavedAvatarStore(@NonNull final Context context) {
+        return from(context).savedAvatarStore.get();
+    }
+
+    @NonNull
+    static EncounterLog getEncounterLog(@NonNull final Context context) {
+        return from(context).encounterLog.get();
+    }
+
+    @NonNull
+    static RosterSnapshotStore getRosterSnapshotStore(@NonNull final Context context) {
+        return from(context).rosterSnapshotStore.get();
+    }
+
+    @NonNull
+    static RosterSnapshotStore getCollectedCardStore(@NonNull final Context context) {
+        return from(context).collectedCardStore.get();
+    }
+
+    @NonNull
+    private static CustomApplication from(@NonNull final Context context) {
+        return (CustomApplication) context.getApplicationContext();
+    }
+
+    private StartupTracer startupTracer;
+    private JankMonitor jankMonitor;
+    private StrictModeViolations strictModeViolations;
+    private CardStore cardStore;
+    private GoogleApiClientManager googleApiClientManager;
+    private StartupInitializer.Component<PerformanceProfile> initialPerformanceProfile;
+
+    // Non-null once the user has changed the performance mode during this process's lifetime.
+    @Nullable
+    private volatile PerformanceProfile selectedPerformanceProfile;
+
+    private StartupInitializer.Component<Gson> gson;
+    private StartupInitializer.Component<Picasso> picasso;
+    private StartupInitializer.Component<SignedInUserManager> signedInUserManager;
+    private StartupInitializer.Component<SavedUsersManager> savedUsersManager;
+    private StartupInitializer.Component<SavedAvatarStore> savedAvatarStore;
+    private StartupInitializer.Component<EncounterLog> encounterLog;
+    private StartupInitializer.Component<RosterSnapshotStore> rosterSnapshotStore;
+    private StartupInitializer.Component<RosterSnapshotStore> collectedCardStore;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        configureSingletonPicassoInstance();
+
+        if (BuildConfig.DEBUG) {
+            JankMonitor.enableStrictMode();
+        }
+
+        jankMonitor = new JankMonitor(BuildConfig.DEBUG);
+        strictModeViolations = new StrictModeViolations(this, BuildConfig.DEBUG);
+        cardStore = new CardStore();
+        startupTracer = new StartupTracer(new File(getFilesDir(), STARTUP_TRACES_FILE_NAME));
+
+        registerComponents(new StartupInitializer(startupTracer));
+        registerActivityLifecycleCallbacks(new StartupActivityCallbacks(startupTracer));
+
+        googleApiClientManager = new GoogleApiClientManager(this);
+        startupTracer.mark(StartupTracer.Milestone.APPLICATION_CREATED);
+    }
+
+    @NonNull
+    private PerformanceProfile getPerformanceProfile() {
+        final PerformanceProfile result = selectedPerformanceProfile;
+        return result != null ? result : initialPerformanceProfile.get();
     }
 
-    private void configureSingletonPicassoInstance() {
-        final Picasso picasso = new Picasso.Builder(this)
+    @NonNull
+    private PerformanceProfile setPerformanceMode(@NonNull final PerformanceProfile.Mode mode) {
+        final SharedPreferences sharedPreferences
+                = getSharedPreferences(PerformanceProfile.PREFS_NAME, MODE_PRIVATE);
+
+        PerformanceProfile.setMode(sharedPreferences, mode);
+
+        final PerformanceProfile result = PerformanceProfile.select(this, sharedPreferences);
+        selectedPerformanceProfile = result;
+        return result;
+    }
+
+    private void registerComponents(@NonNull final StartupInitializer startupInitializer) {
+        gson = startupInitializer.register("Gson", new StartupInitializer.Factory<Gson>() {
+            @NonNull
+            @Override
+            public Gson create() {
+                return new GsonBuilder()
+                        .registerTypeAdapter(Uri.class, new UriTypeAdapter())
+                        .create();
+            }
+        });
+
+        initialPerformanceProfile = startupInitializer.register(
+                "PerformanceProfile",
+                new StartupInitializer.Factory<PerformanceProfile>() {
+                    @NonNull
+                    @Override
+                    public PerformanceProfile create() {
+                        return PerformanceProfile.select(
+                                CustomApplication.this,
+                                getSharedPreferences(PerformanceProfile.PREFS_NAME, MODE_PRIVATE));
+                    }
+                });
+
+        // Building the manager warms up the shared preferences file read by the sign-in fast path.
+        signedInUserManager = startupInitializer.register(
+                "SignedInUserManager",
+                new StartupInitializer.Factory<SignedInUserManager>() {
+                    @NonNull
+                    @Override
+                    public SignedInUserManager create() {
+                        return new SignedInUserManager(
+                                PreferenceManager.getDefaultSharedPreferences(
+                                        CustomApplication.this),
+                                gson.get());
+                    }
+                },
+                gson);
+
+        // Shared so that a single write-behind queue owns the saved users.
+        savedUsersManager = startupInitializer.register(
+                "SavedUsersManager",
+                new StartupInitializer.Factory<SavedUsersManager>() {
+                    @NonNull
+                    @Override
+                    public SavedUsersManager create() {
+                        return new SavedUsersManager(
+                                PreferenceManager.getDefaultSharedPreferences(
+                                        CustomApplication.this),
+                                gson.get());
+                    }
+                },
+                gson);
+
+        picasso = startupInitializer.register(
+                "Picasso",
+                new StartupInitializer.Factory<Picasso>() {
+                    @NonNull
+                    @Override
+                    public Picasso create() {
+                        return createPicassoInstance();
+                    }
+                });
+
+        savedAvatarStore = startupInitializer.register(
+                "SavedAvatarStore",
+                new StartupInitializer.Factory<SavedAvatarStore>() {
+                    @NonNull
+                    @Override
+                    public SavedAvatarStore create() {
+                        return new SavedAvatarStore(
+                                new File(getFilesDir(), SAVED_AVATARS_DIRECTORY_NAME),
+                                picasso.get(),
+                                getSharedPreferences(
+                                        SAVED_AVATAR_FAILURES_PREFS_NAME, MODE_PRIVATE));
+                    }
+                },
+                picasso);
+
+        // Shared so that a single writer owns each of these files.
+        encounterLog = startupInitializer.register(
+                "EncounterLog",
+                new StartupInitializer.Factory<EncounterLog>() {
+                    @NonNull
+                    @Override
+                    public EncounterLog create() {
+                        return new EncounterLog(
+                                new File(getFilesDir(), ENCOUNTER_LOG_FILE_NAME));
+                    }
+                });
+
+        rosterSnapshotStore = startupInitializer.register(
+                "RosterSnapshotStore",
+                new StartupInitializer.Factory<RosterSnapshotStore>() {
+                    @NonNull
+                    @Override
+                    public RosterSnapshotStore create() {
+                        return new RosterSnapshotStore(
+                                new File(getFilesDir(), ROSTER_SNAPSHOT_FILE_NAME),
+                                RosterSnapshotStore.MAX_ROSTER_ENTRIES,
+                                RosterSnapshotStore.MAX_ROSTER_ENTRY_AGE_MS);
+                    }
+                });
+
+        collectedCardStore = startupInitializer.register(
+                "CollectedCardStore",
+                new StartupInitializer.Factory<RosterSnapshotStore>() {
+                    @NonNull
+                    @Override
+                    public RosterSnapshotStore create() {
+                        return new RosterSnapshotStore(
+                                new File(getFilesDir(), COLLECTED_CARDS_FILE_NAME),
+                                BackgroundCardCollector.MAX_COLLECTED_CARDS,
+                                BackgroundCardCollector.MAX_COLLECTED_CARD_AGE_MS);
+                    }
+                });
+
+        startupInitializer.start();
+    }
+
+    @NonNull
+    private Picasso createPicassoInstance() {
+        return new Picasso.Builder(this)
                 .listener(new Picasso.Listener() {
                     @Override
                     public void onImageLoadFailed(
@@ -28,10 +343,8 @@ public final class CustomApplication extends Application {
                         Log.e(TAG, "onImageLoadFailed", exception);
                     }
                 })
-                .loggingEnabled(true)
+                .loggingEnabled(BuildConfig.DEBUG)
                 .build();
-
-        Picasso.setSingletonInstance(picasso);
     }
 
 }
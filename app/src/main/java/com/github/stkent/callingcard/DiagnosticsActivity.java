@@ -0,0 +1,84 @@
+package com.github.stkent.callingcard;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.app.AppCompatActivity;
+import android.widget.TextView;
+
+import butterknife.Bind;
+import butterknife.ButterKnife;
+
+/**
+ * Debug-only summary of runtime performance.
+ */
+public final class DiagnosticsActivity extends AppCompatActivity {
+
+    @Bind(R.id.diagnostics_text)
+    protected TextView diagnosticsText;
+
+    @Override
+    protected void onCreate(@Nullable final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        ButterKnife.bind(this);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        final BackgroundDiscovery backgroundDiscovery = new BackgroundDiscovery(
+                getSharedPreferences(BackgroundDiscovery.PREFS_NAME, MODE_PRIVATE));
+
+        final String jankSummary = "PERFORMANCE PROFILE\n"
+                + CustomApplication.getPerformanceProfile(this).buildReport()
+                + "\nJANK\n"
+                + CustomApplication.getJankMonitor(this).buildReport()
+                + "\nMAIN-THREAD VIOLATIONS\n";
+
+        final String storageSummary = "\nBACKGROUND DISCOVERY\n"
+                + backgroundDiscovery.getTotalSummary() + "\n"
+                + "\nSAVED CARD WRITES\n"
+                + CustomApplication.getSavedUsersManager(this).buildReport()
+                + "\nSHARED CARDS\n"
+                + CustomApplication.getCardStore(this).buildReport();
+
+        diagnosticsText.setText(jankSummary + "Counting...\n" + storageSummary);
+
+        CustomApplication.getStrictModeViolations(this).buildReport(
+                new StrictModeViolations.ReportCallback() {
+                    @Override
+                    public void onReportReady(@NonNull final String violationReport) {
+                        final String summary = jankSummary + violationReport + storageSummary;
+
+                        diagnosticsText.setText(summary);
+                        appendAvatarReport(summary);
+                    }
+                });
+    }
+
+    private void appendAvatarReport(@NonNull final String summary) {
+        CustomApplication.getSavedAvatarStore(this).buildReport(
+                new SavedAvatarStore.ReportCallback() {
+                    @Override
+                    public void onReportReady(@NonNull final String avatarReport) {
+                        final String summaryWithAvatars
+                                = summary + "\nSAVED AVATARS\n" + avatarReport;
+
+                        diagnosticsText.setText(summaryWithAvatars);
+                        appendStartupReport(summaryWithAvatars);
+                    }
+                });
+    }
+
+    private void appendStartupReport(@NonNull final String summary) {
+        CustomApplication.getStartupTracer(this).buildReport(new StartupTracer.ReportCallback() {
+            @Override
+            public void onReportReady(@NonNull final String report) {
+                diagnosticsText.setText(summary + "\nSTARTUP\n" + report);
+            }
+        });
+    }
+
+}
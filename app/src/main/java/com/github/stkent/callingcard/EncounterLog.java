@@ -0,0 +1,510 @@
+package com.github.stkent.callingcard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only on-disk history of nearby users being found and lost, stored as fixed-size records.
+ */
+final class EncounterLog {
+
+    enum Type {
+        FOUND,
+        LOST
+    }
+
+    static final class Encounter {
+        private final long timestamp;
+
+        @NonNull
+        private final Type type;
+
+        @NonNull
+        private final String userId;
+
+        private Encounter(
+                final long timestamp,
+                @NonNull final Type type,
+                @NonNull final String userId) {
+
+            this.timestamp = timestamp;
+            this.type = type;
+            this.userId = userId;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        @NonNull
+        Type getType() {
+            return type;
+        }
+
+        @NonNull
+        String getUserId() {
+            return userId;
+        }
+    }
+
+    interface PageCallback {
+        /**
+         * @param encounters up to one page of encounters older than the requested cursor, newest
+         *                   first. An empty list marks the end of the history.
+         */
+        void onPageRead(@NonNull final List<Encounter> encounters);
+    }
+
+    /**
+     * Cursor that requests the newest page of the log.
+     */
+    static final long NEWEST = Long.MAX_VALUE;
+
+    private static final String TAG = "EncounterLog";
+
+    private static final int MAGIC = 0x4343454C; // "CCEL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    // timestamp (8) + type (1) + user id length (1) + zero-padded UTF-8 user id.
+    private static final int RECORD_SIZE = 48;
+    private static final int MAX_USER_ID_BYTES = RECORD_SIZE - 10;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long FLUSH_DELAY_MS = 5 * 1000;
+
+    // Bounds the records held for retry while the disk is failing.
+    private static final int MAX_PENDING_RECORDS = 1000;
+
+    // Caps the log at about 2.4 MB, which covers months of heavy conference use.
+    static final int MAX_RECORDS = 50000;
+    static final long MAX_RECORD_AGE_MS = 180L * 24 * 60 * 60 * 1000;
+
+    // Compaction rewrites the file, so let it overshoot its caps a little before running again.
+    static final int RECORD_COUNT_SLACK = MAX_RECORDS / 4;
+    static final long RECORD_AGE_SLACK_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final class PendingRecord {
+        private final long timestamp;
+
+        @NonNull
+        private final Type type;
+
+        @NonNull
+        private final byte[] userIdBytes;
+
+        private PendingRecord(
+                final long timestamp,
+                @NonNull final Type type,
+                @NonNull final byte[] userIdBytes) {
+
+            this.timestamp = timestamp;
+            this.type = type;
+            this.userIdBytes = userIdBytes;
+        }
+    }
+
+    @NonNull
+    private final ScheduledExecutorService diskExecutor
+            = Executors.newSingleThreadScheduledExecutor();
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushOnDiskThread();
+        }
+    };
+
+    @NonNull
+    private final File logFile;
+
+    // Guarded by itself.
+    @NonNull
+    private final List<PendingRecord> pendingRecords = new ArrayList<>();
+
+    // Guarded by pendingRecords.
+    private boolean flushScheduled = false;
+
+    EncounterLog(@NonNull final File logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * Encounters without a user id, or with one too long to fit in a record, are dropped.
+     */
+    void append(@NonNull final Type type, @Nullable final String userId) {
+        append(type, userId, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    void append(
+            @NonNull final Type type,
+            @Nullable final String userId,
+            final long timestamp) {
+
+        if (userId == null) {
+            Log.w(TAG, "Dropping encounter without a user id.");
+            return;
+        }
+
+        final byte[] userIdBytes = userId.getBytes(UTF_8);
+
+        if (userIdBytes.length > MAX_USER_ID_BYTES) {
+            Log.w(TAG, "Dropping encounter with oversized user id " + userId);
+            return;
+        }
+
+        synchronized (pendingRecords) {
+            pendingRecords.add(new PendingRecord(timestamp, type, userIdBytes));
+
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Writes any buffered encounters without waiting for the next scheduled flush.
+     */
+    void flush() {
+        diskExecutor.execute(flushRunnable);
+    }
+
+    /**
+     * @param beforeTimestamp only encounters strictly older than this are returned. Pass
+     *                        {@link #NEWEST} for the first page, then the timestamp of the last
+     *                        encounter of each page to read the next one.
+     */
+    void readPage(
+            final long beforeTimestamp,
+            final int pageSize,
+            @NonNull final PageCallback callback) {
+
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Include anything appended before this call was made.
+                flushOnDiskThread();
+
+                List<Encounter> result;
+
+                try {
+                    result = readPageOnDiskThread(beforeTimestamp, pageSize);
+                } catch (final IOException e) {
+                    Log.e(TAG, "Failed to read encounter log.", e);
+                    result = Collections.emptyList();
+                }
+
+                final List<Encounter> encounters = result;
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPageRead(encounters);
+                    }
+                });
+            }
+        });
+    }
+
+    private void flushOnDiskThread() {
+        final List<PendingRecord> records;
+
+        synchronized (pendingRecords) {
+            records = new ArrayList<>(pendingRecords);
+            pendingRecords.clear();
+            flushScheduled = false;
+        }
+
+        if (records.isEmpty()) {
+            return;
+        }
+
+        boolean appended = false;
+
+        try {
+            final RandomAccessFile file = openLog();
+
+            try {
+                long recordCount = getRecordCount(file);
+                long lastTimestamp
+                        = recordCount > 0 ? readTimestamp(file, recordCount - 1) : Long.MIN_VALUE;
+
+                final ByteBuffer buffer = ByteBuffer.allocate(records.size() * RECORD_SIZE);
+
+                for (final PendingRecord record : records) {
+                    final byte[] userIdBytes = record.userIdBytes;
+
+                    lastTimestamp = Math.max(record.timestamp, lastTimestamp + 1);
+
+                    buffer.putLong(lastTimestamp);
+                    buffer.put((byte) record.type.ordinal());
+                    buffer.put((byte) userIdBytes.length);
+                    buffer.put(userIdBytes);
+                    buffer.position(buffer.position() + MAX_USER_ID_BYTES - userIdBytes.length);
+                }
+
+                file.seek(file.length());
+                file.write(buffer.array(), 0, buffer.position());
+                appended = true;
+
+                recordCount = getRecordCount(file);
+
+                if (needsCompaction(file, recordCount)) {
+                    compact(file, recordCount);
+                }
+            } finally {
+                file.close();
+            }
+        } catch (final IOException e) {
+            if (appended) {
+                Log.e(TAG, "Failed to compact encounter log.", e);
+            } else {
+                Log.e(TAG, "Failed to append to encounter log; will retry.", e);
+                requeue(records);
+            }
+        }
+    }
+
+    /**
+     * Puts records that could not be written back at the front of the queue, dropping the oldest
+     * ones if the disk has been failing for long enough to exceed the cap.
+     */
+    private void requeue(@NonNull final List<PendingRecord> records) {
+        synchronized (pendingRecords) {
+            pendingRecords.addAll(0, records);
+
+            final int overflowCount = pendingRecords.size() - MAX_PENDING_RECORDS;
+
+            if (overflowCount > 0) {
+                Log.w(TAG, "Dropping " + overflowCount + " unwritten encounters.");
+                pendingRecords.subList(0, overflowCount).clear();
+            }
+
+            scheduleFlushLocked();
+        }
+    }
+
+    // Must be called while holding pendingRecords.
+    private void scheduleFlushLocked() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            diskExecutor.schedule(flushRunnable, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @NonNull
+    private List<Encounter> readPageOnDiskThread(final long beforeTimestamp, final int pageSize)
+            throws IOException {
+
+        if (!logFile.exists()) {
+            return Collections.emptyList();
+        }
+
+        final RandomAccessFile file = openLog();
+
+        try {
+            final long endIndex = findFirstIndexAtOrAfter(file, beforeTimestamp);
+            final long startIndex = Math.max(0, endIndex - pageSize);
+            final int count = (int) (endIndex - startIndex);
+            final byte[] bytes = new byte[count * RECORD_SIZE];
+
+            file.seek(HEADER_SIZE + startIndex * RECORD_SIZE);
+            file.readFully(bytes);
+
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            final List<Encounter> result = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                buffer.position(i * RECORD_SIZE);
+                final Encounter encounter = decode(buffer);
+
+                if (encounter != null) {
+                    result.add(encounter);
+                }
+            }
+
+            Collections.reverse(result);
+            return result;
+        } finally {
+            file.close();
+        }
+    }
+
+    private boolean needsCompaction(@NonNull final RandomAccessFile file, final long recordCount)
+            throws IOException {
+
+        if (recordCount > MAX_RECORDS + RECORD_COUNT_SLACK) {
+            return true;
+        }
+
+        final long oldestAllowedTimestamp
+                = System.currentTimeMillis() - MAX_RECORD_AGE_MS - RECORD_AGE_SLACK_MS;
+
+        return recordCount > 0 && readTimestamp(file, 0) < oldestAllowedTimestamp;
+    }
+
+    /**
+     * Rewrites the log keeping only the newest records that are within the record and age caps.
+     * Records are streamed across in chunks, so memory use does not depend on the log size.
+     */
+    private void compact(@NonNull final RandomAccessFile file, final long recordCount)
+            throws IOException {
+
+        final long firstIndexToKeep = Math.max(
+                recordCount - MAX_RECORDS,
+                findFirstIndexAtOrAfter(file, System.currentTimeMillis() - MAX_RECORD_AGE_MS));
+
+        // Write to a temporary file first so a crash mid-compaction never corrupts the log.
+        final File tempFile = new File(logFile.getPath() + ".tmp");
+        final RandomAccessFile compactedFile = new RandomAccessFile(tempFile, "rw");
+
+        try {
+            compactedFile.setLength(0);
+            writeHeader(compactedFile);
+
+            final byte[] chunk = new byte[256 * RECORD_SIZE];
+            long remainingBytes = (recordCount - firstIndexToKeep) * RECORD_SIZE;
+
+            file.seek(HEADER_SIZE + firstIndexToKeep * RECORD_SIZE);
+
+            while (remainingBytes > 0) {
+                final int chunkSize = (int) Math.min(chunk.length, remainingBytes);
+                file.readFully(chunk, 0, chunkSize);
+                compactedFile.write(chunk, 0, chunkSize);
+                remainingBytes -= chunkSize;
+            }
+        } finally {
+            compactedFile.close();
+        }
+
+        file.close();
+
+        if (!tempFile.renameTo(logFile)) {
+            throw new IOException("Could not replace " + logFile);
+        }
+
+        Log.d(TAG, "Compacted encounter log from " + recordCount + " to "
+                + (recordCount - firstIndexToKeep) + " records.");
+    }
+
+    @NonNull
+    private RandomAccessFile openLog() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+
+        if (!hasValidHeader(file)) {
+            if (file.length() > 0) {
+                Log.w(TAG, "Discarding encounter log with unrecognized format.");
+            }
+
+            file.setLength(0);
+            writeHeader(file);
+        }
+
+        // Drop a partial trailing record left behind by a crash mid-append.
+        final long recordBytes = file.length() - HEADER_SIZE;
+
+        if (recordBytes % RECORD_SIZE != 0) {
+            file.setLength(HEADER_SIZE + recordBytes - recordBytes % RECORD_SIZE);
+        }
+
+        return file;
+    }
+
+    private static boolean hasValidHeader(@NonNull final RandomAccessFile file)
+            throws IOException {
+
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        file.seek(0);
+        return file.readInt() == MAGIC
+                && file.readInt() == VERSION
+                && file.readInt() == RECORD_SIZE;
+    }
+
+    private static void writeHeader(@NonNull final RandomAccessFile file) throws IOException {
+        file.seek(0);
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.writeInt(RECORD_SIZE);
+    }
+
+    private static long getRecordCount(@NonNull final RandomAccessFile file) throws IOException {
+        return (file.length() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    private static long readTimestamp(@NonNull final RandomAccessFile file, final long index)
+            throws IOException {
+
+        file.seek(HEADER_SIZE + index * RECORD_SIZE);
+        return file.readLong();
+    }
+
+    /**
+     * @return the index of the first record whose timestamp is at least the given timestamp, or
+     *         the record count if there is no such record.
+     */
+    private static long findFirstIndexAtOrAfter(
+            @NonNull final RandomAccessFile file,
+            final long timestamp) throws IOException {
+
+        long low = 0;
+        long high = getRecordCount(file);
+
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+
+            if (readTimestamp(file, middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    @Nullable
+    private static Encounter decode(@NonNull final ByteBuffer buffer) {
+        final long timestamp = buffer.getLong();
+        final int typeOrdinal = buffer.get();
+        final int userIdLength = buffer.get() & 0xFF;
+
+        if (typeOrdinal < 0
+                || typeOrdinal >= Type.values().length
+                || userIdLength > MAX_USER_ID_BYTES) {
+
+            return null;
+        }
+
+        final byte[] userIdBytes = new byte[userIdLength];
+        buffer.get(userIdBytes);
+
+        return new Encounter(
+                timestamp,
+                Type.values()[typeOrdinal],
+                new String(userIdBytes, UTF_8));
+    }
+
+}
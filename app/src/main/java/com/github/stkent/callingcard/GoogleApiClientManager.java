@@ -0,0 +1,115 @@
+package com.github.stkent.callingcard;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.auth.api.Auth;
+import com.google.android.gms.auth.api.signin.GoogleSignInOptions;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
+import com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
+import com.google.android.gms.nearby.Nearby;
+
+/**
+ * Owns the process-wide GoogleApiClient. Must only be used from the main thread.
+ */
+public final class GoogleApiClientManager {
+
+    private static final String TAG = "GoogleApiClientManager";
+
+    private static final long DISCONNECT_LINGER_MS = 5000;
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final GoogleApiClient googleApiClient;
+
+    private final Runnable disconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (referenceCount == 0
+                    && (googleApiClient.isConnected() || googleApiClient.isConnecting())) {
+
+                Log.d(TAG, "Disconnecting idle GoogleApiClient.");
+                googleApiClient.disconnect();
+            }
+        }
+    };
+
+    private int referenceCount = 0;
+
+    public GoogleApiClientManager(@NonNull final Context context) {
+        final GoogleSignInOptions googleSignInOptions
+                = new GoogleSignInOptions.Builder(GoogleSignInOptions.DEFAULT_SIGN_IN)
+                .requestEmail()
+                .build();
+
+        googleApiClient = new GoogleApiClient.Builder(context.getApplicationContext())
+                .addApi(Auth.GOOGLE_SIGN_IN_API, googleSignInOptions)
+                .addApi(Nearby.MESSAGES_API)
+                .build();
+    }
+
+    @NonNull
+    public GoogleApiClient getGoogleApiClient() {
+        return googleApiClient;
+    }
+
+    /**
+     * Registers interest in the shared connection and connects the client if necessary. Each call
+     * must be balanced by a call to {@link #release()}.
+     */
+    public void acquire() {
+        referenceCount++;
+        mainHandler.removeCallbacks(disconnectRunnable);
+        connect();
+    }
+
+    public void release() {
+        if (referenceCount == 0) {
+            Log.w(TAG, "release called without a matching acquire.");
+            return;
+        }
+
+        referenceCount--;
+
+        if (referenceCount == 0) {
+            mainHandler.postDelayed(disconnectRunnable, DISCONNECT_LINGER_MS);
+        }
+    }
+
+    /**
+     * (Re)connects the client if it is neither connected nor connecting. Callers should already
+     * hold a reference via {@link #acquire()}.
+     */
+    public void connect() {
+        if (!googleApiClient.isConnected() && !googleApiClient.isConnecting()) {
+            googleApiClient.connect();
+        }
+    }
+
+    public void registerConnectionCallbacks(@NonNull final ConnectionCallbacks callbacks) {
+        googleApiClient.registerConnectionCallbacks(callbacks);
+    }
+
+    public void unregisterConnectionCallbacks(@NonNull final ConnectionCallbacks callbacks) {
+        googleApiClient.unregisterConnectionCallbacks(callbacks);
+    }
+
+    public void registerConnectionFailedListener(
+            @NonNull final OnConnectionFailedListener listener) {
+
+        googleApiClient.registerConnectionFailedListener(listener);
+    }
+
+    public void unregisterConnectionFailedListener(
+            @NonNull final OnConnectionFailedListener listener) {
+
+        googleApiClient.unregisterConnectionFailedListener(listener);
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.github.stkent.callingcard;
+
+import android.os.StrictMode;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Debug-only record of slow frames, attributed to roster operations. Main thread only.
+ */
+final class JankMonitor implements Choreographer.FrameCallback {
+
+    enum Operation {
+        REFRESH,
+        BIND,
+        DECODE
+    }
+
+    private static final String TAG = "JankMonitor";
+
+    // Two missed vsyncs at 60 Hz.
+    private static final long SLOW_FRAME_MS = 32;
+    private static final long FROZEN_FRAME_MS = 700;
+
+    private static final int MAX_TRACKED_FRAME_MS = 1000;
+    private static final int MAX_OPERATION_DEPTH = 8;
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    /**
+     * Logs (and flashes the screen for) disk and network access on the main thread, and records
+     * it in the drop box for StrictModeViolations to count.
+     */
+    static void enableStrictMode() {
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectNetwork()
+                .penaltyLog()
+                .penaltyDropBox()
+                .penaltyFlashScreen()
+                .build());
+    }
+
+    private final boolean enabled;
+
+    // Frame durations in ms; the last bucket also counts every longer frame.
+    @NonNull
+    private final int[] frameDurationCounts = new int[MAX_TRACKED_FRAME_MS + 1];
+
+    @NonNull
+    private final Map<Operation, Integer> slowFrameCounts = new EnumMap<>(Operation.class);
+
+    @NonNull
+    private final Map<Operation, Long> slowFrameTotalMs = new EnumMap<>(Operation.class);
+
+    // Exclusive time spent in each operation since the last frame.
+    @NonNull
+    private final long[] operationNanosSinceLastFrame = new long[Operation.values().length];
+
+    @NonNull
+    private final Operation[] operationStack = new Operation[MAX_OPERATION_DEPTH];
+
+    @NonNull
+    private final long[] operationStartNanos = new long[MAX_OPERATION_DEPTH];
+
+    @NonNull
+    private final long[] operationChildNanos = new long[MAX_OPERATION_DEPTH];
+
+    private int operationDepth = 0;
+    private boolean monitoringFrames = false;
+    private long lastFrameTimeNanos = 0;
+    private int totalFrameCount = 0;
+    private int slowFrameCount = 0;
+    private int frozenFrameCount = 0;
+    private int unattributedSlowFrameCount = 0;
+    private long unattributedSlowFrameTotalMs = 0;
+    private long maxFrameMs = 0;
+
+    JankMonitor(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void startFrameMonitoring() {
+        if (!enabled || monitoringFrames) {
+            return;
+        }
+
+        monitoringFrames = true;
+        lastFrameTimeNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    void stopFrameMonitoring() {
+        if (!monitoringFrames) {
+            return;
+        }
+
+        monitoringFrames = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    void beginOperation(@NonNull final Operation operation) {
+        if (!monitoringFrames) {
+            return;
+        }
+
+        if (operationDepth == MAX_OPERATION_DEPTH) {
+            Log.w(TAG, "Operations nested too deeply; ignoring " + operation);
+            return;
+        }
+
+        operationStack[operationDepth] = operation;
+        operationStartNanos[operationDepth] = System.nanoTime();
+        operationChildNanos[operationDepth] = 0;
+        operationDepth++;
+    }
+
+    void endOperation(@NonNull final Operation operation) {
+        if (!monitoringFrames || operationDepth == 0) {
+            // Monitoring started or stopped mid-operation.
+            operationDepth = 0;
+            return;
+        }
+
+        operationDepth--;
+
+        if (operationStack[operationDepth] != operation) {
+            Log.w(TAG, "Mismatched end of " + operation + "; resetting operation stack.");
+            operationDepth = 0;
+            return;
+        }
+
+        final long totalNanos = System.nanoTime() - operationStartNanos[operationDepth];
+        operationNanosSinceLastFrame[operation.ordinal()]
+                += totalNanos - operationChildNanos[operationDepth];
+
+        if (operationDepth > 0) {
+            operationChildNanos[operationDepth - 1] += totalNanos;
+        }
+    }
+
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+        if (!monitoringFrames) {
+            return;
+        }
+
+        if (lastFrameTimeNanos != 0) {
+            recordFrame((frameTimeNanos - lastFrameTimeNanos) / NANOS_PER_MILLI);
+        }
+
+        lastFrameTimeNanos = frameTimeNanos;
+
+        for (int i = 0; i < operationNanosSinceLastFrame.length; i++) {
+            operationNanosSinceLastFrame[i] = 0;
+        }
+
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @NonNull
+    String buildReport() {
+        if (!enabled) {
+            return "Jank monitoring is only enabled in debug builds.";
+        }
+
+        final StringBuilder result = new StringBuilder();
+
+        result.append(String.format(Locale.US,
+                "Frames while discovering: %d (%d slow > %d ms, %d frozen > %d ms)\n",
+                totalFrameCount,
+                slowFrameCount,
+                SLOW_FRAME_MS,
+                frozenFrameCount,
+                FROZEN_FRAME_MS));
+
+        result.append(String.format(Locale.US,
+                "Frame time p50 %d ms, p90 %d ms, p99 %d ms, max %d ms\n\n",
+                getFramePercentileMs(50), getFramePercentileMs(90), getFramePercentileMs(99),
+                maxFrameMs));
+
+        result.append("Slow frames by operation:\n");
+
+        for (final Operation operation : Operation.values()) {
+            appendSlowFrameLine(
+                    result,
+                    operation.name(),
+                    getOrZero(slowFrameCounts.get(operation)),
+                    getOrZero(slowFrameTotalMs.get(operation)));
+        }
+
+        appendSlowFrameLine(
+                result, "UNATTRIBUTED", unattributedSlowFrameCount, unattributedSlowFrameTotalMs);
+
+        return result.toString();
+    }
+
+    private void recordFrame(final long frameMs) {
+        totalFrameCount++;
+        frameDurationCounts[(int) Math.min(frameMs, MAX_TRACKED_FRAME_MS)]++;
+        maxFrameMs = Math.max(maxFrameMs, frameMs);
+
+        if (frameMs < SLOW_FRAME_MS) {
+            return;
+        }
+
+        slowFrameCount++;
+
+        if (frameMs >= FROZEN_FRAME_MS) {
+            frozenFrameCount++;
+        }
+
+        Operation culprit = null;
+        long culpritNanos = 0;
+
+        for (final Operation operation : Operation.values()) {
+            if (operationNanosSinceLastFrame[operation.ordinal()] > culpritNanos) {
+                culprit = operation;
+                culpritNanos = operationNanosSinceLastFrame[operation.ordinal()];
+            }
+        }
+
+        if (culprit != null) {
+            slowFrameCounts.put(culprit, getOrZero(slowFrameCounts.get(culprit)) + 1);
+            slowFrameTotalMs.put(culprit, getOrZero(slowFrameTotalMs.get(culprit)) + frameMs);
+        } else {
+            unattributedSlowFrameCount++;
+            unattributedSlowFrameTotalMs += frameMs;
+        }
+
+        Log.d(TAG, "Slow frame: " + frameMs + " ms, attributed to "
+                + (culprit != null ? culprit : "nothing") + ".");
+    }
+
+    private long getFramePercentileMs(final int percentile) {
+        if (totalFrameCount == 0) {
+            return 0;
+        }
+
+        final int targetCount = (int) Math.ceil(totalFrameCount * percentile / 100.0);
+        int cumulativeCount = 0;
+
+        for (int frameMs = 0; frameMs < frameDurationCounts.length; frameMs++) {
+            cumulativeCount += frameDurationCounts[frameMs];
+
+            if (cumulativeCount >= targetCount) {
+                return frameMs;
+            }
+        }
+
+        return MAX_TRACKED_FRAME_MS;
+    }
+
+    private static void appendSlowFrameLine(
+            @NonNull final StringBuilder builder,
+            @NonNull final String label,
+            final long count,
+            final long totalMs) {
+
+        builder.append(String.format(
+                Locale.US, "  %-13s %5d frames, %6d ms\n", label, count, totalMs));
+    }
+
+    private static int getOrZero(final Integer value) {
+        return value != null ? value : 0;
+    }
+
+    private static long getOrZero(final Long value) {
+        return value != null ? value : 0;
+    }
+
+}
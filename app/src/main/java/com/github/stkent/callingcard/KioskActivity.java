@@ -0,0 +1,237 @@
+package com.github.stkent.callingcard;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.WindowManager;
+import android.widget.TextView;
+
+import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
+import com.google.android.gms.common.api.Status;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import butterknife.Bind;
+import butterknife.ButterKnife;
+
+/**
+ * Registration-desk mode: publishes a set of cards via a {@link KioskPublisher} while visible.
+ */
+public final class KioskActivity extends BaseActivity
+        implements ConnectionCallbacks, KioskPublisher.Listener {
+
+    private static final String TAG = "KioskActivity";
+
+    private static final int PUBLISHING_ERROR_RESOLUTION_CODE = 4417;
+
+    /**
+     * @param vCardUri the vCard file to publish cards from, or null to publish the saved cards.
+     */
+    protected static void launch(@NonNull final Context context, @Nullable final Uri vCardUri) {
+        final Intent intent = new Intent(context, KioskActivity.class);
+        intent.setData(vCardUri);
+        context.startActivity(intent);
+    }
+
+    @Bind(R.id.kiosk_status_text)
+    protected TextView kioskStatusText;
+
+    private KioskPublisher kioskPublisher;
+
+    private boolean cardsLoaded = false;
+    private boolean started = false;
+    private boolean resolvingError = false;
+
+    @Override
+    protected void onCreate(@Nullable final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_kiosk);
+        ButterKnife.bind(this);
+
+        // Kiosk devices sit unattended at the desk.
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        kioskPublisher = new KioskPublisher(
+                signInGoogleApiClient, CustomApplication.getGson(this), this);
+
+        final Uri vCardUri = getIntent().getData();
+
+        if (vCardUri != null) {
+            loadCardsFromVCard(vCardUri);
+        } else {
+            CustomApplication.getSavedUsersManager(this).loadSavedUsers(
+                    new SavedUsersManager.LoadCallback() {
+                        @Override
+                        public void onSavedUsersLoaded(@NonNull final List<User> users) {
+                            onCardsLoaded(users);
+                        }
+                    });
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        started = true;
+        googleApiClientManager.registerConnectionCallbacks(this);
+        startPublishingIfReady();
+    }
+
+    @Override
+    protected void onStop() {
+        started = false;
+        kioskPublisher.stop();
+        googleApiClientManager.unregisterConnectionCallbacks(this);
+        super.onStop();
+    }
+
+    @Override
+    protected void onActivityResult(
+            final int requestCode,
+            final int resultCode,
+            final Intent data) {
+
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (requestCode == PUBLISHING_ERROR_RESOLUTION_CODE) {
+            resolvingError = false;
+
+            if (resultCode == Activity.RESULT_OK) {
+                // User was presented with the Nearby opt-in dialog and pressed "Allow".
+                startPublishingIfReady();
+            } else {
+                // User declined to opt-in.
+                finish();
+            }
+        }
+    }
+
+    @Override
+    public void onConnected(@Nullable final Bundle bundle) {
+        startPublishingIfReady();
+    }
+
+    @Override
+    public void onConnectionSuspended(final int i) {
+        kioskPublisher.stop();
+        updateStatus();
+    }
+
+    @Override
+    public void onKioskStatsChanged() {
+        updateStatus();
+    }
+
+    @Override
+    public void onResolutionRequired(@NonNull final Status status) {
+        if (resolvingError) {
+            return;
+        }
+
+        try {
+            resolvingError = true;
+            status.startResolutionForResult(this, PUBLISHING_ERROR_RESOLUTION_CODE);
+        } catch (final IntentSender.SendIntentException e) {
+            resolvingError = false;
+            toastError(status.getStatusMessage());
+        }
+
+        updateStatus();
+    }
+
+    @Override
+    protected String getLogTag() {
+        return TAG;
+    }
+
+    @Override
+    protected boolean shouldBlockUntilSignedIn() {
+        // Publishing only needs the Nearby connection, not the signed-in identity.
+        return false;
+    }
+
+    private void loadCardsFromVCard(@NonNull final Uri vCardUri) {
+        final InputStream inputStream;
+
+        try {
+            inputStream = getContentResolver().openInputStream(vCardUri);
+        } catch (final FileNotFoundException e) {
+            toastError("Could not open " + vCardUri);
+            finish();
+            return;
+        }
+
+        if (inputStream == null) {
+            toastError("Could not open " + vCardUri);
+            finish();
+            return;
+        }
+
+        kioskStatusText.setText("Loading cards…");
+
+        final List<User> cards = new ArrayList<>();
+
+        VCardTransfer.importUsers(
+                inputStream,
+                Collections.<String>emptySet(),
+                new VCardTransfer.ImportListener() {
+                    @Override
+                    public void onBatchImported(@NonNull final List<User> batch) {
+                        cards.addAll(batch);
+                    }
+
+                    @Override
+                    public void onImportFinished(
+                            final int importedCount,
+                            final int skippedCount,
+                            final boolean succeeded) {
+
+                        if (!succeeded) {
+                            toastError("Could only read " + importedCount + " cards.");
+                        }
+
+                        onCardsLoaded(cards);
+                    }
+                });
+    }
+
+    private void onCardsLoaded(@NonNull final List<User> cards) {
+        if (isFinishing()) {
+            return;
+        }
+
+        if (cards.isEmpty()) {
+            toastError("No cards to publish.");
+            finish();
+            return;
+        }
+
+        kioskPublisher.setCards(cards);
+        cardsLoaded = true;
+        startPublishingIfReady();
+    }
+
+    private void startPublishingIfReady() {
+        if (cardsLoaded && started && !resolvingError && signInGoogleApiClient.isConnected()) {
+            kioskPublisher.resume();
+        }
+
+        updateStatus();
+    }
+
+    private void updateStatus() {
+        if (cardsLoaded) {
+            kioskStatusText.setText(kioskPublisher.buildReport());
+        }
+    }
+
+}
@@ -0,0 +1,351 @@
+package com.github.stkent.callingcard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.messages.Message;
+import com.google.gson.Gson;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Publishes a set of cards from one device by rotating them through a fixed number of publish
+ * slots. Must only be used from the main thread.
+ */
+final class KioskPublisher {
+
+    interface Listener {
+        void onKioskStatsChanged();
+
+        /**
+         * Called when publishing needs the user's consent. Publishing is paused until
+         * {@link #resume()} is called.
+         */
+        void onResolutionRequired(@NonNull final Status status);
+    }
+
+    private static final class CardStats {
+        private int publishCount = 0;
+        private int failureCount = 0;
+        private long totalLatencyMs = 0;
+        private long maxLatencyMs = 0;
+    }
+
+    // Stays below Nearby's limit on concurrent publications per app.
+    static final int MAX_PUBLISHED_CARDS = 5;
+
+    static final long ROTATION_INTERVAL_MS = 3000;
+
+    private static final int REPORTED_CARD_COUNT = 5;
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final GoogleApiClient googleApiClient;
+
+    @NonNull
+    private final Gson gson;
+
+    @NonNull
+    private final Listener listener;
+
+    @NonNull
+    private final Queue<User> waitingCards = new ArrayDeque<>();
+
+    // Cards currently occupying a publish slot, oldest first.
+    @NonNull
+    private final Map<User, Message> publishedCards = new LinkedHashMap<>();
+
+    // The legacy message published alongside each card in publishedCards.
+    @NonNull
+    private final Map<User, Message> publishedLegacyMessages = new HashMap<>();
+
+    @NonNull
+    private final Map<User, CardStats> cardStats = new HashMap<>();
+
+    private final Runnable rotateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            rotate();
+        }
+    };
+
+    private boolean running = false;
+    private int cardCount = 0;
+    private int successCount = 0;
+    private int failureCount = 0;
+    private long totalLatencyMs = 0;
+    private long maxLatencyMs = 0;
+
+    KioskPublisher(
+            @NonNull final GoogleApiClient googleApiClient,
+            @NonNull final Gson gson,
+            @NonNull final Listener listener) {
+
+        this.googleApiClient = googleApiClient;
+        this.gson = gson;
+        this.listener = listener;
+    }
+
+    /**
+     * Replaces the card set and resets all statistics. Does not start publishing.
+     */
+    void setCards(@NonNull final List<User> cards) {
+        stop();
+
+        waitingCards.clear();
+        cardStats.clear();
+
+        for (final User card : cards) {
+            if (card.isValid() && !cardStats.containsKey(card)) {
+                waitingCards.add(card);
+                cardStats.put(card, new CardStats());
+            }
+        }
+
+        cardCount = waitingCards.size();
+        successCount = 0;
+        failureCount = 0;
+        totalLatencyMs = 0;
+        maxLatencyMs = 0;
+    }
+
+    int getCardCount() {
+        return cardCount;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    void resume() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        rotate();
+    }
+
+    /**
+     * Unpublishes every card. The rotation continues from the same place on {@link #resume()}.
+     */
+    void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        mainHandler.removeCallbacks(rotateRunnable);
+
+        for (final Iterator<User> iterator = publishedCards.keySet().iterator();
+                iterator.hasNext(); ) {
+
+            final User card = iterator.next();
+
+            if (googleApiClient.isConnected()) {
+                Nearby.Messages.unpublish(googleApiClient, publishedCards.get(card));
+                Nearby.Messages.unpublish(googleApiClient, publishedLegacyMessages.get(card));
+            }
+
+            iterator.remove();
+            publishedLegacyMessages.remove(card);
+            waitingCards.add(card);
+        }
+    }
+
+    @NonNull
+    String buildReport() {
+        final StringBuilder result = new StringBuilder();
+        final int attemptCount = successCount + failureCount;
+        final long cycleMs = Math.max(cardCount, MAX_PUBLISHED_CARDS) * ROTATION_INTERVAL_MS;
+
+        result.append(String.format(Locale.US,
+                "%s: %d cards, %d of %d slots in use\n"
+                        + "One card every %.1f s; each card shown %d s of every %d s\n\n",
+                running ? "PUBLISHING" : "PAUSED",
+                cardCount,
+                publishedCards.size(),
+                MAX_PUBLISHED_CARDS,
+                ROTATION_INTERVAL_MS / 1000f,
+                MAX_PUBLISHED_CARDS * ROTATION_INTERVAL_MS / 1000,
+                cycleMs / 1000));
+
+        result.append(String.format(Locale.US,
+                "Publishes: %d succeeded, %d failed\n"
+                        + "Latency: avg %d ms, max %d ms\n",
+                successCount,
+                failureCount,
+                attemptCount > 0 ? totalLatencyMs / attemptCount : 0,
+                maxLatencyMs));
+
+        appendWorstCards(result, "\nSlowest cards (max latency):\n", new Comparator<CardStats>() {
+            @Override
+            public int compare(final CardStats lhs, final CardStats rhs) {
+                return compareLongs(rhs.maxLatencyMs, lhs.maxLatencyMs);
+            }
+        });
+
+        if (failureCount > 0) {
+            appendWorstCards(result, "\nMost failures:\n", new Comparator<CardStats>() {
+                @Override
+                public int compare(final CardStats lhs, final CardStats rhs) {
+                    return compareLongs(rhs.failureCount, lhs.failureCount);
+                }
+            });
+        }
+
+        return result.toString();
+    }
+
+    private void rotate() {
+        if (!running) {
+            return;
+        }
+
+        // With fewer cards than slots, every card simply stays published.
+        if (!waitingCards.isEmpty()) {
+            if (publishedCards.size() >= MAX_PUBLISHED_CARDS) {
+                unpublishOldest();
+            }
+
+            publishNext();
+        }
+
+        mainHandler.postDelayed(rotateRunnable, ROTATION_INTERVAL_MS);
+    }
+
+    private void unpublishOldest() {
+        final Iterator<Map.Entry<User, Message>> iterator = publishedCards.entrySet().iterator();
+        final Map.Entry<User, Message> oldest = iterator.next();
+
+        Nearby.Messages.unpublish(googleApiClient, oldest.getValue());
+        Nearby.Messages.unpublish(
+                googleApiClient, publishedLegacyMessages.remove(oldest.getKey()));
+
+        iterator.remove();
+        waitingCards.add(oldest.getKey());
+    }
+
+    private void publishNext() {
+        final User card = waitingCards.remove();
+        final Message message = CardMessages.encode(gson, card);
+        final Message legacyMessage = CardMessages.encodeLegacy(gson, card);
+        final long publishStartTimeMs = SystemClock.elapsedRealtime();
+
+        publishedCards.put(card, message);
+        publishedLegacyMessages.put(card, legacyMessage);
+
+        // Only the typed publish is tracked; the legacy one shares its fate.
+        Nearby.Messages.publish(googleApiClient, legacyMessage);
+
+        Nearby.Messages.publish(googleApiClient, message).setResultCallback(
+                new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(@NonNull final Status status) {
+                        onPublishResult(
+                                card,
+                                message,
+                                status,
+                                SystemClock.elapsedRealtime() - publishStartTimeMs);
+                    }
+                });
+    }
+
+    private void onPublishResult(
+            @NonNull final User card,
+            @NonNull final Message message,
+            @NonNull final Status status,
+            final long latencyMs) {
+
+        final CardStats stats = cardStats.get(card);
+
+        if (stats == null) {
+            // The card set was replaced while this publish was in flight.
+            return;
+        }
+
+        totalLatencyMs += latencyMs;
+        maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+        stats.totalLatencyMs += latencyMs;
+        stats.maxLatencyMs = Math.max(stats.maxLatencyMs, latencyMs);
+
+        if (status.isSuccess()) {
+            successCount++;
+            stats.publishCount++;
+        } else {
+            failureCount++;
+            stats.failureCount++;
+
+            // Free the slot (unless the card has already been rotated out) and retry it later.
+            if (publishedCards.get(card) == message) {
+                publishedCards.remove(card);
+                Nearby.Messages.unpublish(googleApiClient, publishedLegacyMessages.remove(card));
+                waitingCards.add(card);
+            }
+
+            if (status.hasResolution()) {
+                stop();
+                listener.onResolutionRequired(status);
+            }
+        }
+
+        listener.onKioskStatsChanged();
+    }
+
+    private void appendWorstCards(
+            @NonNull final StringBuilder builder,
+            @NonNull final String title,
+            @NonNull final Comparator<CardStats> comparator) {
+
+        final List<Map.Entry<User, CardStats>> entries = new ArrayList<>(cardStats.entrySet());
+
+        Collections.sort(entries, new Comparator<Map.Entry<User, CardStats>>() {
+            @Override
+            public int compare(
+                    final Map.Entry<User, CardStats> lhs,
+                    final Map.Entry<User, CardStats> rhs) {
+
+                return comparator.compare(lhs.getValue(), rhs.getValue());
+            }
+        });
+
+        builder.append(title);
+
+        for (int i = 0; i < Math.min(REPORTED_CARD_COUNT, entries.size()); i++) {
+            final User card = entries.get(i).getKey();
+            final CardStats stats = entries.get(i).getValue();
+            final int attemptCount = stats.publishCount + stats.failureCount;
+
+            builder.append(String.format(Locale.US,
+                    "  %-24.24s %3d ok %3d failed, avg %4d ms, max %4d ms\n",
+                    card.getName(),
+                    stats.publishCount,
+                    stats.failureCount,
+                    attemptCount > 0 ? stats.totalLatencyMs / attemptCount : 0,
+                    stats.maxLatencyMs));
+        }
+    }
+
+    private static int compareLongs(final long lhs, final long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+}
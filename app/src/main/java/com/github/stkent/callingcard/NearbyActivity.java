@@ -1,216 +1,305 @@
 package com.github.stkent.callingcard;
 
+import android.Manifest;
 import android.app.Activity;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentSender;
+import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.design.widget.Snackbar;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AlertDialog;
+import android.support.v7.widget.SearchView;
 import android.support.v7.widget.SwitchCompat;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.AdapterView;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import com.google.android.gms.auth.api.Auth;
+import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
 import com.google.android.gms.auth.api.signin.GoogleSignInResult;
 import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
-import com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
-import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.messages.Message;
-import com.google.android.gms.nearby.messages.MessageListener;
-import com.google.android.gms.nearby.messages.PublishCallback;
-import com.google.android.gms.nearby.messages.PublishOptions;
-import com.google.android.gms.nearby.messages.SubscribeCallback;
-import com.google.android.gms.nearby.messages.SubscribeOptions;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonSyntaxException;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import butterknife.Bind;
 import butterknife.ButterKnife;
 
 public final class NearbyActivity extends BaseActivity
-        implements ConnectionCallbacks, OnConnectionFailedListener, OnCheckedChangeListener, UsersView.UserClickListener {
+        implements NearbySession.Listener, OnCheckedChangeListener, UsersView.UserClickListener {
 
     private static final String TAG = "NearbyActivity";
 
-    private static final Gson GSON = new GsonBuilder()
-            .registerTypeAdapter(Uri.class, new UriTypeAdapter())
-            .create();
-
     private static final String USER_DATA_EXTRA_KEY = "USER_DATA_EXTRA_KEY";
     private static final int PUBLISHING_ERROR_RESOLUTION_CODE = 5321;
     private static final int SUBSCRIBING_ERROR_RESOLUTION_CODE = 6546;
+    private static final int IMPORT_VCARD_REQUEST_CODE = 7713;
+    private static final int KIOSK_VCARD_REQUEST_CODE = 7714;
+    private static final String EXPORTED_VCARD_FILE_NAME = "saved_cards.vcf";
+    private static final String VCARD_MIME_TYPE = "text/x-vcard";
+    private static final String CONTACTS_EXPORT_PREFS_NAME = "contacts_export";
+    private static final int WRITE_CONTACTS_PERMISSION_REQUEST_CODE = 8824;
+    private static final int UNDO_WINDOW_MS = 5000;
 
     protected static void launchWithUserData(
             @NonNull final User user,
             @NonNull final Context context) {
 
+        context.startActivity(createIntent(user, context));
+    }
+
+    @NonNull
+    static Intent createIntent(@NonNull final User user, @NonNull final Context context) {
         final Intent intent = new Intent(context, NearbyActivity.class);
         intent.putExtra(USER_DATA_EXTRA_KEY, user);
-        context.startActivity(intent);
+        return intent;
     }
 
-    private final PublishCallback publishCallback = new PublishCallback() {
-        // Note: this seems to be invoked on a background thread!
-        @Override
-        public void onExpired() {
-            /*
-             * From https://developers.google.com/nearby/messages/android/pub-sub:
-             *
-             *   When actively publishing and subscribing, a "Nearby is in use" notification is
-             *   presented, informing users that Nearby is active. This notification is only
-             *   displayed when one or more apps are actively using Nearby, giving users a chance
-             *   to conserve battery life if Nearby is not needed. It provides users with the
-             *   following options:
-             *
-             *     - Navigate to an app to disable Nearby.
-             *     - Force an app to stop using Nearby.
-             *     - Navigate to the Nearby Settings screen.
-             *
-             *   You can use PublishCallback() [and SubscribeCallback()] to listen for cases when a
-             *   user forces the app to stop using Nearby. When this happens, the onExpired()
-             *   method is triggered.
-             */
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    cancelAllNearbyOperations();
-                }
-            });
-        }
-    };
+    @Bind(R.id.publishing_switch)
+    protected SwitchCompat publishingSwitch;
 
-    private final SubscribeCallback subscribeCallback = new SubscribeCallback() {
-        // All comments in publishCallback apply here too.
-        @Override
-        public void onExpired() {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    cancelAllNearbyOperations();
-                }
-            });
-        }
-    };
+    @Bind(R.id.published_user_view)
+    protected UserView publishedUserView;
 
-    private final PublishOptions publishOptions
-            = new PublishOptions.Builder().setCallback(publishCallback).build();
+    @Bind(R.id.subscribing_switch)
+    protected SwitchCompat subscribingSwitch;
 
-    private final SubscribeOptions subscribeOptions
-            = new SubscribeOptions.Builder().setCallback(subscribeCallback).build();
+    @Bind(R.id.nearby_users_view)
+    protected UsersView nearbyUsersView;
 
-    private final MessageListener messageListener = new MessageListener() {
-        // Invoked once when a newly-published message is detected.
-        @Override
-        public void onFound(final Message message) {
-            try {
-                final User user = GSON.fromJson(new String(message.getContent()), User.class);
+    @Bind(R.id.nearby_users_overflow_view)
+    protected TextView nearbyUsersOverflowView;
 
-                if (!nearbyUsers.contains(user)) {
-                    Log.d(TAG, "Discovered " + user.getName());
+    @Bind(R.id.saved_users_list_view)
+    protected ListView savedUsersListView;
 
-                    nearbyUsers.add(user);
-                    refreshUsersViews();
-                }
-            } catch (final JsonSyntaxException e) {
-                Log.e(TAG, "Invalid message received: " + new String(message.getContent()));
-                Log.e(TAG, "Invalid message exception:", e);
-            }
-        }
+    @Bind(R.id.saved_users_empty_state_view)
+    protected TextView savedUsersEmptyStateView;
 
-        // Invoked once when previously-received message is lost.
-        @Override
-        public void onLost(final Message message) {
-            try {
-                final User user = GSON.fromJson(new String(message.getContent()), User.class);
+    private StartupTracer startupTracer;
+    private User publishedUser;
+    private SignedInUserManager signedInUserManager;
+    private BackgroundDiscovery backgroundDiscovery;
+    private NearbySession nearbySession;
+    private String savedUsersQuery = "";
+
+    @Nullable
+    private ProgressDialog contactsExportProgressDialog;
 
-                if (nearbyUsers.contains(user)) {
-                    Log.d(TAG, "Lost " + user.getName());
+    private SavedUsersAdapter savedUsersAdapter;
 
-                    nearbyUsers.remove(user);
-                    refreshUsersViews();
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable coalescedRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshUsersViews();
+        }
+    };
+
+    // Handles the result of subscribe(), and of each resubscription while duty-cycled.
+    private final ResultCallback<Status> subscribeResultCallback = new ResultCallback<Status>() {
+        @Override
+        public void onResult(@NonNull final Status status) {
+            if (status.isSuccess()) {
+                attemptingToSubscribe = false;
+            } else if (status.hasResolution() && subscribingSwitch.isChecked()) {
+                try {
+                    status.startResolutionForResult(
+                            NearbyActivity.this, SUBSCRIBING_ERROR_RESOLUTION_CODE);
+
+                } catch (final IntentSender.SendIntentException e) {
+                    attemptingToSubscribe = false;
+                    toastError(status.getStatusMessage());
                 }
-            } catch (final JsonSyntaxException e) {
-                Log.e(TAG, "Invalid message reported as lost: " + new String(message.getContent()));
-                Log.e(TAG, "Invalid message exception:", e);
+            } else {
+                /*
+                 * This branch will be hit if we cancel subscribing before the initial async call to
+                 * subscribe has completed (determined experimentally).
+                 */
+                attemptingToSubscribe = false;
+                toastError(status.getStatusMessage());
+                // TODO: error-specific handling if desired
             }
         }
     };
 
-    private final List<User> nearbyUsers = new ArrayList<>();
-    private final List<User> savedUsers = new ArrayList<>();
-
-    @Bind(R.id.publishing_switch)
-    protected SwitchCompat publishingSwitch;
-
-    @Bind(R.id.published_user_view)
-    protected UserView publishedUserView;
-
-    @Bind(R.id.subscribing_switch)
-    protected SwitchCompat subscribingSwitch;
-
-    @Bind(R.id.nearby_users_view)
-    protected UsersView nearbyUsersView;
-
-    @Bind(R.id.saved_users_view)
-    protected UsersView savedUsersView;
-
-    private Message messageToPublish;
-    private GoogleApiClient nearbyGoogleApiClient;
-    private SavedUsersManager savedUsersManager;
     private boolean attemptingToPublish = false;
     private boolean attemptingToSubscribe = false;
+    private boolean refreshScheduled = false;
+
+    /*
+     * True when the roster snapshot should be reloaded on the next start: for a new session, or
+     * after a real stop. A session retained across a configuration change still holds its roster.
+     */
+    private boolean rosterSnapshotRestoreNeeded = false;
+
+    // Set when the last background subscription failed, so it can be reported on the next start.
+    private boolean backgroundSubscriptionFailed = false;
 
     @Override
     protected void onCreate(@Nullable final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_nearby);
+
+        // Everything above the saved cards scrolls with them as the list's header.
+        final ListView listView = (ListView) findViewById(R.id.saved_users_list_view);
+        listView.addHeaderView(
+                getLayoutInflater().inflate(R.layout.include_nearby_header, listView, false),
+                null,
+                false);
+
         ButterKnife.bind(this);
 
+        startupTracer = CustomApplication.getStartupTracer(this);
+        startupTracer.mark(StartupTracer.Milestone.NEARBY_CONTENT_BOUND);
+
+        publishedUser = getIntent().getParcelableExtra(USER_DATA_EXTRA_KEY);
+
+        final Gson gson = CustomApplication.getGson(this);
+        signedInUserManager = CustomApplication.getSignedInUserManager(this);
+        backgroundDiscovery = new BackgroundDiscovery(
+                getSharedPreferences(BackgroundDiscovery.PREFS_NAME, MODE_PRIVATE));
+
+        nearbySession = (NearbySession) getLastCustomNonConfigurationInstance();
+
+        if (nearbySession == null) {
+            rosterSnapshotRestoreNeeded = true;
+            nearbySession = new NearbySession(
+                    googleApiClientManager,
+                    publishedUser,
+                    gson,
+                    CustomApplication.getSavedUsersManager(this),
+                    CustomApplication.getSavedAvatarStore(this),
+                    CustomApplication.getRosterSnapshotStore(this),
+                    CustomApplication.getCollectedCardStore(this),
+                    CustomApplication.getEncounterLog(this),
+                    CustomApplication.getJankMonitor(this),
+                    CustomApplication.getCardStore(this),
+                    CustomApplication.getPerformanceProfile(this));
+        }
+
+        nearbySession.setListener(this);
+
+        // A retained session has usually loaded its saved users already.
+        if (nearbySession.areSavedUsersLoaded()) {
+            startupTracer.mark(StartupTracer.Milestone.SAVED_USERS_LOADED);
+        }
+
+        // The retained session may already be publishing an updated card.
+        publishedUser = nearbySession.getPublishedUser();
+        publishedUserView.bindUser(publishedUser);
+        createPublishedThumbnailIfNeeded();
+        publishedUserView.setPublishing(nearbySession.isPublishing());
+
+        /*
+         * The retained session is the source of truth for the switch states. Restoring them from
+         * the saved view hierarchy instead would fire onCheckedChanged after a configuration change
+         * and re-issue publish/subscribe calls that are still active.
+         */
+        publishingSwitch.setSaveEnabled(false);
+        subscribingSwitch.setSaveEnabled(false);
+        publishingSwitch.setChecked(nearbySession.isPublishing());
+        subscribingSwitch.setChecked(nearbySession.isSubscribing());
         publishingSwitch.setOnCheckedChangeListener(this);
         subscribingSwitch.setOnCheckedChangeListener(this);
 
-        final User user = getIntent().getParcelableExtra(USER_DATA_EXTRA_KEY);
-        publishedUserView.bindUser(user);
-        publishedUserView.setPublishing(false);
-        messageToPublish = new Message(GSON.toJson(user).getBytes());
-
         nearbyUsersView.setUserClickListener(this);
-        savedUsersView.setUserClickListener(this);
+        savedUsersAdapter = new SavedUsersAdapter(
+                this,
+                CustomApplication.getSavedAvatarStore(this));
+
+        savedUsersListView.setAdapter(savedUsersAdapter);
+        savedUsersListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(
+                    final AdapterView<?> parent,
+                    final View view,
+                    final int position,
+                    final long id) {
+
+                onUserClick((User) parent.getItemAtPosition(position));
+            }
+        });
 
-        savedUsersManager = new SavedUsersManager(
-                PreferenceManager.getDefaultSharedPreferences(this),
-                GSON);
+        syncSwitchEnabledStatesWithGoogleApiClientState();
+    }
 
-        nearbyGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addApi(Nearby.MESSAGES_API)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .build();
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return nearbySession;
+    }
 
-        syncSwitchEnabledStatesWithGoogleApiClientState();
+    @Override
+    protected void onDestroy() {
+        mainHandler.removeCallbacks(coalescedRefresh);
+        dismissContactsExportProgressDialog();
+        nearbySession.setListener(null);
+
+        if (!isChangingConfigurations()) {
+            nearbySession.destroy();
+        }
+
+        super.onDestroy();
     }
 
     @Override
     public boolean onCreateOptionsMenu(final Menu menu) {
         final MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_startup_report).setVisible(BuildConfig.DEBUG);
+        menu.findItem(R.id.action_diagnostics).setVisible(BuildConfig.DEBUG);
+        menu.findItem(R.id.action_collect_in_background)
+                .setChecked(backgroundDiscovery.isEnabled());
+
+        final SearchView searchView = (SearchView) MenuItemCompat.getActionView(
+                menu.findItem(R.id.action_search_saved_cards));
+
+        searchView.setQueryHint("Search saved cards");
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(final String query) {
+                return false;
+            }
+
+            @Override
+            public boolean onQueryTextChange(final String newText) {
+                savedUsersQuery = newText;
+                refreshUsersViews();
+                return true;
+            }
+        });
+
         return true;
     }
 
@@ -223,8 +312,10 @@ public final class NearbyActivity extends BaseActivity
                             new ResultCallback<Status>() {
                                 @Override
                                 public void onResult(@NonNull final Status status) {
+                                    stopBackgroundDiscovery();
+                                    signedInUserManager.clearSignedInUser();
                                     cancelAllNearbyOperations();
-                                    disconnectNearbyGoogleApiClient();
+                                    disconnectNearbySession();
 
                                     NearbyActivity.this.startActivity(
                                             new Intent(NearbyActivity.this, SignInActivity.class));
@@ -239,6 +330,68 @@ public final class NearbyActivity extends BaseActivity
                     toastSignOutFailedError();
                 }
 
+                return true;
+            case R.id.action_collect_in_background:
+                final boolean collectInBackground = !item.isChecked();
+                item.setChecked(collectInBackground);
+                backgroundDiscovery.setEnabled(collectInBackground);
+
+                if (!collectInBackground) {
+                    stopBackgroundDiscovery();
+                }
+
+                return true;
+            case R.id.action_clear_collected_cards:
+                nearbySession.clearCollectedUsers();
+                refreshUsersViews();
+                return true;
+            case R.id.action_save_all_nearby:
+                saveAllNearbyUsers();
+                return true;
+            case R.id.action_export_saved_cards:
+                exportSavedUsers();
+                return true;
+            case R.id.action_export_saved_cards_to_contacts:
+                if (ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_CONTACTS)
+                        == PackageManager.PERMISSION_GRANTED) {
+
+                    exportSavedUsersToContacts();
+                } else {
+                    ActivityCompat.requestPermissions(
+                            this,
+                            new String[] {Manifest.permission.WRITE_CONTACTS},
+                            WRITE_CONTACTS_PERMISSION_REQUEST_CODE);
+                }
+
+                return true;
+            case R.id.action_kiosk_mode:
+                showKioskSourceDialog();
+                return true;
+            case R.id.action_import_saved_cards:
+                final Intent importIntent = new Intent(Intent.ACTION_GET_CONTENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("text/*");
+
+                startActivityForResult(importIntent, IMPORT_VCARD_REQUEST_CODE);
+                return true;
+            case R.id.action_performance_profile:
+                showPerformanceProfileDialog();
+                return true;
+            case R.id.action_diagnostics:
+                startActivity(new Intent(this, DiagnosticsActivity.class));
+                return true;
+            case R.id.action_startup_report:
+                startupTracer.buildReport(new StartupTracer.ReportCallback() {
+                    @Override
+                    public void onReportReady(@NonNull final String report) {
+                        new AlertDialog.Builder(NearbyActivity.this)
+                                .setTitle(R.string.action_startup_report)
+                                .setMessage(report)
+                                .setPositiveButton("OK", null)
+                                .show();
+                    }
+                });
+
                 return true;
             default:
                 return super.onOptionsItemSelected(item);
@@ -249,19 +402,57 @@ public final class NearbyActivity extends BaseActivity
     protected void onStart() {
         super.onStart();
 
-        savedUsers.clear();
-        savedUsers.addAll(savedUsersManager.getSavedUsers());
-        refreshUsersViews();
+        if (rosterSnapshotRestoreNeeded) {
+            rosterSnapshotRestoreNeeded = false;
+            nearbySession.restoreRosterSnapshot();
+        }
 
-        if (!nearbyGoogleApiClient.isConnected() && !nearbyGoogleApiClient.isConnecting()) {
-            nearbyGoogleApiClient.connect();
+        if (backgroundSubscriptionFailed) {
+            backgroundSubscriptionFailed = false;
+            toastError("Could not collect cards in the background.");
         }
+
+        final String backgroundDiscoverySummary = backgroundDiscovery.consumeUnreportedSummary();
+
+        if (backgroundDiscoverySummary != null) {
+            Log.d(TAG, backgroundDiscoverySummary);
+            Toast.makeText(this, backgroundDiscoverySummary, Toast.LENGTH_LONG).show();
+        }
+
+        refreshUsersViews();
+        markFirstRosterFrame();
+        nearbySession.connect();
     }
 
     @Override
     protected void onStop() {
-        cancelAllNearbyOperations();
-        disconnectNearbyGoogleApiClient();
+        // The session outlives configuration changes, so only tear it down when really leaving.
+        if (!isChangingConfigurations()) {
+            if (backgroundDiscovery.isEnabled()
+                    && subscribingSwitch.isChecked()
+                    && nearbySession.isConnected()) {
+
+                // Keep collecting cards at low power until the activity is next started.
+                nearbySession.subscribeInBackground(BackgroundDiscovery.getPendingIntent(this))
+                        .setResultCallback(new ResultCallback<Status>() {
+                            @Override
+                            public void onResult(@NonNull final Status status) {
+                                if (!status.isSuccess()) {
+                                    Log.w(TAG, "Background subscription failed: " + status);
+                                    backgroundSubscriptionFailed = true;
+                                }
+                            }
+                        });
+            }
+
+            cancelAllNearbyOperations();
+            disconnectNearbySession();
+            rosterSnapshotRestoreNeeded = true;
+        }
+
+        // Don't hold pending saves for the rest of the commit window once we're in the background.
+        CustomApplication.getSavedUsersManager(this).commitSoon();
+
         super.onStop();
     }
 
@@ -289,6 +480,31 @@ public final class NearbyActivity extends BaseActivity
             }
 
             attemptingToSubscribe = false;
+        } else if (requestCode == IMPORT_VCARD_REQUEST_CODE) {
+            if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                importSavedUsers(data.getData());
+            }
+        } else if (requestCode == KIOSK_VCARD_REQUEST_CODE) {
+            if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                KioskActivity.launch(this, data.getData());
+            }
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(
+            final int requestCode,
+            @NonNull final String[] permissions,
+            @NonNull final int[] grantResults) {
+
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+
+        if (requestCode == WRITE_CONTACTS_PERMISSION_REQUEST_CODE) {
+            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                exportSavedUsersToContacts();
+            } else {
+                toastError("Contacts permission is required to export saved cards.");
+            }
         }
     }
 
@@ -297,10 +513,10 @@ public final class NearbyActivity extends BaseActivity
         switch (buttonView.getId()) {
             case R.id.publishing_switch:
                 if (publishingSwitch.isChecked()) {
-                    if (nearbyGoogleApiClient.isConnected()) {
+                    if (nearbySession.isConnected()) {
                         attemptToPublish();
-                    } else if (!nearbyGoogleApiClient.isConnecting()) {
-                        nearbyGoogleApiClient.connect();
+                    } else {
+                        nearbySession.connect();
                     }
                 } else {
                     stopPublishing();
@@ -310,10 +526,10 @@ public final class NearbyActivity extends BaseActivity
                 break;
             case R.id.subscribing_switch:
                 if (subscribingSwitch.isChecked()) {
-                    if (nearbyGoogleApiClient.isConnected()) {
+                    if (nearbySession.isConnected()) {
                         attemptToSubscribe();
-                    } else if (!nearbyGoogleApiClient.isConnecting()) {
-                        nearbyGoogleApiClient.connect();
+                    } else {
+                        nearbySession.connect();
                     }
                 } else {
                     stopSubscribing();
@@ -328,8 +544,12 @@ public final class NearbyActivity extends BaseActivity
 
     @Override
     public void onConnected(@Nullable final Bundle bundle) {
+        startupTracer.mark(StartupTracer.Milestone.GOOGLE_API_CLIENT_CONNECTED);
         syncSwitchEnabledStatesWithGoogleApiClientState();
 
+        // The foreground subscription takes over from any background one.
+        stopBackgroundDiscovery();
+
         if (publishingSwitch.isChecked()) {
             attemptToPublish();
         }
@@ -352,25 +572,103 @@ public final class NearbyActivity extends BaseActivity
         // TODO: all usual error handling and resolution goes here
     }
 
+    @Override
+    public void onNearbyUsersChanged() {
+        final long coalescingMs
+                = CustomApplication.getPerformanceProfile(this).getRefreshCoalescingMs();
+
+        if (coalescingMs == 0) {
+            refreshUsersViews();
+        } else if (!refreshScheduled) {
+            refreshScheduled = true;
+            mainHandler.postDelayed(coalescedRefresh, coalescingMs);
+        }
+    }
+
+    @Override
+    public void onSavedUsersLoaded() {
+        startupTracer.mark(StartupTracer.Milestone.SAVED_USERS_LOADED);
+        refreshUsersViews();
+    }
+
+    @Override
+    public void onNearbyOperationsExpired() {
+        cancelAllNearbyOperations();
+    }
+
+    @Override
+    public void onSubscriptionResumed(@NonNull final Status status) {
+        // A resolution for a failed resubscription resubscribes, as it does for subscribe().
+        attemptingToSubscribe = true;
+        subscribeResultCallback.onResult(status);
+    }
+
+    @Override
+    public void onSavedUsersImported(
+            final int importedCount,
+            final int skippedCount,
+            final boolean succeeded) {
+
+        refreshUsersViews();
+
+        if (succeeded) {
+            final String message
+                    = "Imported " + importedCount + " cards (" + skippedCount + " skipped).";
+
+            Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+        } else {
+            toastError("Import failed after " + importedCount + " cards.");
+        }
+    }
+
     @Override
     protected String getLogTag() {
         return TAG;
     }
 
+    @Override
+    protected boolean shouldBlockUntilSignedIn() {
+        // This screen may have been launched optimistically from the cached identity; sign-in is
+        // re-validated in the background and rolled back in handleSignInResult if it fails.
+        return false;
+    }
+
     @Override
     protected void handleSignInResult(final GoogleSignInResult result) {
         super.handleSignInResult(result);
 
-        if (!result.isSuccess()) {
+        final GoogleSignInAccount account = result.isSuccess() ? result.getSignInAccount() : null;
+        final User verifiedUser = account != null ? new User(account) : null;
+
+        if (verifiedUser == null || !verifiedUser.isValid()) {
+            signedInUserManager.clearSignedInUser();
+            cancelAllNearbyOperations();
+            disconnectNearbySession();
+
             toastError("Sign-in required.");
             startActivity(new Intent(this, SignInActivity.class));
             finish();
+        } else if (!verifiedUser.equals(publishedUser)) {
+            // The cached identity belongs to a different account than the one now signed in.
+            signedInUserManager.setSignedInUser(verifiedUser);
+            cancelAllNearbyOperations();
+            disconnectNearbySession();
+
+            launchWithUserData(verifiedUser, this);
+            finish();
+        } else if (verifiedUser.withThumbnail(publishedUser.getThumbnail())
+                .hasSameCardContents(publishedUser)) {
+
+            // Keep the cached thumbnail; the account details it was made from are unchanged.
+            signedInUserManager.setSignedInUser(publishedUser);
+        } else {
+            signedInUserManager.setSignedInUser(verifiedUser);
         }
     }
 
     @Override
     public void onUserClick(@NonNull final User user) {
-        if (savedUsers.contains(user)) {
+        if (nearbySession.getSavedUsers().contains(user)) {
             showDeleteUserDialog(user);
         } else {
             showSaveUserDialog(user);
@@ -381,22 +679,25 @@ public final class NearbyActivity extends BaseActivity
         publishingSwitch.setChecked(false);
         subscribingSwitch.setChecked(false);
 
-        nearbyUsers.clear();
+        nearbySession.clearNearbyUsers();
         refreshUsersViews();
     }
 
-    private void disconnectNearbyGoogleApiClient() {
-        if (nearbyGoogleApiClient.isConnected() || nearbyGoogleApiClient.isConnecting()) {
-            nearbyGoogleApiClient.disconnect();
+    private void stopBackgroundDiscovery() {
+        if (nearbySession.isConnected()) {
+            nearbySession.unsubscribeInBackground(BackgroundDiscovery.getPendingIntent(this));
         }
+    }
 
+    private void disconnectNearbySession() {
+        nearbySession.disconnect();
         syncSwitchEnabledStatesWithGoogleApiClientState();
     }
 
     private void attemptToPublish() {
         attemptingToPublish = true;
 
-        Nearby.Messages.publish(nearbyGoogleApiClient, messageToPublish, publishOptions)
+        nearbySession.publish()
                 .setResultCallback(new ResultCallback<Status>() {
                     @Override
                     public void onResult(@NonNull final Status status) {
@@ -428,51 +729,22 @@ public final class NearbyActivity extends BaseActivity
     }
 
     private void stopPublishing() {
-        // TODO: check PendingResult of this call and retry if it is not a success?
-        Nearby.Messages.unpublish(nearbyGoogleApiClient, messageToPublish);
+        nearbySession.unpublish();
         publishedUserView.setPublishing(false);
     }
 
     private void attemptToSubscribe() {
         attemptingToSubscribe = true;
-
-        Nearby.Messages.subscribe(nearbyGoogleApiClient, messageListener, subscribeOptions)
-                .setResultCallback(new ResultCallback<Status>() {
-                    @Override
-                    public void onResult(@NonNull final Status status) {
-                        if (status.isSuccess()) {
-                            attemptingToSubscribe = false;
-                        } else if (status.hasResolution() && subscribingSwitch.isChecked()) {
-                            try {
-                                status.startResolutionForResult(
-                                        NearbyActivity.this, SUBSCRIBING_ERROR_RESOLUTION_CODE);
-
-                            } catch (final IntentSender.SendIntentException e) {
-                                attemptingToSubscribe = false;
-                                toastError(status.getStatusMessage());
-                            }
-                        } else {
-                            /*
-                             * This branch will be hit if we cancel subscribing before the initial
-                             * async call to subscribe has completed (determined experimentally).
-                             */
-                            attemptingToSubscribe = false;
-                            toastError(status.getStatusMessage());
-                            // TODO: error-specific handling if desired
-                        }
-                    }
-                });
+        nearbySession.subscribe().setResultCallback(subscribeResultCallback);
     }
 
     private void stopSubscribing() {
-        // TODO: check PendingResult of this call and retry if it is not a success?
-        Nearby.Messages.unsubscribe(nearbyGoogleApiClient, messageListener);
-        nearbyUsers.clear();
+        nearbySession.unsubscribe();
         refreshUsersViews();
     }
 
     private void syncSwitchEnabledStatesWithGoogleApiClientState() {
-        final boolean googleApiClientConnected = nearbyGoogleApiClient.isConnected();
+        final boolean googleApiClientConnected = nearbySession.isConnected();
 
         publishingSwitch.setEnabled(googleApiClientConnected);
         subscribingSwitch.setEnabled(googleApiClientConnected);
@@ -484,6 +756,57 @@ public final class NearbyActivity extends BaseActivity
                 .setNegativeButton("Cancel", null);
     }
 
+    private void showKioskSourceDialog() {
+        final String[] sources = {"Saved cards", "Cards from a vCard file"};
+
+        new AlertDialog.Builder(this)
+                .setTitle("Publish which cards?")
+                .setItems(sources, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialog, final int which) {
+                        if (which == 0) {
+                            KioskActivity.launch(NearbyActivity.this, null);
+                        } else {
+                            final Intent kioskIntent = new Intent(Intent.ACTION_GET_CONTENT)
+                                    .addCategory(Intent.CATEGORY_OPENABLE)
+                                    .setType("text/*");
+
+                            startActivityForResult(kioskIntent, KIOSK_VCARD_REQUEST_CODE);
+                        }
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void showPerformanceProfileDialog() {
+        final PerformanceProfile.Mode[] modes = PerformanceProfile.Mode.values();
+        final String[] labels = {"Automatic", "Full", "Lite (for low-end devices)"};
+
+        final PerformanceProfile.Mode currentMode = PerformanceProfile.getMode(
+                getSharedPreferences(PerformanceProfile.PREFS_NAME, MODE_PRIVATE));
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_performance_profile)
+                .setSingleChoiceItems(
+                        labels,
+                        currentMode.ordinal(),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(final DialogInterface dialog, final int which) {
+                                final PerformanceProfile profile
+                                        = CustomApplication.setPerformanceMode(
+                                                NearbyActivity.this, modes[which]);
+
+                                nearbySession.setPerformanceProfile(profile);
+                                refreshUsersViews();
+                                dialog.dismiss();
+                            }
+                        })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
     private void showSaveUserDialog(@NonNull final User user) {
         getDefaultAlertBuilder()
                 .setMessage("Save " + user.getName() + "'s info?")
@@ -509,32 +832,222 @@ public final class NearbyActivity extends BaseActivity
     }
 
     private void saveUser(@NonNull final User user) {
-        if (!savedUsers.contains(user)) {
-            savedUsers.add(user);
+        if (nearbySession.saveUser(user)) {
             refreshUsersViews();
-            updatePersistedSavedUsers();
         }
     }
 
     private void deleteSavedUser(@NonNull final User user) {
-        final boolean userWasDeleted = savedUsers.remove(user);
-
-        if (userWasDeleted) {
+        if (nearbySession.deleteSavedUser(user)) {
             refreshUsersViews();
-            updatePersistedSavedUsers();
         }
     }
 
+    private void saveAllNearbyUsers() {
+        final List<User> savedUsers = nearbySession.saveUsers(getUnsavedNearbyUsers(), true);
+
+        if (savedUsers.isEmpty()) {
+            Toast.makeText(this, "No unsaved nearby cards.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        refreshUsersViews();
+
+        Snackbar.make(savedUsersListView, "Saved " + savedUsers.size() + " cards.", UNDO_WINDOW_MS)
+                .setAction("Undo", new View.OnClickListener() {
+                    @Override
+                    public void onClick(final View v) {
+                        nearbySession.deleteSavedUsers(savedUsers);
+                        refreshUsersViews();
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * @return nearby and recently seen users that are not saved, as shown in the nearby list.
+     */
+    @NonNull
+    private List<User> getUnsavedNearbyUsers() {
+        final List<User> result = new ArrayList<>(nearbySession.getNearbyUsers());
+        result.addAll(nearbySession.getRecentlySeenUsers());
+        result.addAll(nearbySession.getCollectedUsers());
+        result.removeAll(new HashSet<>(nearbySession.getSavedUsers()));
+
+        return result;
+    }
+
+    private void exportSavedUsers() {
+        final File exportDirectory = getExternalFilesDir(null);
+
+        if (exportDirectory == null) {
+            toastError("External storage is not available.");
+            return;
+        }
+
+        VCardTransfer.exportUsers(
+                nearbySession.getSavedUsers(),
+                new File(exportDirectory, EXPORTED_VCARD_FILE_NAME),
+                new VCardTransfer.ExportCallback() {
+                    @Override
+                    public void onExportFinished(
+                            @Nullable final File file,
+                            final int exportedCount) {
+
+                        if (file == null) {
+                            toastError("Could not export saved cards.");
+                            return;
+                        }
+
+                        final Intent shareIntent = new Intent(Intent.ACTION_SEND)
+                                .setType(VCARD_MIME_TYPE)
+                                .putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+
+                        startActivity(Intent.createChooser(
+                                shareIntent, "Share " + exportedCount + " saved cards"));
+                    }
+                });
+    }
+
+    private void exportSavedUsersToContacts() {
+        final List<User> savedUsers = nearbySession.getSavedUsers();
+
+        contactsExportProgressDialog = new ProgressDialog(this);
+        contactsExportProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        contactsExportProgressDialog.setMessage("Exporting saved cards to Contacts...");
+        contactsExportProgressDialog.setCancelable(false);
+        contactsExportProgressDialog.setMax(savedUsers.size());
+        contactsExportProgressDialog.show();
+
+        final ContactsExporter contactsExporter = new ContactsExporter(
+                ContactsExporter.forContentResolver(getContentResolver()),
+                getSharedPreferences(CONTACTS_EXPORT_PREFS_NAME, MODE_PRIVATE),
+                CustomApplication.getPicasso(this));
+
+        contactsExporter.export(savedUsers, new ContactsExporter.ProgressListener() {
+            @Override
+            public void onExportProgress(final int processedCount, final int totalCount) {
+                if (contactsExportProgressDialog != null) {
+                    contactsExportProgressDialog.setProgress(processedCount);
+                }
+            }
+
+            @Override
+            public void onExportFinished(
+                    final int writtenCount,
+                    final int unchangedCount,
+                    final int failedCount) {
+
+                dismissContactsExportProgressDialog();
+
+                if (isFinishing()) {
+                    return;
+                }
+
+                final String message = "Exported " + writtenCount + " cards to Contacts ("
+                        + unchangedCount + " unchanged, " + failedCount + " failed).";
+
+                Toast.makeText(NearbyActivity.this, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private void dismissContactsExportProgressDialog() {
+        if (contactsExportProgressDialog != null) {
+            contactsExportProgressDialog.dismiss();
+            contactsExportProgressDialog = null;
+        }
+    }
+
+    private void importSavedUsers(@NonNull final Uri vCardUri) {
+        final InputStream inputStream;
+
+        try {
+            inputStream = getContentResolver().openInputStream(vCardUri);
+        } catch (final FileNotFoundException e) {
+            toastError("Could not open " + vCardUri);
+            return;
+        }
+
+        if (inputStream == null) {
+            toastError("Could not open " + vCardUri);
+            return;
+        }
+
+        nearbySession.importSavedUsers(inputStream);
+    }
+
     private void refreshUsersViews() {
-        savedUsersView.setUsers(savedUsers);
+        refreshScheduled = false;
+        mainHandler.removeCallbacks(coalescedRefresh);
+
+        final JankMonitor jankMonitor = CustomApplication.getJankMonitor(this);
+        jankMonitor.beginOperation(JankMonitor.Operation.REFRESH);
+
+        savedUsersAdapter.setUsers(nearbySession.searchSavedUsers(savedUsersQuery));
+
+        // Don't claim there are no saved cards while they are still loading.
+        savedUsersEmptyStateView.setVisibility(
+                savedUsersAdapter.isEmpty() && nearbySession.areSavedUsersLoaded()
+                        ? View.VISIBLE
+                        : View.GONE);
+
+        final Set<User> notNearbyUsers = new HashSet<>(nearbySession.getRecentlySeenUsers());
+        notNearbyUsers.addAll(nearbySession.getCollectedUsers());
+        nearbyUsersView.setUsers(getUnsavedNearbyUsers(), notNearbyUsers);
+
+        final int overflowNearbyUserCount = nearbySession.getOverflowNearbyUserCount();
+
+        if (overflowNearbyUserCount > 0) {
+            nearbyUsersOverflowView.setText("Roster full; " + overflowNearbyUserCount
+                    + " more nearby " + (overflowNearbyUserCount == 1 ? "card" : "cards")
+                    + " not shown.");
+
+            nearbyUsersOverflowView.setVisibility(View.VISIBLE);
+        } else {
+            nearbyUsersOverflowView.setVisibility(View.GONE);
+        }
+
+        jankMonitor.endOperation(JankMonitor.Operation.REFRESH);
+    }
+
+    private void createPublishedThumbnailIfNeeded() {
+        final Uri photoUrl = publishedUser.getPhotoUrl();
+
+        if (photoUrl == null || publishedUser.getThumbnail() != null) {
+            return;
+        }
+
+        CardThumbnails.create(
+                CustomApplication.getPicasso(this),
+                photoUrl,
+                new CardThumbnails.CreateCallback() {
+                    @Override
+                    public void onThumbnailCreated(@Nullable final String thumbnail) {
+                        if (thumbnail == null || isFinishing()) {
+                            return;
+                        }
 
-        final List<User> usersToDisplay = new ArrayList<>(nearbyUsers);
-        usersToDisplay.removeAll(savedUsers);
-        nearbyUsersView.setUsers(usersToDisplay);
+                        publishedUser = nearbySession.getPublishedUser().withThumbnail(thumbnail);
+                        nearbySession.setPublishedUser(publishedUser);
+
+                        // Cached so that later launches publish the thumbnail straight away.
+                        signedInUserManager.setSignedInUser(publishedUser);
+                    }
+                });
     }
 
-    private void updatePersistedSavedUsers() {
-        savedUsersManager.setUsers(savedUsers);
+    private void markFirstRosterFrame() {
+        final ViewTreeObserver viewTreeObserver = nearbyUsersView.getViewTreeObserver();
+
+        viewTreeObserver.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                nearbyUsersView.getViewTreeObserver().removeOnPreDrawListener(this);
+                startupTracer.mark(StartupTracer.Milestone.FIRST_ROSTER_FRAME);
+                return true;
+            }
+        });
     }
 
     private void toastSignOutFailedError() {
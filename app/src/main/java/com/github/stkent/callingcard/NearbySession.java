@@ -0,0 +1,1166 @@
+package com.github.stkent.callingcard;
+
+import android.app.PendingIntent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.messages.Message;
+import com.google.android.gms.nearby.messages.MessageListener;
+import com.google.android.gms.nearby.messages.PublishCallback;
+import com.google.android.gms.nearby.messages.PublishOptions;
+import com.google.android.gms.nearby.messages.Strategy;
+import com.google.android.gms.nearby.messages.SubscribeCallback;
+import com.google.android.gms.nearby.messages.SubscribeOptions;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Owns the Nearby discovery session. NearbyActivity retains it across configuration changes.
+ */
+final class NearbySession implements ConnectionCallbacks {
+
+    /*
+     * Connection failures are not forwarded: the shared client reports them directly to every
+     * started BaseActivity.
+     */
+    interface Listener extends ConnectionCallbacks {
+        void onNearbyUsersChanged();
+
+        /**
+         * Called once the stored saved users have been loaded; until then only users saved by this
+         * session are available.
+         */
+        void onSavedUsersLoaded();
+
+        void onNearbyOperationsExpired();
+
+        /**
+         * Called with the result of each resubscription made while the subscription is
+         * duty-cycled, so that failures are handled like those of subscribe().
+         */
+        void onSubscriptionResumed(@NonNull final Status status);
+
+        void onSavedUsersImported(
+                final int importedCount,
+                final int skippedCount,
+                final boolean succeeded);
+    }
+
+    private static final String TAG = "NearbySession";
+
+    private static final long RECONCILIATION_WINDOW_MS = 60 * 1000;
+    private static final int MAX_SEARCH_RESULTS = 50;
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final PublishCallback publishCallback = new PublishCallback() {
+        // Note: this seems to be invoked on a background thread!
+        @Override
+        public void onExpired() {
+            /*
+             * From https://developers.google.com/nearby/messages/android/pub-sub:
+             *
+             *   When actively publishing and subscribing, a "Nearby is in use" notification is
+             *   presented, informing users that Nearby is active. This notification is only
+             *   displayed when one or more apps are actively using Nearby, giving users a chance
+             *   to conserve battery life if Nearby is not needed. It provides users with the
+             *   following options:
+             *
+             *     - Navigate to an app to disable Nearby.
+             *     - Force an app to stop using Nearby.
+             *     - Navigate to the Nearby Settings screen.
+             *
+             *   You can use PublishCallback() [and SubscribeCallback()] to listen for cases when a
+             *   user forces the app to stop using Nearby. When this happens, the onExpired()
+             *   method is triggered.
+             */
+            postNearbyOperationsExpired();
+        }
+    };
+
+    private final SubscribeCallback subscribeCallback = new SubscribeCallback() {
+        // All comments in publishCallback apply here too.
+        @Override
+        public void onExpired() {
+            postNearbyOperationsExpired();
+        }
+    };
+
+    private final PublishOptions publishOptions
+            = new PublishOptions.Builder().setCallback(publishCallback).build();
+
+    private final SubscribeOptions subscribeOptions = new SubscribeOptions.Builder()
+            .setFilter(CardMessages.FILTER)
+            .setCallback(subscribeCallback)
+            .build();
+
+    // Bluetooth Low Energy only, to keep the radio cost of background discovery down.
+    private final SubscribeOptions backgroundSubscribeOptions = new SubscribeOptions.Builder()
+            .setFilter(CardMessages.FILTER)
+            .setStrategy(Strategy.BLE_ONLY)
+            .build();
+
+    private final MessageListener messageListener = new MessageListener() {
+        // Invoked once when a newly-published message is detected.
+        @Override
+        public void onFound(final Message message) {
+            try {
+                final User user = decodeUser(message);
+
+                if (user == null) {
+                    return;
+                }
+
+                unconfirmedNearbyUsers.remove(user);
+
+                final int nearbyIndex = nearbyUsers.indexOf(user);
+
+                if (nearbyIndex < 0) {
+                    if (nearbyUsers.size() >= performanceProfile.getMaxNearbyUsers()) {
+                        Log.d(TAG, "Roster is full; ignoring " + user.getName());
+
+                        if (usersOverRosterCap.add(user)) {
+                            notifyNearbyUsersChanged();
+                        }
+
+                        return;
+                    }
+
+                    Log.d(TAG, "Discovered " + user.getName());
+
+                    final boolean wasInRoster = recentlySeenUsers.remove(user) != null
+                            || collectedUsers.containsKey(user);
+
+                    nearbyUsers.add(user);
+                    encounterLog.append(EncounterLog.Type.FOUND, user.getId());
+
+                    rosterChangeStream.emit(
+                            wasInRoster
+                                    ? RosterChangeStream.Change.Type.UPDATED
+                                    : RosterChangeStream.Change.Type.ADDED,
+                            user);
+
+                    notifyNearbyUsersChanged();
+                } else if (nearbyUsers.get(nearbyIndex) != user
+                        && !nearbyUsers.get(nearbyIndex).hasSameCardContents(user)) {
+
+                    // The user republished an edited card.
+                    nearbyUsers.set(nearbyIndex, user);
+                    rosterChangeStream.emit(RosterChangeStream.Change.Type.UPDATED, user);
+                    notifyNearbyUsersChanged();
+                }
+            } catch (final JsonSyntaxException e) {
+                Log.e(TAG, "Invalid message received: " + new String(message.getContent()));
+                Log.e(TAG, "Invalid message exception:", e);
+            }
+        }
+
+        // Invoked once when previously-received message is lost.
+        @Override
+        public void onLost(final Message message) {
+            try {
+                final User user = decodeUser(message);
+
+                if (user != null && usersOverRosterCap.remove(user)) {
+                    notifyNearbyUsersChanged();
+                }
+
+                if (user != null && nearbyUsers.contains(user)) {
+                    Log.d(TAG, "Lost " + user.getName());
+
+                    unconfirmedNearbyUsers.remove(user);
+                    removeNearbyUser(user);
+                    notifyNearbyUsersChanged();
+                }
+            } catch (final JsonSyntaxException e) {
+                Log.e(TAG, "Invalid message reported as lost: " + new String(message.getContent()));
+                Log.e(TAG, "Invalid message exception:", e);
+            }
+        }
+    };
+
+    @NonNull
+    private final List<User> nearbyUsers = new ArrayList<>();
+
+    /*
+     * Users restored from the last roster snapshot that have not (yet) been rediscovered by the
+     * live subscription, mapped to the time they were last seen.
+     */
+    @NonNull
+    private final Map<User, Long> recentlySeenUsers = new LinkedHashMap<>();
+
+    /*
+     * Users collected in the background, mapped to the time they were last seen. Unlike recently
+     * seen users, these stay in the roster (behind nearby users) until they are cleared.
+     */
+    @NonNull
+    private final Map<User, Long> collectedUsers = new LinkedHashMap<>();
+
+    /*
+     * While the subscription is duty-cycled, nearby users from the previous subscription window
+     * that have not been rediscovered in the current one.
+     */
+    @NonNull
+    private final Set<User> unconfirmedNearbyUsers = new HashSet<>();
+
+    // Users found while the roster was full, and so not shown; see getOverflowNearbyUserCount().
+    @NonNull
+    private final Set<User> usersOverRosterCap = new HashSet<>();
+
+    @NonNull
+    private final List<User> savedUsers = new ArrayList<>();
+
+    @NonNull
+    private final RosterChangeStream rosterChangeStream
+            = new RosterChangeStream(new RosterChangeStream.RosterProvider() {
+                @NonNull
+                @Override
+                public List<User> getRoster() {
+                    return buildRoster();
+                }
+            });
+
+    /*
+     * Every index update runs on indexExecutor, in order, so that large imports do not stall the
+     * main thread; searches read the index from the main thread and may briefly lag saves.
+     */
+    @NonNull
+    private final SavedUsersIndex savedUsersIndex
+            = new SavedUsersIndex(Collections.<User>emptyList());
+
+    @NonNull
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor();
+
+    // Set on the index thread once the stored saved users have been indexed.
+    private volatile boolean savedUsersIndexReady = false;
+
+    /*
+     * False until the stored saved users have been loaded and merged into savedUsers. Until then,
+     * savedUsers holds only the users saved by this session, and nothing is persisted.
+     */
+    private boolean savedUsersLoaded = false;
+
+    // Users deleted before the stored saved users were loaded, to be dropped from them on arrival.
+    @NonNull
+    private final Set<User> usersDeletedBeforeLoad = new HashSet<>();
+
+    private final Runnable dropUnconfirmedRecentlySeenUsers = new Runnable() {
+        @Override
+        public void run() {
+            if (!recentlySeenUsers.isEmpty()) {
+                final List<User> droppedUsers = new ArrayList<>(recentlySeenUsers.keySet());
+                recentlySeenUsers.clear();
+                emitRemoved(droppedUsers);
+                notifyNearbyUsersChanged();
+            }
+        }
+    };
+
+    private final Runnable pauseSubscription = new Runnable() {
+        @Override
+        public void run() {
+            if (!subscribing || !isConnected()) {
+                return;
+            }
+
+            Nearby.Messages.unsubscribe(nearbyGoogleApiClient, messageListener);
+            dropUnconfirmedNearbyUsers();
+            mainHandler.postDelayed(resumeSubscription, performanceProfile.getSubscribeOffMs());
+        }
+    };
+
+    private final Runnable resumeSubscription = new Runnable() {
+        @Override
+        public void run() {
+            if (!subscribing || !isConnected()) {
+                return;
+            }
+
+            // Nearby re-reports every message still in range when the subscription resumes.
+            unconfirmedNearbyUsers.clear();
+            unconfirmedNearbyUsers.addAll(nearbyUsers);
+            usersOverRosterCap.clear();
+
+            Nearby.Messages.subscribe(nearbyGoogleApiClient, messageListener, subscribeOptions)
+                    .setResultCallback(new ResultCallback<Status>() {
+                        @Override
+                        public void onResult(@NonNull final Status status) {
+                            if (subscribing && listener != null) {
+                                listener.onSubscriptionResumed(status);
+                            }
+                        }
+                    });
+
+            schedulePauseSubscription();
+        }
+    };
+
+    @NonNull
+    private final Gson gson;
+
+    @NonNull
+    private final SavedUsersManager savedUsersManager;
+
+    @NonNull
+    private final SavedAvatarStore savedAvatarStore;
+
+    @NonNull
+    private final RosterSnapshotStore rosterSnapshotStore;
+
+    @NonNull
+    private final RosterSnapshotStore collectedCardStore;
+
+    @NonNull
+    private final EncounterLog encounterLog;
+
+    @NonNull
+    private final JankMonitor jankMonitor;
+
+    @NonNull
+    private final CardStore cardStore;
+
+    @NonNull
+    private PerformanceProfile performanceProfile;
+
+    @NonNull
+    private User publishedUser;
+
+    @NonNull
+    private Message messageToPublish;
+
+    // Published alongside messageToPublish so that older builds still see this card.
+    @NonNull
+    private Message legacyMessageToPublish;
+
+    @NonNull
+    private final GoogleApiClientManager googleApiClientManager;
+
+    @NonNull
+    private final GoogleApiClient nearbyGoogleApiClient;
+
+    @Nullable
+    private Listener listener;
+
+    // The result of an import that finished while no listener was attached, for the next one.
+    @Nullable
+    private Runnable pendingImportResult;
+
+    private boolean holdingConnection = false;
+    private boolean publishing = false;
+    private boolean subscribing = false;
+
+    NearbySession(
+            @NonNull final GoogleApiClientManager googleApiClientManager,
+            @NonNull final User user,
+            @NonNull final Gson gson,
+            @NonNull final SavedUsersManager savedUsersManager,
+            @NonNull final SavedAvatarStore savedAvatarStore,
+            @NonNull final RosterSnapshotStore rosterSnapshotStore,
+            @NonNull final RosterSnapshotStore collectedCardStore,
+            @NonNull final EncounterLog encounterLog,
+            @NonNull final JankMonitor jankMonitor,
+            @NonNull final CardStore cardStore,
+            @NonNull final PerformanceProfile performanceProfile) {
+
+        this.gson = gson;
+        this.savedUsersManager = savedUsersManager;
+        this.savedAvatarStore = savedAvatarStore;
+        this.rosterSnapshotStore = rosterSnapshotStore;
+        this.collectedCardStore = collectedCardStore;
+        this.encounterLog = encounterLog;
+        this.jankMonitor = jankMonitor;
+        this.cardStore = cardStore;
+        this.performanceProfile = performanceProfile;
+        this.publishedUser = user;
+        this.messageToPublish = CardMessages.encode(gson, user);
+        this.legacyMessageToPublish = CardMessages.encodeLegacy(gson, user);
+
+        this.googleApiClientManager = googleApiClientManager;
+        this.nearbyGoogleApiClient = googleApiClientManager.getGoogleApiClient();
+
+        googleApiClientManager.registerConnectionCallbacks(this);
+
+        // The stored list is a single JSON blob, so it is read and parsed off the main thread.
+        savedUsersManager.loadSavedUsers(new SavedUsersManager.LoadCallback() {
+            @Override
+            public void onSavedUsersLoaded(@NonNull final List<User> users) {
+                mergeLoadedSavedUsers(users);
+            }
+        });
+    }
+
+    void setListener(@Nullable final Listener listener) {
+        this.listener = listener;
+        deliverPendingImportResult();
+    }
+
+    /**
+     * The roster cap applies to users discovered from now on; the subscription duty cycle applies
+     * from the next call to subscribe.
+     */
+    void setPerformanceProfile(@NonNull final PerformanceProfile performanceProfile) {
+        this.performanceProfile = performanceProfile;
+    }
+
+    // Connection
+
+    boolean isConnected() {
+        return nearbyGoogleApiClient.isConnected();
+    }
+
+    boolean isConnecting() {
+        return nearbyGoogleApiClient.isConnecting();
+    }
+
+    void connect() {
+        if (holdingConnection) {
+            googleApiClientManager.connect();
+        } else {
+            holdingConnection = true;
+            googleApiClientManager.acquire();
+        }
+    }
+
+    void disconnect() {
+        if (holdingConnection) {
+            holdingConnection = false;
+            googleApiClientManager.release();
+        }
+    }
+
+    /**
+     * Releases the shared connection and stops receiving its callbacks. The session must not be
+     * used afterwards.
+     */
+    void destroy() {
+        indexExecutor.shutdown();
+        jankMonitor.stopFrameMonitoring();
+        disconnect();
+        googleApiClientManager.unregisterConnectionCallbacks(this);
+    }
+
+    @Override
+    public void onConnected(@Nullable final Bundle bundle) {
+        if (listener != null) {
+            listener.onConnected(bundle);
+        }
+    }
+
+    @Override
+    public void onConnectionSuspended(final int i) {
+        if (listener != null) {
+            listener.onConnectionSuspended(i);
+        }
+    }
+
+    // Publishing and subscribing
+
+    boolean isPublishing() {
+        return publishing;
+    }
+
+    boolean isSubscribing() {
+        return subscribing;
+    }
+
+    @NonNull
+    User getPublishedUser() {
+        return publishedUser;
+    }
+
+    /**
+     * Replaces the published card, e.g. once its thumbnail is ready. If currently publishing, the
+     * old card is unpublished and the new one published in its place.
+     */
+    void setPublishedUser(@NonNull final User user) {
+        final Message newMessageToPublish = CardMessages.encode(gson, user);
+        final Message newLegacyMessageToPublish = CardMessages.encodeLegacy(gson, user);
+
+        if (publishing && isConnected()) {
+            Nearby.Messages.unpublish(nearbyGoogleApiClient, messageToPublish);
+            Nearby.Messages.unpublish(nearbyGoogleApiClient, legacyMessageToPublish);
+            Nearby.Messages.publish(nearbyGoogleApiClient, newMessageToPublish, publishOptions);
+            Nearby.Messages.publish(
+                    nearbyGoogleApiClient, newLegacyMessageToPublish, publishOptions);
+        }
+
+        publishedUser = user;
+        messageToPublish = newMessageToPublish;
+        legacyMessageToPublish = newLegacyMessageToPublish;
+    }
+
+    /**
+     * Publishes the card in both the typed and the legacy format.
+     *
+     * @return the result of publishing the typed message.
+     */
+    @NonNull
+    PendingResult<Status> publish() {
+        publishing = true;
+
+        // TODO: check PendingResult of this call and retry if it is not a success?
+        Nearby.Messages.publish(nearbyGoogleApiClient, legacyMessageToPublish, publishOptions);
+        return Nearby.Messages.publish(nearbyGoogleApiClient, messageToPublish, publishOptions);
+    }
+
+    void unpublish() {
+        publishing = false;
+
+        // TODO: check PendingResult of this call and retry if it is not a success?
+        Nearby.Messages.unpublish(nearbyGoogleApiClient, messageToPublish);
+        Nearby.Messages.unpublish(nearbyGoogleApiClient, legacyMessageToPublish);
+    }
+
+    @NonNull
+    PendingResult<Status> subscribe() {
+        subscribing = true;
+        jankMonitor.startFrameMonitoring();
+
+        // Restored users that the live subscription has not confirmed by now are no longer nearby.
+        mainHandler.removeCallbacks(dropUnconfirmedRecentlySeenUsers);
+        mainHandler.postDelayed(dropUnconfirmedRecentlySeenUsers, RECONCILIATION_WINDOW_MS);
+
+        stopDutyCycle();
+        schedulePauseSubscription();
+
+        return Nearby.Messages.subscribe(nearbyGoogleApiClient, messageListener, subscribeOptions);
+    }
+
+    void unsubscribe() {
+        subscribing = false;
+        jankMonitor.stopFrameMonitoring();
+        stopDutyCycle();
+
+        // TODO: check PendingResult of this call and retry if it is not a success?
+        Nearby.Messages.unsubscribe(nearbyGoogleApiClient, messageListener);
+        clearNearbyUsers();
+    }
+
+    /**
+     * Starts a low-power subscription that outlives this session. Found cards are delivered to the
+     * given PendingIntent rather than to this session.
+     */
+    @NonNull
+    PendingResult<Status> subscribeInBackground(@NonNull final PendingIntent pendingIntent) {
+        return Nearby.Messages.subscribe(
+                nearbyGoogleApiClient, pendingIntent, backgroundSubscribeOptions);
+    }
+
+    @NonNull
+    PendingResult<Status> unsubscribeInBackground(@NonNull final PendingIntent pendingIntent) {
+        return Nearby.Messages.unsubscribe(nearbyGoogleApiClient, pendingIntent);
+    }
+
+    // Roster
+
+    /**
+     * @return a stream of changes to the roster (nearby, recently seen and collected users), for
+     *         observers other than the attached Listener.
+     */
+    @NonNull
+    RosterChangeStream getRosterChangeStream() {
+        return rosterChangeStream;
+    }
+
+    /**
+     * Reloads the stored roster snapshot, showing its users as recently seen, and the cards
+     * collected in the background.
+     */
+    void restoreRosterSnapshot() {
+        rosterSnapshotStore.read(new RosterSnapshotStore.ReadCallback() {
+            @Override
+            public void onSnapshotRead(@NonNull final Map<User, Long> lastSeenTimes) {
+                restoreRecentlySeenUsers(lastSeenTimes);
+            }
+        });
+
+        collectedCardStore.read(new RosterSnapshotStore.ReadCallback() {
+            @Override
+            public void onSnapshotRead(@NonNull final Map<User, Long> lastSeenTimes) {
+                restoreCollectedUsers(lastSeenTimes);
+            }
+        });
+    }
+
+    @NonNull
+    List<User> getNearbyUsers() {
+        return nearbyUsers;
+    }
+
+    /**
+     * @return users from the last roster snapshot that are not yet confirmed as nearby.
+     */
+    @NonNull
+    Collection<User> getRecentlySeenUsers() {
+        return recentlySeenUsers.keySet();
+    }
+
+    /**
+     * @return users collected in the background that are not currently nearby.
+     */
+    @NonNull
+    List<User> getCollectedUsers() {
+        final List<User> result = new ArrayList<>(collectedUsers.keySet());
+        result.removeAll(nearbyUsers);
+        return result;
+    }
+
+    /**
+     * Forgets every card collected in the background, both in memory and on disk.
+     */
+    void clearCollectedUsers() {
+        collectedCardStore.clear();
+
+        if (!collectedUsers.isEmpty()) {
+            final List<User> removedUsers = getCollectedUsers();
+            collectedUsers.clear();
+            emitRemoved(removedUsers);
+            notifyNearbyUsersChanged();
+        }
+    }
+
+    @NonNull
+    List<User> getSavedUsers() {
+        return savedUsers;
+    }
+
+    /**
+     * @return the number of users currently nearby but not shown because the roster is full.
+     */
+    int getOverflowNearbyUserCount() {
+        return usersOverRosterCap.size();
+    }
+
+    boolean areSavedUsersLoaded() {
+        return savedUsersLoaded;
+    }
+
+    /**
+     * Snapshots the current roster to disk, then clears it. Collected users are kept.
+     */
+    void clearNearbyUsers() {
+        writeRosterSnapshot();
+
+        mainHandler.removeCallbacks(dropUnconfirmedRecentlySeenUsers);
+
+        // Close out every open encounter so that each FOUND entry in the log has a matching LOST.
+        for (final User nearbyUser : nearbyUsers) {
+            encounterLog.append(EncounterLog.Type.LOST, nearbyUser.getId());
+        }
+
+        encounterLog.flush();
+
+        // Clear before emitting, so that a reset triggered by these changes sees only the collected
+        // users, which stay in the roster.
+        final List<User> removedUsers = new ArrayList<>(nearbyUsers);
+        removedUsers.addAll(recentlySeenUsers.keySet());
+        removedUsers.removeAll(collectedUsers.keySet());
+        nearbyUsers.clear();
+        recentlySeenUsers.clear();
+        unconfirmedNearbyUsers.clear();
+        usersOverRosterCap.clear();
+        emitRemoved(removedUsers);
+    }
+
+    boolean saveUser(@NonNull final User decodedUser) {
+        final User user = cardStore.intern(decodedUser);
+
+        if (savedUsers.contains(user)) {
+            return false;
+        }
+
+        savedUsers.add(user);
+        persistSavedUsers();
+        savedAvatarStore.pin(Collections.singleton(user));
+        addToSavedUsersIndex(Collections.singleton(user));
+
+        emitIfInRoster(RosterChangeStream.Change.Type.MOVED_TO_SAVED, user);
+        return true;
+    }
+
+    /**
+     * Saves every valid user that is not already saved, persisting the result once.
+     *
+     * @param pinAvatars false for bulk imports, whose avatars are pinned as they are shown instead.
+     * @return the newly saved users.
+     */
+    @NonNull
+    List<User> saveUsers(@NonNull final Collection<User> users, final boolean pinAvatars) {
+        final Set<User> alreadySavedUsers = new HashSet<>(savedUsers);
+        final List<User> newlySavedUsers = new ArrayList<>();
+
+        for (final User decodedUser : users) {
+            final User user = cardStore.intern(decodedUser);
+
+            if (user.isValid() && alreadySavedUsers.add(user)) {
+                savedUsers.add(user);
+                newlySavedUsers.add(user);
+                emitIfInRoster(RosterChangeStream.Change.Type.MOVED_TO_SAVED, user);
+            }
+        }
+
+        if (!newlySavedUsers.isEmpty()) {
+            persistSavedUsers();
+            addToSavedUsersIndex(newlySavedUsers);
+
+            if (pinAvatars) {
+                savedAvatarStore.pin(newlySavedUsers);
+            }
+        }
+
+        return newlySavedUsers;
+    }
+
+    /**
+     * Imports the vCard stream into the saved users. The result is reported to whichever listener
+     * is attached when the import finishes, so an import outlives a configuration change.
+     */
+    void importSavedUsers(@NonNull final InputStream inputStream) {
+        VCardTransfer.importUsers(
+                inputStream,
+                getSavedUserIds(),
+                new VCardTransfer.ImportListener() {
+                    @Override
+                    public void onBatchImported(@NonNull final List<User> batch) {
+                        saveUsers(batch, false);
+                    }
+
+                    @Override
+                    public void onImportFinished(
+                            final int importedCount,
+                            final int skippedCount,
+                            final boolean succeeded) {
+
+                        pendingImportResult = new Runnable() {
+                            @Override
+                            public void run() {
+                                if (listener != null) {
+                                    listener.onSavedUsersImported(
+                                            importedCount, skippedCount, succeeded);
+                                }
+                            }
+                        };
+
+                        deliverPendingImportResult();
+                    }
+                });
+    }
+
+    @NonNull
+    Set<String> getSavedUserIds() {
+        final Set<String> result = new HashSet<>(savedUsers.size());
+
+        for (final User savedUser : savedUsers) {
+            result.add(savedUser.getId());
+        }
+
+        return result;
+    }
+
+    boolean deleteSavedUser(@NonNull final User user) {
+        if (!savedUsersLoaded) {
+            usersDeletedBeforeLoad.add(user);
+        }
+
+        final boolean userWasDeleted = savedUsers.remove(user);
+
+        if (userWasDeleted) {
+            persistSavedUsers();
+            savedAvatarStore.release(Collections.singleton(user));
+            removeFromSavedUsersIndex(Collections.singleton(user));
+
+            emitIfInRoster(RosterChangeStream.Change.Type.UPDATED, user);
+        }
+
+        return userWasDeleted;
+    }
+
+    /**
+     * Deletes every given user that is saved, persisting the result once.
+     *
+     * @return the number of deleted users.
+     */
+    int deleteSavedUsers(@NonNull final Collection<User> users) {
+        final Set<User> usersToDelete = new HashSet<>(users);
+        final int previousSavedCount = savedUsers.size();
+
+        if (!savedUsersLoaded) {
+            usersDeletedBeforeLoad.addAll(usersToDelete);
+        }
+
+        savedUsers.removeAll(usersToDelete);
+
+        final int deletedCount = previousSavedCount - savedUsers.size();
+
+        if (deletedCount > 0) {
+            persistSavedUsers();
+            savedAvatarStore.release(usersToDelete);
+            removeFromSavedUsersIndex(usersToDelete);
+
+            for (final User user : usersToDelete) {
+                emitIfInRoster(RosterChangeStream.Change.Type.UPDATED, user);
+            }
+        }
+
+        return deletedCount;
+    }
+
+    /**
+     * @return saved users whose name or email address starts with or contains the query; all saved
+     *         users if the query is blank.
+     */
+    @NonNull
+    List<User> searchSavedUsers(@NonNull final String query) {
+        if (query.trim().isEmpty()) {
+            return savedUsers;
+        }
+
+        final long startNs = System.nanoTime();
+        final List<User> result;
+
+        if (savedUsersIndexReady) {
+            result = savedUsersIndex.search(query, MAX_SEARCH_RESULTS);
+        } else {
+            result = scanSavedUsers(query);
+        }
+
+        Log.d(TAG, "searchSavedUsers: " + result.size() + " results in "
+                + (System.nanoTime() - startNs) / 1000 + "us");
+
+        return result;
+    }
+
+    /**
+     * Merges the stored saved users, read off the main thread, with any saves and deletes made by
+     * this session while they were loading, then persists the result if those changes affect it.
+     */
+    private void mergeLoadedSavedUsers(@NonNull final List<User> storedUsers) {
+        // The session may have been destroyed while the stored users were loading.
+        if (indexExecutor.isShutdown()) {
+            return;
+        }
+
+        final boolean changedBeforeLoad
+                = !savedUsers.isEmpty() || !usersDeletedBeforeLoad.isEmpty();
+
+        final List<User> usersSavedBeforeLoad = new ArrayList<>(savedUsers);
+        final Set<User> mergedUsers = new HashSet<>(savedUsers);
+        final List<User> loadedUsers = new ArrayList<>();
+
+        for (final User user : cardStore.internAll(storedUsers)) {
+            if (!usersDeletedBeforeLoad.contains(user) && mergedUsers.add(user)) {
+                loadedUsers.add(user);
+            }
+        }
+
+        // Stored users keep their place ahead of users saved while loading.
+        savedUsers.clear();
+        savedUsers.addAll(loadedUsers);
+        savedUsers.addAll(usersSavedBeforeLoad);
+        usersDeletedBeforeLoad.clear();
+        savedUsersLoaded = true;
+
+        if (changedBeforeLoad) {
+            persistSavedUsers();
+        }
+
+        buildSavedUsersIndex(loadedUsers);
+        savedAvatarStore.reconcile(savedUsers);
+
+        final Set<User> loadedUserSet = new HashSet<>(loadedUsers);
+
+        for (final User user : buildRoster()) {
+            if (loadedUserSet.contains(user)) {
+                rosterChangeStream.emit(RosterChangeStream.Change.Type.MOVED_TO_SAVED, user);
+            }
+        }
+
+        Log.d(TAG, "Loaded " + loadedUsers.size() + " saved users.");
+
+        if (listener != null) {
+            listener.onSavedUsersLoaded();
+        }
+    }
+
+    private void persistSavedUsers() {
+        // Before the stored users are loaded, the merge persists these changes together with them.
+        if (savedUsersLoaded) {
+            savedUsersManager.setUsers(savedUsers);
+        }
+    }
+
+    private void buildSavedUsersIndex(@NonNull final List<User> users) {
+        final List<User> usersToIndex = new ArrayList<>(users);
+
+        indexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (final User user : usersToIndex) {
+                    savedUsersIndex.add(user);
+                }
+
+                savedUsersIndexReady = true;
+            }
+        });
+    }
+
+    private void addToSavedUsersIndex(@NonNull final Collection<User> users) {
+        final List<User> usersToAdd = new ArrayList<>(users);
+
+        executeIndexUpdate(new Runnable() {
+            @Override
+            public void run() {
+                for (final User user : usersToAdd) {
+                    savedUsersIndex.add(user);
+                }
+            }
+        });
+    }
+
+    private void removeFromSavedUsersIndex(@NonNull final Collection<User> users) {
+        final List<User> usersToRemove = new ArrayList<>(users);
+
+        executeIndexUpdate(new Runnable() {
+            @Override
+            public void run() {
+                for (final User user : usersToRemove) {
+                    savedUsersIndex.remove(user);
+                }
+            }
+        });
+    }
+
+    private void executeIndexUpdate(@NonNull final Runnable update) {
+        // An import may still deliver batches after the session has been destroyed.
+        if (!indexExecutor.isShutdown()) {
+            indexExecutor.execute(update);
+        }
+    }
+
+    // Fallback used until the index is ready.
+    @NonNull
+    private List<User> scanSavedUsers(@NonNull final String query) {
+        final String normalizedQuery = query.trim().toLowerCase(Locale.ROOT);
+        final List<User> result = new ArrayList<>();
+
+        for (final User user : savedUsers) {
+            if (result.size() == MAX_SEARCH_RESULTS) {
+                break;
+            }
+
+            if (user.getName().toLowerCase(Locale.ROOT).contains(normalizedQuery)
+                    || user.getEmailAddress().toLowerCase(Locale.ROOT).contains(normalizedQuery)) {
+
+                result.add(user);
+            }
+        }
+
+        return result;
+    }
+
+    private void restoreRecentlySeenUsers(@NonNull final Map<User, Long> snapshot) {
+        for (final Map.Entry<User, Long> entry : snapshot.entrySet()) {
+            final User user = cardStore.intern(entry.getKey());
+
+            if (!nearbyUsers.contains(user)
+                    && !collectedUsers.containsKey(user)
+                    && recentlySeenUsers.put(user, entry.getValue()) == null) {
+
+                rosterChangeStream.emit(RosterChangeStream.Change.Type.ADDED, user);
+            }
+        }
+
+        if (!recentlySeenUsers.isEmpty()) {
+            Log.d(TAG, "Restored " + recentlySeenUsers.size() + " recently seen users.");
+
+            // The snapshot may arrive after subscribing began; give the live subscription a full
+            // window to confirm the restored users.
+            if (subscribing) {
+                mainHandler.removeCallbacks(dropUnconfirmedRecentlySeenUsers);
+                mainHandler.postDelayed(dropUnconfirmedRecentlySeenUsers, RECONCILIATION_WINDOW_MS);
+            }
+
+            notifyNearbyUsersChanged();
+        }
+    }
+
+    private void restoreCollectedUsers(@NonNull final Map<User, Long> collectedCards) {
+        boolean changed = false;
+
+        for (final Map.Entry<User, Long> entry : collectedCards.entrySet()) {
+            final User user = cardStore.intern(entry.getKey());
+
+            if (collectedUsers.put(user, entry.getValue()) != null || nearbyUsers.contains(user)) {
+                continue;
+            }
+
+            // A collected card outlives the recently seen entry for the same user.
+            final boolean wasRecentlySeen = recentlySeenUsers.remove(user) != null;
+
+            rosterChangeStream.emit(
+                    wasRecentlySeen
+                            ? RosterChangeStream.Change.Type.UPDATED
+                            : RosterChangeStream.Change.Type.ADDED,
+                    user);
+
+            changed = true;
+        }
+
+        if (changed) {
+            Log.d(TAG, "Restored " + collectedUsers.size() + " users collected in the background.");
+            notifyNearbyUsersChanged();
+        }
+    }
+
+    private void writeRosterSnapshot() {
+        if (nearbyUsers.isEmpty() && recentlySeenUsers.isEmpty()) {
+            // Nothing new to merge into the stored snapshot.
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Map<User, Long> snapshot = new HashMap<>(recentlySeenUsers);
+
+        for (final User user : nearbyUsers) {
+            snapshot.put(user, now);
+        }
+
+        rosterSnapshotStore.merge(snapshot, null);
+    }
+
+    private void schedulePauseSubscription() {
+        final long subscribeOnMs = performanceProfile.getSubscribeOnMs();
+
+        if (subscribeOnMs > 0) {
+            mainHandler.postDelayed(pauseSubscription, subscribeOnMs);
+        }
+    }
+
+    private void stopDutyCycle() {
+        mainHandler.removeCallbacks(pauseSubscription);
+        mainHandler.removeCallbacks(resumeSubscription);
+        unconfirmedNearbyUsers.clear();
+    }
+
+    /**
+     * Treats nearby users that were not rediscovered during the last subscription window as lost.
+     */
+    private void dropUnconfirmedNearbyUsers() {
+        if (unconfirmedNearbyUsers.isEmpty()) {
+            return;
+        }
+
+        for (final User user : unconfirmedNearbyUsers) {
+            Log.d(TAG, "Not rediscovered: " + user.getName());
+            removeNearbyUser(user);
+        }
+
+        unconfirmedNearbyUsers.clear();
+        notifyNearbyUsersChanged();
+    }
+
+    private void removeNearbyUser(@NonNull final User user) {
+        nearbyUsers.remove(user);
+        encounterLog.append(EncounterLog.Type.LOST, user.getId());
+
+        // A collected user stays in the roster once no longer nearby.
+        rosterChangeStream.emit(
+                collectedUsers.containsKey(user)
+                        ? RosterChangeStream.Change.Type.UPDATED
+                        : RosterChangeStream.Change.Type.REMOVED,
+                user);
+    }
+
+    /**
+     * @return nearby, then recently seen, then collected users, each user once.
+     */
+    @NonNull
+    private List<User> buildRoster() {
+        final List<User> result = new ArrayList<>(nearbyUsers);
+        result.addAll(recentlySeenUsers.keySet());
+        result.addAll(getCollectedUsers());
+        return result;
+    }
+
+    @Nullable
+    private User decodeUser(@NonNull final Message message) {
+        jankMonitor.beginOperation(JankMonitor.Operation.DECODE);
+
+        try {
+            final User user = CardMessages.decode(gson, message);
+            return user != null ? cardStore.intern(user) : null;
+        } finally {
+            jankMonitor.endOperation(JankMonitor.Operation.DECODE);
+        }
+    }
+
+    private void emitRemoved(@NonNull final Collection<User> users) {
+        for (final User user : users) {
+            rosterChangeStream.emit(RosterChangeStream.Change.Type.REMOVED, user);
+        }
+    }
+
+    private void emitIfInRoster(
+            @NonNull final RosterChangeStream.Change.Type type,
+            @NonNull final User user) {
+
+        if (nearbyUsers.contains(user)
+                || recentlySeenUsers.containsKey(user)
+                || collectedUsers.containsKey(user)) {
+
+
+            rosterChangeStream.emit(type, user);
+        }
+    }
+
+    private void deliverPendingImportResult() {
+        if (listener != null && pendingImportResult != null) {
+            final Runnable importResult = pendingImportResult;
+            pendingImportResult = null;
+            importResult.run();
+        }
+    }
+
+    private void notifyNearbyUsersChanged() {
+        if (listener != null) {
+            listener.onNearbyUsersChanged();
+        }
+    }
+
+    private void postNearbyOperationsExpired() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null) {
+                    listener.onNearbyOperationsExpired();
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.github.stkent.callingcard;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.v4.app.ActivityManagerCompat;
+
+import java.util.Locale;
+
+/**
+ * A set of performance trade-offs, selected from device capability unless chosen by the user.
+ */
+final class PerformanceProfile {
+
+    enum Mode {
+        AUTOMATIC,
+        FULL,
+        LITE
+    }
+
+    static final String PREFS_NAME = "performance_profile";
+
+    private static final String MODE_KEY = "MODE";
+
+    // Devices at or below any of these thresholds get the LITE profile automatically.
+    private static final int LOW_END_CORE_COUNT = 2;
+    private static final int LOW_END_MEMORY_CLASS_MB = 64;
+
+    private static final long LITE_REFRESH_COALESCING_MS = 500;
+    private static final int LITE_MAX_NEARBY_USERS = 25;
+    private static final long LITE_SUBSCRIBE_ON_MS = 20 * 1000;
+    private static final long LITE_SUBSCRIBE_OFF_MS = 40 * 1000;
+
+    /**
+     * @return the profile for the mode stored in the given preferences.
+     */
+    @NonNull
+    static PerformanceProfile select(
+            @NonNull final Context context,
+            @NonNull final SharedPreferences sharedPreferences) {
+
+        final ActivityManager activityManager
+                = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        final boolean lowRamDevice = ActivityManagerCompat.isLowRamDevice(activityManager);
+        final int coreCount = Runtime.getRuntime().availableProcessors();
+        final int memoryClassMb = activityManager.getMemoryClass();
+
+        final boolean lowEndDevice = lowRamDevice
+                || coreCount <= LOW_END_CORE_COUNT
+                || memoryClassMb <= LOW_END_MEMORY_CLASS_MB;
+
+        final Mode mode = getMode(sharedPreferences);
+        final boolean lite = mode == Mode.LITE || (mode == Mode.AUTOMATIC && lowEndDevice);
+
+        final String deviceSummary = String.format(Locale.US,
+                "low-RAM flag %b, %d cores, memory class %d MB",
+                lowRamDevice, coreCount, memoryClassMb);
+
+        return new PerformanceProfile(mode, lite, deviceSummary);
+    }
+
+    @NonNull
+    static Mode getMode(@NonNull final SharedPreferences sharedPreferences) {
+        try {
+            return Mode.valueOf(sharedPreferences.getString(MODE_KEY, Mode.AUTOMATIC.name()));
+        } catch (final IllegalArgumentException e) {
+            return Mode.AUTOMATIC;
+        }
+    }
+
+    static void setMode(
+            @NonNull final SharedPreferences sharedPreferences,
+            @NonNull final Mode mode) {
+
+        sharedPreferences
+                .edit()
+                .putString(MODE_KEY, mode.name())
+                .apply();
+    }
+
+    @NonNull
+    private final Mode mode;
+
+    private final boolean lite;
+
+    @NonNull
+    private final String deviceSummary;
+
+    private PerformanceProfile(
+            @NonNull final Mode mode,
+            final boolean lite,
+            @NonNull final String deviceSummary) {
+
+        this.mode = mode;
+        this.lite = lite;
+        this.deviceSummary = deviceSummary;
+    }
+
+    boolean isLite() {
+        return lite;
+    }
+
+    @NonNull
+    Bitmap.Config getAvatarBitmapConfig() {
+        return lite ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return how long to wait for further roster changes before refreshing the roster views; 0 to
+     *         refresh immediately.
+     */
+    long getRefreshCoalescingMs() {
+        return lite ? LITE_REFRESH_COALESCING_MS : 0;
+    }
+
+    /**
+     * @return the maximum number of users shown as nearby at once.
+     */
+    int getMaxNearbyUsers() {
+        return lite ? LITE_MAX_NEARBY_USERS : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return how long each subscription window lasts; 0 to subscribe continuously.
+     */
+    long getSubscribeOnMs() {
+        return lite ? LITE_SUBSCRIBE_ON_MS : 0;
+    }
+
+    long getSubscribeOffMs() {
+        return lite ? LITE_SUBSCRIBE_OFF_MS : 0;
+    }
+
+    @NonNull
+    String buildReport() {
+        final StringBuilder result = new StringBuilder();
+
+        result.append(lite ? "LITE" : "FULL")
+                .append(mode == Mode.AUTOMATIC ? " (selected automatically)" : " (chosen in menu)")
+                .append('\n')
+                .append("Device: ").append(deviceSummary).append('\n');
+
+        if (lite) {
+            result.append(String.format(Locale.US,
+                    "RGB_565 avatars, %d ms refresh coalescing, at most %d nearby users,\n"
+                            + "subscribed %d s of every %d s\n",
+                    getRefreshCoalescingMs(),
+                    getMaxNearbyUsers(),
+                    getSubscribeOnMs() / 1000,
+                    (getSubscribeOnMs() + getSubscribeOffMs()) / 1000));
+        } else {
+            result.append("ARGB_8888 avatars, immediate refreshes, no roster cap,"
+                    + " continuous subscription\n");
+        }
+
+        return result.toString();
+    }
+
+}
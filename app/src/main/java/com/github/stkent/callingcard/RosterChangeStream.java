@@ -0,0 +1,295 @@
+package com.github.stkent.callingcard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publishes changes to the nearby roster as typed deltas, on the main thread. Each subscriber has
+ * a bounded queue that is conflated per user and reset to the latest roster when it overflows.
+ */
+final class RosterChangeStream {
+
+    static final class Change {
+
+        enum Type {
+            ADDED,
+            REMOVED,
+            // The user's card or presence (recently seen vs. nearby, saved vs. unsaved) changed.
+            UPDATED,
+            // The user was saved; conflation may deliver this for a user whose ADDED was dropped.
+            MOVED_TO_SAVED
+        }
+
+        @NonNull
+        private final Type type;
+
+        @NonNull
+        private final User user;
+
+        private Change(@NonNull final Type type, @NonNull final User user) {
+            this.type = type;
+            this.user = user;
+        }
+
+        @NonNull
+        Type getType() {
+            return type;
+        }
+
+        @NonNull
+        User getUser() {
+            return user;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + user.getName();
+        }
+    }
+
+    interface Subscriber {
+        /**
+         * @param changes every change since the last delivery, at most one per user.
+         */
+        void onRosterChanged(@NonNull final List<Change> changes);
+
+        /**
+         * Called when a subscription starts, and in place of {@link #onRosterChanged} whenever the
+         * subscriber fell too far behind to be caught up with individual changes.
+         */
+        void onRosterReset(@NonNull final List<User> roster);
+    }
+
+    interface RosterProvider {
+        /**
+         * @return a copy of the current roster. Called on the main thread.
+         */
+        @NonNull
+        List<User> getRoster();
+    }
+
+    final class Subscription {
+
+        @NonNull
+        private final Subscriber subscriber;
+
+        @NonNull
+        private final Handler handler;
+
+        private final int capacity;
+
+        // Pending changes keyed by user id. All mutable state is guarded by this Subscription.
+        @NonNull
+        private final Map<String, Change> pendingChanges = new LinkedHashMap<>();
+
+        // Non-null when the subscriber is due a reset instead of individual changes.
+        @Nullable
+        private List<User> pendingRoster;
+
+        // True while the subscriber is due a reset whose roster has not been copied yet.
+        private boolean rosterCapturePending = false;
+
+        private boolean drainScheduled = false;
+        private boolean cancelled = false;
+
+        @NonNull
+        private final Runnable drainRunnable = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        @NonNull
+        private final Runnable captureRosterRunnable = new Runnable() {
+            @Override
+            public void run() {
+                captureRoster();
+            }
+        };
+
+        private Subscription(
+                @NonNull final Subscriber subscriber,
+                @NonNull final Handler handler,
+                final int capacity) {
+
+            this.subscriber = subscriber;
+            this.handler = handler;
+            this.capacity = capacity;
+        }
+
+        void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                pendingChanges.clear();
+                pendingRoster = null;
+                rosterCapturePending = false;
+            }
+
+            subscriptions.remove(this);
+            handler.removeCallbacks(drainRunnable);
+            mainHandler.removeCallbacks(captureRosterRunnable);
+        }
+
+        private synchronized void offerReset(@NonNull final List<User> roster) {
+            pendingChanges.clear();
+            pendingRoster = roster;
+            scheduleDrain();
+        }
+
+        private synchronized void offer(@NonNull final Change change) {
+            if (cancelled || rosterCapturePending) {
+                // The roster copied for the pending reset will include this change.
+                return;
+            }
+
+            conflate(change);
+
+            if (pendingChanges.size() > capacity) {
+                Log.d(TAG, "Subscriber fell " + pendingChanges.size()
+                        + " changes behind; resetting it to the latest roster.");
+
+                pendingChanges.clear();
+                pendingRoster = null;
+                rosterCapturePending = true;
+                mainHandler.post(captureRosterRunnable);
+                return;
+            }
+
+            scheduleDrain();
+        }
+
+        /**
+         * Runs on the main thread, after every change emitted before the reset was requested.
+         */
+        private void captureRoster() {
+            final List<User> roster = rosterProvider.getRoster();
+
+            synchronized (this) {
+                if (cancelled || !rosterCapturePending) {
+                    return;
+                }
+
+                rosterCapturePending = false;
+                pendingRoster = roster;
+                scheduleDrain();
+            }
+        }
+
+        private void conflate(@NonNull final Change change) {
+            final String userId = change.getUser().getId();
+            final Change pendingChange = pendingChanges.remove(userId);
+
+            if (pendingChange == null) {
+                pendingChanges.put(userId, change);
+                return;
+            }
+
+            final Change.Type pendingType = pendingChange.getType();
+            final Change.Type type = change.getType();
+
+            if (pendingType == Change.Type.ADDED && type == Change.Type.REMOVED) {
+                // The subscriber never needs to hear about this user.
+                return;
+            }
+
+            if (pendingType == Change.Type.ADDED && type == Change.Type.UPDATED) {
+                pendingChanges.put(userId, new Change(Change.Type.ADDED, change.getUser()));
+            } else if (pendingType == Change.Type.REMOVED && type == Change.Type.ADDED) {
+                pendingChanges.put(userId, new Change(Change.Type.UPDATED, change.getUser()));
+            } else {
+                pendingChanges.put(userId, change);
+            }
+        }
+
+        private void scheduleDrain() {
+            if (!drainScheduled) {
+                drainScheduled = true;
+                handler.post(drainRunnable);
+            }
+        }
+
+        private void drain() {
+            final List<Change> changes;
+            final List<User> roster;
+
+            synchronized (this) {
+                drainScheduled = false;
+
+                if (cancelled) {
+                    return;
+                }
+
+                changes = new ArrayList<>(pendingChanges.values());
+                roster = pendingRoster;
+                pendingChanges.clear();
+                pendingRoster = null;
+            }
+
+            if (roster != null) {
+                subscriber.onRosterReset(roster);
+            }
+
+            if (!changes.isEmpty()) {
+                subscriber.onRosterChanged(changes);
+            }
+        }
+    }
+
+    private static final String TAG = "RosterChangeStream";
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    @NonNull
+    private final RosterProvider rosterProvider;
+
+    RosterChangeStream(@NonNull final RosterProvider rosterProvider) {
+        this.rosterProvider = rosterProvider;
+    }
+
+    /**
+     * Must be called on the main thread. The subscriber first receives the current roster as a
+     * reset.
+     *
+     * @param handler  the Handler on which the subscriber is called.
+     * @param capacity the number of distinct pending changes after which the subscriber is reset
+     *                 instead.
+     */
+    @NonNull
+    Subscription subscribe(
+            @NonNull final Subscriber subscriber,
+            @NonNull final Handler handler,
+            final int capacity) {
+
+        final Subscription subscription = new Subscription(subscriber, handler, capacity);
+        subscriptions.add(subscription);
+        subscription.offerReset(rosterProvider.getRoster());
+        return subscription;
+    }
+
+    void emit(@NonNull final Change.Type type, @NonNull final User user) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+
+        final Change change = new Change(type, user);
+
+        for (final Subscription subscription : subscriptions) {
+            subscription.offer(change);
+        }
+    }
+
+}
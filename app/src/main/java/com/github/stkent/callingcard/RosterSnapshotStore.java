@@ -0,0 +1,278 @@
+package com.github.stkent.callingcard;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persists cards with their last-seen times as a small binary file, e.g. the last nearby roster or
+ * the cards collected in the background. Writes merge into the stored cards.
+ */
+final class RosterSnapshotStore {
+
+    interface ReadCallback {
+        /**
+         * @param lastSeenTimes users mapped to the time they were last seen, most recent first.
+         */
+        void onSnapshotRead(@NonNull final Map<User, Long> lastSeenTimes);
+    }
+
+    interface MergeCallback {
+        /**
+         * Called on the disk thread once the merged snapshot has been written (or has failed to be
+         * written).
+         *
+         * @param cpuTimeMs CPU time spent reading, merging and writing the snapshot.
+         */
+        void onMergeFinished(final long cpuTimeMs);
+    }
+
+    private static final String TAG = "RosterSnapshotStore";
+
+    // Bounds the roster snapshot to a few kilobytes regardless of how busy the venue was.
+    static final int MAX_ROSTER_ENTRIES = 100;
+
+    // Roster entries older than this are not worth presenting as "recently seen".
+    static final long MAX_ROSTER_ENTRY_AGE_MS = 6 * 60 * 60 * 1000;
+
+    private static final int MAGIC = 0x43435253; // "CCRS"
+    private static final int VERSION = 2;
+
+    @NonNull
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final File snapshotFile;
+
+    private final int maxEntries;
+    private final long maxEntryAgeMs;
+
+    /**
+     * @param maxEntries the number of most recently seen cards kept; older ones are dropped.
+     * @param maxEntryAgeMs how long a card is kept after it was last seen.
+     */
+    RosterSnapshotStore(
+            @NonNull final File snapshotFile,
+            final int maxEntries,
+            final long maxEntryAgeMs) {
+
+        this.snapshotFile = snapshotFile;
+        this.maxEntries = maxEntries;
+        this.maxEntryAgeMs = maxEntryAgeMs;
+    }
+
+    /**
+     * Merges the given last-seen times into the stored snapshot, keeping the most recent time for
+     * users that appear in both. Invalid users are skipped, since the snapshot format requires an
+     * id, name and email address for every entry.
+     */
+    void merge(
+            @NonNull final Map<User, Long> lastSeenTimes,
+            @Nullable final MergeCallback callback) {
+
+        final Map<User, Long> newLastSeenTimes = new HashMap<>(lastSeenTimes.size());
+
+        for (final Map.Entry<User, Long> entry : lastSeenTimes.entrySet()) {
+            if (entry.getKey().isValid()) {
+                newLastSeenTimes.put(entry.getKey(), entry.getValue());
+            } else {
+                Log.w(TAG, "Not writing invalid user to roster snapshot.");
+            }
+        }
+
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long startCpuTimeMs = SystemClock.currentThreadTimeMillis();
+
+                try {
+                    final Map<User, Long> mergedLastSeenTimes
+                            = readEntriesOrEmpty(System.currentTimeMillis() - maxEntryAgeMs);
+
+                    for (final Map.Entry<User, Long> entry : newLastSeenTimes.entrySet()) {
+                        final Long storedLastSeenTime = mergedLastSeenTimes.get(entry.getKey());
+
+                        if (storedLastSeenTime == null
+                                || storedLastSeenTime < entry.getValue()) {
+
+                            mergedLastSeenTimes.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+
+                    final List<Map.Entry<User, Long>> entries
+                            = new ArrayList<>(mergedLastSeenTimes.entrySet());
+
+                    Collections.sort(entries, new Comparator<Map.Entry<User, Long>>() {
+                        @Override
+                        public int compare(
+                                final Map.Entry<User, Long> lhs,
+                                final Map.Entry<User, Long> rhs) {
+
+                            return rhs.getValue().compareTo(lhs.getValue());
+                        }
+                    });
+
+                    if (entries.size() > maxEntries) {
+                        Log.w(TAG, "Dropping " + (entries.size() - maxEntries)
+                                + " least recently seen cards from " + snapshotFile.getName());
+                    }
+
+                    writeEntries(entries.subList(0, Math.min(entries.size(), maxEntries)));
+                } catch (final IOException e) {
+                    Log.e(TAG, "Failed to write roster snapshot.", e);
+                }
+
+                if (callback != null) {
+                    callback.onMergeFinished(
+                            SystemClock.currentThreadTimeMillis() - startCpuTimeMs);
+                }
+            }
+        });
+    }
+
+    void read(@NonNull final ReadCallback callback) {
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<User, Long> lastSeenTimes
+                        = readEntriesOrEmpty(System.currentTimeMillis() - maxEntryAgeMs);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSnapshotRead(lastSeenTimes);
+                    }
+                });
+            }
+        });
+    }
+
+    void clear() {
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (snapshotFile.exists() && !snapshotFile.delete()) {
+                    Log.e(TAG, "Could not delete " + snapshotFile + ".");
+                }
+            }
+        });
+    }
+
+    @NonNull
+    private Map<User, Long> readEntriesOrEmpty(final long oldestLastSeenTime) {
+        try {
+            return readEntries(oldestLastSeenTime);
+        } catch (final FileNotFoundException e) {
+            return new LinkedHashMap<>();
+        } catch (final IOException e) {
+            Log.e(TAG, "Failed to read roster snapshot.", e);
+            return new LinkedHashMap<>();
+        }
+    }
+
+    private void writeEntries(@NonNull final List<Map.Entry<User, Long>> entries)
+            throws IOException {
+
+        // Write to a temporary file first so a crash mid-write never corrupts the last snapshot.
+        final File tempFile = new File(snapshotFile.getPath() + ".tmp");
+
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+
+            for (final Map.Entry<User, Long> entry : entries) {
+                final User user = entry.getKey();
+                final Uri photoUrl = user.getPhotoUrl();
+
+                out.writeLong(entry.getValue());
+                out.writeUTF(user.getId());
+                out.writeUTF(user.getName());
+                out.writeUTF(user.getEmailAddress());
+                out.writeBoolean(photoUrl != null);
+
+                if (photoUrl != null) {
+                    out.writeUTF(photoUrl.toString());
+                }
+
+                final String thumbnail = user.getThumbnail();
+                out.writeBoolean(thumbnail != null);
+
+                if (thumbnail != null) {
+                    out.writeUTF(thumbnail);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(snapshotFile)) {
+            throw new IOException("Could not replace " + snapshotFile);
+        }
+    }
+
+    @NonNull
+    private Map<User, Long> readEntries(final long oldestLastSeenTime) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile)));
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring roster snapshot with unrecognized format.");
+                return new LinkedHashMap<>();
+            }
+
+            final int count = Math.min(in.readInt(), maxEntries);
+            final Map<User, Long> result = new LinkedHashMap<>(count);
+
+            for (int i = 0; i < count; i++) {
+                final long lastSeenTime = in.readLong();
+                final String id = in.readUTF();
+                final String name = in.readUTF();
+                final String emailAddress = in.readUTF();
+                final Uri photoUrl = in.readBoolean() ? Uri.parse(in.readUTF()) : null;
+                final String thumbnail = in.readBoolean() ? in.readUTF() : null;
+
+                if (lastSeenTime >= oldestLastSeenTime) {
+                    result.put(
+                            new User(name, emailAddress, id, photoUrl, thumbnail),
+                            lastSeenTime);
+                }
+            }
+
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+}
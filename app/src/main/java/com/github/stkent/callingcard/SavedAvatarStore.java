@@ -0,0 +1,368 @@
+package com.github.stkent.callingcard;
+
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Base64;
+import android.util.Log;
+
+import com.squareup.picasso.Picasso;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a copy of saved users' avatars in a dedicated directory, separate from Picasso's evictable
+ * caches, so that saved cards render without network access.
+ */
+final class SavedAvatarStore {
+
+    interface ReportCallback {
+        /**
+         * Called on the main thread.
+         */
+        void onReportReady(@NonNull final String report);
+    }
+
+    private static final String TAG = "SavedAvatarStore";
+
+    private static final String AVATAR_FILE_SUFFIX = ".jpg";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    // Large enough for the saved list at xxhdpi.
+    private static final int AVATAR_SIZE_PX = 192;
+    private static final int AVATAR_JPEG_QUALITY = 85;
+
+    // Failed fetches are retried after this delay, doubling with each failure up to the maximum.
+    private static final long INITIAL_RETRY_DELAY_MS = 60 * 60 * 1000;
+    private static final long MAX_RETRY_DELAY_MS = 7 * 24 * 60 * 60 * 1000;
+
+    // Fetches and writes avatars.
+    @NonNull
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+
+    // Reads the directory for reports, so that they do not wait behind queued fetches.
+    @NonNull
+    private final ExecutorService reportExecutor = Executors.newSingleThreadExecutor();
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final File directory;
+
+    @NonNull
+    private final Picasso picasso;
+
+    /*
+     * Maps the avatar file name of each user whose avatar could not be fetched to
+     * "<failure count>:<time of the next attempt>". Disk thread only.
+     */
+    @NonNull
+    private final SharedPreferences failedFetches;
+
+    // Avatar file names already passed to pinWhenShown in this process. Main thread only.
+    @NonNull
+    private final Set<String> shownFileNames = new HashSet<>();
+
+    SavedAvatarStore(
+            @NonNull final File directory,
+            @NonNull final Picasso picasso,
+            @NonNull final SharedPreferences failedFetches) {
+
+        this.directory = directory;
+        this.picasso = picasso;
+        this.failedFetches = failedFetches;
+    }
+
+    /**
+     * @return the file holding the user's pinned avatar. The file may not exist yet (or at all, if
+     *         the avatar could not be fetched).
+     */
+    @NonNull
+    File getAvatarFile(@NonNull final User user) {
+        return new File(directory, getFileName(user.getId()));
+    }
+
+    /**
+     * Pins avatars of users saved explicitly.
+     */
+    void pin(@NonNull final Collection<User> users) {
+        final List<User> usersToPin = new ArrayList<>(users);
+
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (final User user : usersToPin) {
+                    pinIfMissing(user);
+                }
+            }
+        });
+    }
+
+    /**
+     * Pins the avatar of a saved user as it is shown, if it is missing. Users saved in bulk, e.g.
+     * by an import, are pinned this way rather than all at once.
+     */
+    void pinWhenShown(@NonNull final User user) {
+        if (shownFileNames.add(getFileName(user.getId()))) {
+            pin(Collections.singleton(user));
+        }
+    }
+
+    void release(@NonNull final Collection<User> users) {
+        final List<User> usersToRelease = new ArrayList<>(users);
+
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SharedPreferences.Editor editor = failedFetches.edit();
+
+                for (final User user : usersToRelease) {
+                    final File avatarFile = getAvatarFile(user);
+
+                    if (avatarFile.exists() && !avatarFile.delete()) {
+                        Log.w(TAG, "Could not release avatar for " + user.getId() + ".");
+                    }
+
+                    editor.remove(avatarFile.getName());
+                }
+
+                editor.apply();
+            }
+        });
+    }
+
+    /**
+     * Releases avatars of users that are no longer saved. Missing avatars are left to
+     * {@link #pinWhenShown}.
+     */
+    void reconcile(@NonNull final Collection<User> savedUsers) {
+        final List<User> users = new ArrayList<>(savedUsers);
+
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Set<String> expectedFileNames = new HashSet<>();
+
+                for (final User user : users) {
+                    expectedFileNames.add(getFileName(user.getId()));
+                }
+
+                final File[] files = directory.listFiles();
+
+                if (files == null) {
+                    return;
+                }
+
+                for (final File file : files) {
+                    if (!expectedFileNames.contains(file.getName()) && !file.delete()) {
+                        Log.w(TAG, "Could not delete stale avatar " + file.getName() + ".");
+                    }
+                }
+
+                final SharedPreferences.Editor editor = failedFetches.edit();
+
+                for (final String fileName : failedFetches.getAll().keySet()) {
+                    if (!expectedFileNames.contains(fileName)) {
+                        editor.remove(fileName);
+                    }
+                }
+
+                editor.apply();
+            }
+        });
+    }
+
+    void buildReport(@NonNull final ReportCallback callback) {
+        reportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = directory.listFiles();
+                int fileCount = 0;
+                long totalBytes = 0;
+
+                if (files != null) {
+                    for (final File file : files) {
+                        if (file.getName().endsWith(AVATAR_FILE_SUFFIX)) {
+                            fileCount++;
+                            totalBytes += file.length();
+                        }
+                    }
+                }
+
+                final String report = String.format(Locale.US,
+                        "%d pinned avatars, %.1f KB in %s\n",
+                        fileCount, totalBytes / 1024f, directory.getName());
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReportReady(report);
+                    }
+                });
+            }
+        });
+    }
+
+    // Disk thread only.
+    private void pinIfMissing(@NonNull final User user) {
+        final File avatarFile = getAvatarFile(user);
+
+        if (user.getPhotoUrl() == null && user.getThumbnail() == null) {
+            return;
+        }
+
+        if (avatarFile.exists() || isRetryPending(avatarFile.getName())) {
+            return;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create " + directory + ".");
+            return;
+        }
+
+        final File tempFile = new File(directory, avatarFile.getName() + TEMP_FILE_SUFFIX);
+
+        try {
+            final OutputStream outputStream
+                    = new BufferedOutputStream(new FileOutputStream(tempFile));
+
+            try {
+                if (!writeAvatar(user, outputStream)) {
+                    recordFailedFetch(avatarFile.getName());
+                    return;
+                }
+            } finally {
+                outputStream.close();
+            }
+
+            if (tempFile.renameTo(avatarFile)) {
+                failedFetches.edit().remove(avatarFile.getName()).apply();
+            } else {
+                Log.e(TAG, "Could not move pinned avatar into place.");
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "Could not pin avatar for " + user.getId() + ".", e);
+            recordFailedFetch(avatarFile.getName());
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Could not delete " + tempFile + ".");
+            }
+        }
+    }
+
+    // Disk thread only.
+    private boolean isRetryPending(@NonNull final String fileName) {
+        final String failure = failedFetches.getString(fileName, null);
+        return failure != null && System.currentTimeMillis() < parseNextAttemptTimeMs(failure);
+    }
+
+    // Disk thread only.
+    private void recordFailedFetch(@NonNull final String fileName) {
+        final String previousFailure = failedFetches.getString(fileName, null);
+        final int failureCount
+                = (previousFailure != null ? parseFailureCount(previousFailure) : 0) + 1;
+
+        final long retryDelayMs = Math.min(
+                INITIAL_RETRY_DELAY_MS << Math.min(failureCount - 1, 16),
+                MAX_RETRY_DELAY_MS);
+
+        failedFetches.edit()
+                .putString(fileName,
+                        failureCount + ":" + (System.currentTimeMillis() + retryDelayMs))
+                .apply();
+    }
+
+    private static int parseFailureCount(@NonNull final String failure) {
+        try {
+            return Integer.parseInt(failure.substring(0, failure.indexOf(':')));
+        } catch (final NumberFormatException | IndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+
+    private static long parseNextAttemptTimeMs(@NonNull final String failure) {
+        try {
+            return Long.parseLong(failure.substring(failure.indexOf(':') + 1));
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true if an avatar was written.
+     */
+    private boolean writeAvatar(@NonNull final User user, @NonNull final OutputStream outputStream)
+            throws IOException {
+
+        if (user.getPhotoUrl() != null) {
+            try {
+                final Bitmap bitmap = picasso
+                        .load(user.getPhotoUrl())
+                        .resize(AVATAR_SIZE_PX, AVATAR_SIZE_PX)
+                        .centerCrop()
+                        .get();
+
+                return bitmap.compress(
+                        Bitmap.CompressFormat.JPEG, AVATAR_JPEG_QUALITY, outputStream);
+            } catch (final IOException e) {
+                Log.w(TAG, "Could not fetch photo for " + user.getId() + "; using thumbnail.", e);
+            }
+        }
+
+        final String thumbnail = user.getThumbnail();
+
+        if (thumbnail == null) {
+            return false;
+        }
+
+        try {
+            // Thumbnails are already JPEGs.
+            outputStream.write(Base64.decode(thumbnail, Base64.NO_WRAP));
+            return true;
+        } catch (final IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring malformed thumbnail.", e);
+            return false;
+        }
+    }
+
+    /**
+     * User ids come from the network, so they are hashed rather than used as file names directly.
+     */
+    @NonNull
+    private static String getFileName(@NonNull final String userId) {
+        try {
+            final byte[] digest
+                    = MessageDigest.getInstance("SHA-1").digest(userId.getBytes("UTF-8"));
+            final StringBuilder result = new StringBuilder(digest.length * 2);
+
+            for (final byte b : digest) {
+                result.append(String.format(Locale.US, "%02x", b));
+            }
+
+            return result.append(AVATAR_FILE_SUFFIX).toString();
+        } catch (final NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both are guaranteed to be available on Android.
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.github.stkent.callingcard;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backs the saved cards list, prefetching the pinned avatars of the next page of rows.
+ */
+final class SavedUsersAdapter extends BaseAdapter {
+
+    private static final int PAGE_SIZE = 20;
+    private static final int MAX_PREFETCHED_PAGES = 3;
+
+    @NonNull
+    private final Context context;
+
+    @NonNull
+    private final SavedAvatarStore savedAvatarStore;
+
+    @NonNull
+    private List<User> users = new ArrayList<>();
+
+    // Access-ordered, so the eldest entry is the least recently used page.
+    @NonNull
+    private final Map<Integer, Boolean> prefetchedPages
+            = new LinkedHashMap<Integer, Boolean>(MAX_PREFETCHED_PAGES + 1, 1f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Integer, Boolean> eldest) {
+                    return size() > MAX_PREFETCHED_PAGES;
+                }
+            };
+
+    private int lastBoundPosition = 0;
+
+    SavedUsersAdapter(
+            @NonNull final Context context,
+            @NonNull final SavedAvatarStore savedAvatarStore) {
+
+        this.context = context;
+        this.savedAvatarStore = savedAvatarStore;
+    }
+
+    void setUsers(@NonNull final List<User> users) {
+        // Copied, since the ListView must be notified of every change to the data it shows.
+        this.users = new ArrayList<>(users);
+        prefetchedPages.clear();
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return users.size();
+    }
+
+    @Override
+    public User getItem(final int position) {
+        return users.get(position);
+    }
+
+    @Override
+    public long getItemId(final int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(final int position, final View convertView, final ViewGroup parent) {
+        final UserView userView = convertView instanceof UserView
+                ? (UserView) convertView
+                : new UserView(parent.getContext());
+
+        final User user = getItem(position);
+        userView.bindUser(user, true, savedAvatarStore.getAvatarFile(user));
+        savedAvatarStore.pinWhenShown(user);
+
+        prefetchPageAhead(position);
+        lastBoundPosition = position;
+
+        return userView;
+    }
+
+    private void prefetchPageAhead(final int position) {
+        final int page = position / PAGE_SIZE;
+        final int pageAhead = position >= lastBoundPosition ? page + 1 : page - 1;
+        final int pageAheadStart = pageAhead * PAGE_SIZE;
+
+        if (pageAhead < 0 || pageAheadStart >= users.size()) {
+            return;
+        }
+
+        if (prefetchedPages.get(pageAhead) != null) {
+            return;
+        }
+
+        prefetchedPages.put(pageAhead, true);
+
+        final int pageAheadEnd = Math.min(pageAheadStart + PAGE_SIZE, users.size());
+
+        for (int i = pageAheadStart; i < pageAheadEnd; i++) {
+            final User user = users.get(i);
+            UserView.loadPinnedAvatar(context, savedAvatarStore.getAvatarFile(user)).fetch();
+        }
+    }
+
+}
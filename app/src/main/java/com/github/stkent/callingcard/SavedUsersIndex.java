@@ -0,0 +1,262 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Thread-safe search index over saved users: prefix matching against names, name words and email
+ * addresses, and substring matching via posting lists of every 1-, 2- and 3-character gram.
+ */
+final class SavedUsersIndex {
+
+    // What was indexed for a user, so that it can be removed exactly even if the card has changed.
+    private static final class Entry {
+
+        @NonNull
+        private final User user;
+
+        // Lowercase "name email" text, used to verify substring candidates.
+        @NonNull
+        private final String searchableText;
+
+        @NonNull
+        private final Set<String> keys;
+
+        private Entry(@NonNull final User user) {
+            this.user = user;
+            this.searchableText = getSearchableText(user);
+            this.keys = getKeys(user);
+        }
+    }
+
+    private static final int MAX_GRAM_LENGTH = 3;
+
+    // Sorted search keys (whole name, name words, email address, email local part) to their users.
+    @NonNull
+    private final NavigableMap<String, Set<User>> usersByKey = new TreeMap<>();
+
+    // Grams of up to MAX_GRAM_LENGTH characters, so that short queries do not scan every user.
+    @NonNull
+    private final Map<String, Set<User>> usersByGram = new HashMap<>();
+
+    @NonNull
+    private final Map<User, Entry> entries = new HashMap<>();
+
+    SavedUsersIndex(@NonNull final Collection<User> users) {
+        for (final User user : users) {
+            add(user);
+        }
+    }
+
+    /**
+     * Indexes the given user, replacing the indexed card with the same id if its contents differ.
+     */
+    synchronized void add(@NonNull final User user) {
+        final Entry existingEntry = entries.get(user);
+
+        if (existingEntry != null) {
+            if (existingEntry.user.hasSameCardContents(user)) {
+                return;
+            }
+
+            remove(user);
+        }
+
+        final Entry entry = new Entry(user);
+        entries.put(user, entry);
+
+        for (final String key : entry.keys) {
+            addPosting(usersByKey, key, user);
+        }
+
+        for (final String gram : getAllGrams(entry.searchableText)) {
+            addPosting(usersByGram, gram, user);
+        }
+    }
+
+    /**
+     * Removes the indexed user with the given user's id. The postings removed are those recorded
+     * when that user was indexed, so the given instance's contents do not matter.
+     */
+    synchronized void remove(@NonNull final User user) {
+        final Entry entry = entries.remove(user);
+
+        if (entry == null) {
+            return;
+        }
+
+        for (final String key : entry.keys) {
+            removePosting(usersByKey, key, entry.user);
+        }
+
+        for (final String gram : getAllGrams(entry.searchableText)) {
+            removePosting(usersByGram, gram, entry.user);
+        }
+    }
+
+    /**
+     * @param maxResults the maximum number of users to return; bounds the cost of short queries
+     *                   that match most of the index.
+     * @return users matching the given query: prefix matches (in key order) first, followed by any
+     *         remaining substring matches.
+     */
+    @NonNull
+    synchronized List<User> search(@NonNull final String query, final int maxResults) {
+        final String normalizedQuery = normalize(query);
+        final Set<User> result = new LinkedHashSet<>();
+
+        if (normalizedQuery.isEmpty()) {
+            return new ArrayList<>(result);
+        }
+
+        // All keys that start with the query sort between the query and the query + U+FFFF.
+        final String prefixUpperBound = normalizedQuery + '\uffff';
+
+        for (final Set<User> users
+                : usersByKey.subMap(normalizedQuery, true, prefixUpperBound, true).values()) {
+
+            for (final User user : users) {
+                if (result.size() == maxResults) {
+                    return new ArrayList<>(result);
+                }
+
+                result.add(user);
+            }
+        }
+
+        for (final User candidate : getSubstringCandidates(normalizedQuery)) {
+            if (result.size() == maxResults) {
+                break;
+            }
+
+            if (entries.get(candidate).searchableText.contains(normalizedQuery)) {
+                result.add(candidate);
+            }
+        }
+
+        return new ArrayList<>(result);
+    }
+
+    @NonNull
+    private Collection<User> getSubstringCandidates(@NonNull final String normalizedQuery) {
+        final int gramLength = Math.min(normalizedQuery.length(), MAX_GRAM_LENGTH);
+
+        // Every match contains all of the query's grams, so the smallest posting set suffices.
+        Set<User> smallestPostings = null;
+
+        for (final String gram : getGrams(normalizedQuery, gramLength)) {
+            final Set<User> postings = usersByGram.get(gram);
+
+            if (postings == null) {
+                return new HashSet<>();
+            }
+
+            if (smallestPostings == null || postings.size() < smallestPostings.size()) {
+                smallestPostings = postings;
+            }
+        }
+
+        return smallestPostings != null ? smallestPostings : new HashSet<User>();
+    }
+
+    @NonNull
+    private static Set<String> getKeys(@NonNull final User user) {
+        final Set<String> result = new HashSet<>();
+        final String name = normalize(user.getName());
+        final String emailAddress = normalize(user.getEmailAddress());
+
+        result.add(name);
+
+        for (final String word : name.split("\\s+")) {
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+
+        result.add(emailAddress);
+
+        final int atIndex = emailAddress.indexOf('@');
+
+        if (atIndex > 0) {
+            result.add(emailAddress.substring(0, atIndex));
+        }
+
+        return result;
+    }
+
+    @NonNull
+    private static Set<String> getAllGrams(@NonNull final String text) {
+        final Set<String> result = new HashSet<>();
+
+        for (int gramLength = 1; gramLength <= MAX_GRAM_LENGTH; gramLength++) {
+            result.addAll(getGrams(text, gramLength));
+        }
+
+        return result;
+    }
+
+    @NonNull
+    private static Set<String> getGrams(@NonNull final String text, final int gramLength) {
+        final Set<String> result = new HashSet<>();
+
+        for (int i = 0; i + gramLength <= text.length(); i++) {
+            result.add(text.substring(i, i + gramLength));
+        }
+
+        return result;
+    }
+
+    @NonNull
+    private static String getSearchableText(@NonNull final User user) {
+        return normalize(user.getName()) + ' ' + normalize(user.getEmailAddress());
+    }
+
+    @NonNull
+    private static String normalize(@Nullable final String text) {
+        return text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static <K> void addPosting(
+            @NonNull final Map<K, Set<User>> index,
+            @NonNull final K key,
+            @NonNull final User user) {
+
+        Set<User> postings = index.get(key);
+
+        if (postings == null) {
+            postings = new HashSet<>();
+            index.put(key, postings);
+        }
+
+        postings.add(user);
+    }
+
+    private static <K> void removePosting(
+            @NonNull final Map<K, Set<User>> index,
+            @NonNull final K key,
+            @NonNull final User user) {
+
+        final Set<User> postings = index.get(key);
+
+        if (postings != null) {
+            postings.remove(user);
+
+            if (postings.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+}
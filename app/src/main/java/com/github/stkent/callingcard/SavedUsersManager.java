@@ -1,35 +1,131 @@
 package com.github.stkent.callingcard;
 
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
+/**
+ * Stores saved users behind a write-behind queue. Every call to {@link #setUsers} replaces the
+ * pending list in memory; the latest list is then written with a single synchronous commit on a
+ * dedicated I/O thread once COMMIT_WINDOW_MS has passed since the first pending change. Since
+ * nothing is handed to SharedPreferences.apply(), lifecycle transitions never wait on these writes.
+ *
+ * Reads always reflect the most recent call to {@link #setUsers}, whether or not it has been
+ * committed yet. The stored list is a single JSON blob, so main-thread callers should read it with
+ * {@link #loadSavedUsers}, which parses it on the I/O thread.
+ */
 public final class SavedUsersManager {
 
+    public interface LoadCallback {
+        /**
+         * Called on the main thread.
+         */
+        void onSavedUsersLoaded(@NonNull final List<User> users);
+    }
+
+    private static final String TAG = "SavedUsersManager";
     private static final String SAVED_USERS_KEY = "SAVED_USERS_KEY";
 
+    // Rapid saves and deletes within this window are merged into one commit.
+    private static final long COMMIT_WINDOW_MS = 1000;
+
     @NonNull
     private final SharedPreferences sharedPreferences;
 
     @NonNull
     private final Gson configuredGsonInstance;
 
+    @NonNull
+    private final Handler ioHandler;
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final Runnable commitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            commitPendingUsers();
+        }
+    };
+
+    // All mutable state below is guarded by this manager.
+
+    // The most recent list passed to setUsers, or null if it has not been called yet.
+    @Nullable
+    private List<User> latestUsers;
+
+    private boolean commitPending = false;
+    private int pendingMutationCount = 0;
+    private long firstPendingMutationTimeMs = 0;
+
+    private int commitCount = 0;
+    private int mergedMutationCount = 0;
+    private int maxQueueDepth = 0;
+    private long lastCommitLatencyMs = 0;
+    private long maxCommitLatencyMs = 0;
+    private long lastWriteDurationMs = 0;
+
     public SavedUsersManager(
             @NonNull final SharedPreferences sharedPreferences,
             @NonNull final Gson configuredGsonInstance) {
 
         this.sharedPreferences = sharedPreferences;
         this.configuredGsonInstance = configuredGsonInstance;
+
+        final HandlerThread ioThread
+                = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+
+        ioThread.start();
+        this.ioHandler = new Handler(ioThread.getLooper());
     }
 
+    /**
+     * Reads and parses the saved users on the I/O thread. Queued behind any commit in progress.
+     */
+    public void loadSavedUsers(@NonNull final LoadCallback callback) {
+        ioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final List<User> users = getSavedUsers();
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSavedUsersLoaded(users);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads and parses the saved users on the calling thread; prefer {@link #loadSavedUsers} on the
+     * main thread.
+     */
     @NonNull
     public List<User> getSavedUsers() {
+        synchronized (this) {
+            if (latestUsers != null) {
+                return new ArrayList<>(latestUsers);
+            }
+        }
+
         final String savedUsersString = sharedPreferences.getString(SAVED_USERS_KEY, null);
 
         if (savedUsersString == null) {
@@ -44,11 +140,94 @@ public final class SavedUsersManager {
         }
     }
 
-    public void setUsers(@NonNull final List<User> users) {
-        sharedPreferences
+    public synchronized void setUsers(@NonNull final List<User> users) {
+        latestUsers = Collections.unmodifiableList(new ArrayList<>(users));
+        pendingMutationCount++;
+        maxQueueDepth = Math.max(maxQueueDepth, pendingMutationCount);
+
+        if (!commitPending) {
+            commitPending = true;
+            firstPendingMutationTimeMs = SystemClock.elapsedRealtime();
+            ioHandler.postDelayed(commitRunnable, COMMIT_WINDOW_MS);
+        }
+    }
+
+    /**
+     * Starts committing any pending changes immediately, without waiting for them to be written.
+     */
+    public void commitSoon() {
+        synchronized (this) {
+            if (!commitPending) {
+                return;
+            }
+        }
+
+        ioHandler.removeCallbacks(commitRunnable);
+        ioHandler.post(commitRunnable);
+    }
+
+    public synchronized int getQueueDepth() {
+        return pendingMutationCount;
+    }
+
+    @NonNull
+    public synchronized String buildReport() {
+        final float mutationsPerCommit
+                = commitCount > 0 ? (float) mergedMutationCount / commitCount : 0;
+
+        return String.format(Locale.US,
+                "%d commits merging %d changes (%.1f per commit); queue depth %d (max %d)\n"
+                        + "Commit latency last %d ms, max %d ms; last write took %d ms\n",
+                commitCount,
+                mergedMutationCount,
+                mutationsPerCommit,
+                pendingMutationCount,
+                maxQueueDepth,
+                lastCommitLatencyMs,
+                maxCommitLatencyMs,
+                lastWriteDurationMs);
+    }
+
+    private void commitPendingUsers() {
+        final List<User> usersToCommit;
+        final int mutationCount;
+        final long firstMutationTimeMs;
+
+        synchronized (this) {
+            if (!commitPending || latestUsers == null) {
+                return;
+            }
+
+            usersToCommit = latestUsers;
+            mutationCount = pendingMutationCount;
+            firstMutationTimeMs = firstPendingMutationTimeMs;
+            commitPending = false;
+            pendingMutationCount = 0;
+        }
+
+        final long writeStartTimeMs = SystemClock.elapsedRealtime();
+
+        final boolean committed = sharedPreferences
                 .edit()
-                .putString(SAVED_USERS_KEY, configuredGsonInstance.toJson(users))
-                .apply();
+                .putString(SAVED_USERS_KEY, configuredGsonInstance.toJson(usersToCommit))
+                .commit();
+
+        final long writeEndTimeMs = SystemClock.elapsedRealtime();
+
+        if (!committed) {
+            Log.e(TAG, "Failed to commit " + usersToCommit.size() + " saved users.");
+        }
+
+        synchronized (this) {
+            commitCount++;
+            mergedMutationCount += mutationCount;
+            lastWriteDurationMs = writeEndTimeMs - writeStartTimeMs;
+            lastCommitLatencyMs = writeEndTimeMs - firstMutationTimeMs;
+            maxCommitLatencyMs = Math.max(maxCommitLatencyMs, lastCommitLatencyMs);
+        }
+
+        Log.d(TAG, "Committed " + usersToCommit.size() + " saved users, merging " + mutationCount
+                + " changes, in " + (writeEndTimeMs - writeStartTimeMs) + " ms.");
     }
 
 }
@@ -23,9 +23,26 @@ public final class SignInActivity extends BaseActivity implements OnClickListene
     @Bind(R.id.sign_in_button)
     protected SignInButton signInButton;
 
+    private SignedInUserManager signedInUserManager;
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        signedInUserManager = CustomApplication.getSignedInUserManager(this);
+
+        final User cachedUser = signedInUserManager.getSignedInUser();
+
+        if (cachedUser != null) {
+            // Fast path: NearbyActivity re-validates sign-in in the background and returns here if
+            // that fails, so there is no need to wait on a Play services round-trip.
+            Log.d(TAG, "onCreate: Launching with cached user.");
+
+            NearbyActivity.launchWithUserData(cachedUser, this);
+            finish();
+            return;
+        }
+
         setContentView(R.layout.activity_sign_in);
         ButterKnife.bind(this);
 
@@ -66,6 +83,7 @@ public final class SignInActivity extends BaseActivity implements OnClickListene
                 final User user = new User(account);
 
                 if (user.isValid()) {
+                    signedInUserManager.setSignedInUser(user);
                     NearbyActivity.launchWithUserData(user, this);
                     finish();
                 } else {
@@ -0,0 +1,62 @@
+package com.github.stkent.callingcard;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Persists the last User whose sign-in was verified, so that launches can go straight to
+ * NearbyActivity while sign-in is re-validated in the background.
+ */
+public final class SignedInUserManager {
+
+    private static final String SIGNED_IN_USER_KEY = "SIGNED_IN_USER_KEY";
+
+    @NonNull
+    private final SharedPreferences sharedPreferences;
+
+    @NonNull
+    private final Gson configuredGsonInstance;
+
+    public SignedInUserManager(
+            @NonNull final SharedPreferences sharedPreferences,
+            @NonNull final Gson configuredGsonInstance) {
+
+        this.sharedPreferences = sharedPreferences;
+        this.configuredGsonInstance = configuredGsonInstance;
+    }
+
+    @Nullable
+    public User getSignedInUser() {
+        final String signedInUserString = sharedPreferences.getString(SIGNED_IN_USER_KEY, null);
+
+        if (signedInUserString == null) {
+            return null;
+        }
+
+        try {
+            final User user = configuredGsonInstance.fromJson(signedInUserString, User.class);
+            return user != null && user.isValid() ? user : null;
+        } catch (final JsonParseException e) {
+            return null;
+        }
+    }
+
+    public void setSignedInUser(@NonNull final User user) {
+        sharedPreferences
+                .edit()
+                .putString(SIGNED_IN_USER_KEY, configuredGsonInstance.toJson(user))
+                .apply();
+    }
+
+    public void clearSignedInUser() {
+        sharedPreferences
+                .edit()
+                .remove(SIGNED_IN_USER_KEY)
+                .apply();
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.github.stkent.callingcard;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds application components once each, on a background thread started with the application, or
+ * on whichever thread needs one first.
+ */
+final class StartupInitializer {
+
+    interface Factory<T> {
+        @NonNull
+        T create();
+    }
+
+    static final class Component<T> {
+
+        @NonNull
+        private final String name;
+
+        @NonNull
+        private final Factory<T> factory;
+
+        @NonNull
+        private final Component<?>[] dependencies;
+
+        @NonNull
+        private final StartupTracer startupTracer;
+
+        private volatile T instance;
+
+        private Component(
+                @NonNull final String name,
+                @NonNull final Factory<T> factory,
+                @NonNull final Component<?>[] dependencies,
+                @NonNull final StartupTracer startupTracer) {
+
+            this.name = name;
+            this.factory = factory;
+            this.dependencies = dependencies;
+            this.startupTracer = startupTracer;
+        }
+
+        @NonNull
+        T get() {
+            T result = instance;
+
+            if (result == null) {
+                synchronized (this) {
+                    result = instance;
+
+                    if (result == null) {
+                        // Dependencies form a DAG, so acquiring their locks here cannot deadlock.
+                        for (final Component<?> dependency : dependencies) {
+                            dependency.get();
+                        }
+
+                        final long startMs = SystemClock.elapsedRealtime();
+                        result = factory.create();
+
+                        startupTracer.recordComponentCost(
+                                name,
+                                SystemClock.elapsedRealtime() - startMs,
+                                Looper.myLooper() == Looper.getMainLooper());
+
+                        instance = result;
+                    }
+                }
+            }
+
+            return result;
+        }
+    }
+
+    @NonNull
+    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
+
+    @NonNull
+    private final List<Component<?>> components = new ArrayList<>();
+
+    @NonNull
+    private final StartupTracer startupTracer;
+
+    StartupInitializer(@NonNull final StartupTracer startupTracer) {
+        this.startupTracer = startupTracer;
+    }
+
+    /**
+     * Components are built in the background in registration order, so register the ones the first
+     * activity needs first.
+     */
+    @NonNull
+    <T> Component<T> register(
+            @NonNull final String name,
+            @NonNull final Factory<T> factory,
+            @NonNull final Component<?>... dependencies) {
+
+        final Component<T> component = new Component<>(name, factory, dependencies, startupTracer);
+        components.add(component);
+        return component;
+    }
+
+    /**
+     * Starts building every registered component in the background.
+     */
+    void start() {
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (final Component<?> component : components) {
+                    component.get();
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,371 @@
+package com.github.stkent.callingcard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Records the milestones of activity-started cold launches in a small ring file.
+ */
+public final class StartupTracer {
+
+    public enum Milestone {
+        APPLICATION_CREATED,
+        SIGN_IN_STARTED,
+        NEARBY_CONTENT_BOUND,
+        SAVED_USERS_LOADED,
+        FIRST_ROSTER_FRAME,
+        SIGN_IN_RESOLVED,
+        GOOGLE_API_CLIENT_CONNECTED
+    }
+
+    public interface ReportCallback {
+        void onReportReady(@NonNull final String report);
+    }
+
+    private static final String TAG = "StartupTracer";
+
+    private static final int MAGIC = 0x43435354; // "CCST"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE_BYTES = 4 * 5;
+    private static final int MAX_RECORDED_LAUNCHES = 32;
+
+    private static final int MILESTONE_COUNT = Milestone.values().length;
+    private static final int RECORD_SIZE_BYTES = 8 * (2 + MILESTONE_COUNT);
+
+    /*
+     * Main-thread CPU time spent before the first roster frame. Exceeding this in a debug build
+     * logs a warning so that startup regressions are noticed during development.
+     */
+    private static final long MAIN_THREAD_BUDGET_MS = 500;
+
+    // Milestones that arrive asynchronously get this long after the first frame to be recorded.
+    private static final long LATE_MILESTONE_GRACE_PERIOD_MS = 10 * 1000;
+
+    private static final long NOT_REACHED = -1;
+
+    @NonNull
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable persistLaunchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            persistLaunch();
+        }
+    };
+
+    @NonNull
+    private final File ringFile;
+
+    @NonNull
+    private final long[] milestoneOffsetsMs = new long[MILESTONE_COUNT];
+
+    // Guarded by itself; written from whichever thread builds a component.
+    @NonNull
+    private final List<String> componentCosts = new ArrayList<>();
+
+    private final long launchWallTimeMs = System.currentTimeMillis();
+    private final long launchElapsedRealtimeMs = SystemClock.elapsedRealtime();
+    private long mainThreadCpuBeforeFirstFrameMs = NOT_REACHED;
+
+    private boolean activityCreated = false;
+    private boolean launchPersisted = false;
+    private boolean launchExcluded = false;
+
+    public StartupTracer(@NonNull final File ringFile) {
+        this.ringFile = ringFile;
+        Arrays.fill(milestoneOffsetsMs, NOT_REACHED);
+    }
+
+    /**
+     * Must be called when any activity is created. Must be called on the main thread.
+     */
+    public void onActivityCreated() {
+        activityCreated = true;
+    }
+
+    /**
+     * Must be called when a component other than an activity (e.g. a broadcast receiver) starts.
+     * If no activity has been created yet, this launch was not started by the user and is not
+     * recorded. Must be called on the main thread.
+     */
+    public void onNonActivityComponentStarted() {
+        if (!activityCreated && !launchExcluded) {
+            Log.d(TAG, "Not recording launch: process was not started by an activity.");
+            launchExcluded = true;
+            mainHandler.removeCallbacks(persistLaunchRunnable);
+        }
+    }
+
+    /**
+     * Records the first occurrence of the given milestone during this launch; later occurrences
+     * (for example, from subsequent activity starts) are ignored.
+     */
+    public void mark(@NonNull final Milestone milestone) {
+        if (launchPersisted
+                || launchExcluded
+                || milestoneOffsetsMs[milestone.ordinal()] != NOT_REACHED) {
+
+            return;
+        }
+
+        final long offsetMs = SystemClock.elapsedRealtime() - launchElapsedRealtimeMs;
+        milestoneOffsetsMs[milestone.ordinal()] = offsetMs;
+        Log.d(TAG, milestone + " at +" + offsetMs + "ms");
+
+        if (milestone == Milestone.FIRST_ROSTER_FRAME) {
+            mainThreadCpuBeforeFirstFrameMs = SystemClock.currentThreadTimeMillis();
+
+            if (BuildConfig.DEBUG && mainThreadCpuBeforeFirstFrameMs > MAIN_THREAD_BUDGET_MS) {
+                Log.w(TAG, "Main thread startup cost " + mainThreadCpuBeforeFirstFrameMs
+                        + "ms exceeds budget of " + MAIN_THREAD_BUDGET_MS + "ms.");
+            }
+
+            mainHandler.postDelayed(persistLaunchRunnable, LATE_MILESTONE_GRACE_PERIOD_MS);
+        }
+
+        if (allMilestonesReached()) {
+            mainHandler.removeCallbacks(persistLaunchRunnable);
+            persistLaunch();
+        }
+    }
+
+    /**
+     * Records how long it took to construct an application component during this launch.
+     * May be called from any thread.
+     */
+    public void recordComponentCost(
+            @NonNull final String componentName,
+            final long durationMs,
+            final boolean onMainThread) {
+
+        final String description = componentName + ": " + durationMs + "ms"
+                + (onMainThread ? " (main thread)" : " (background)");
+
+        Log.d(TAG, "Built " + description);
+
+        synchronized (componentCosts) {
+            componentCosts.add(description);
+        }
+    }
+
+    /**
+     * Summarizes the recorded launches (p50/p90/max per milestone) and delivers the result on the
+     * main thread.
+     */
+    public void buildReport(@NonNull final ReportCallback callback) {
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String report;
+
+                try {
+                    report = summarize(readLaunches()) + summarizeComponentCosts();
+                } catch (final IOException e) {
+                    Log.e(TAG, "Failed to read startup traces.", e);
+                    report = "Startup traces could not be read.";
+                }
+
+                final String finalReport = report;
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReportReady(finalReport);
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean allMilestonesReached() {
+        for (final long offsetMs : milestoneOffsetsMs) {
+            if (offsetMs == NOT_REACHED) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void persistLaunch() {
+        if (launchPersisted || launchExcluded) {
+            return;
+        }
+
+        launchPersisted = true;
+
+        final long[] record = new long[2 + MILESTONE_COUNT];
+        record[0] = launchWallTimeMs;
+        record[1] = mainThreadCpuBeforeFirstFrameMs;
+        System.arraycopy(milestoneOffsetsMs, 0, record, 2, MILESTONE_COUNT);
+
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    appendLaunch(record);
+                } catch (final IOException e) {
+                    Log.e(TAG, "Failed to write startup trace.", e);
+                }
+            }
+        });
+    }
+
+    private void appendLaunch(@NonNull final long[] record) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(ringFile, "rw");
+
+        try {
+            int nextSlot = 0;
+            int filledSlots = 0;
+
+            if (hasValidHeader(file)) {
+                nextSlot = file.readInt();
+                filledSlots = file.readInt();
+            } else {
+                file.setLength(0);
+            }
+
+            file.seek(HEADER_SIZE_BYTES + (long) nextSlot * RECORD_SIZE_BYTES);
+
+            for (final long value : record) {
+                file.writeLong(value);
+            }
+
+            file.seek(0);
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeInt(MILESTONE_COUNT);
+            file.writeInt((nextSlot + 1) % MAX_RECORDED_LAUNCHES);
+            file.writeInt(Math.min(filledSlots + 1, MAX_RECORDED_LAUNCHES));
+        } finally {
+            file.close();
+        }
+    }
+
+    @NonNull
+    private List<long[]> readLaunches() throws IOException {
+        final List<long[]> result = new ArrayList<>();
+
+        if (!ringFile.exists()) {
+            return result;
+        }
+
+        final RandomAccessFile file = new RandomAccessFile(ringFile, "r");
+
+        try {
+            if (!hasValidHeader(file)) {
+                return result;
+            }
+
+            file.readInt(); // next slot; order is irrelevant for percentiles
+            final int filledSlots = file.readInt();
+
+            for (int slot = 0; slot < filledSlots; slot++) {
+                final long[] record = new long[2 + MILESTONE_COUNT];
+
+                for (int i = 0; i < record.length; i++) {
+                    record[i] = file.readLong();
+                }
+
+                result.add(record);
+            }
+        } finally {
+            file.close();
+        }
+
+        return result;
+    }
+
+    private static boolean hasValidHeader(@NonNull final RandomAccessFile file) throws IOException {
+        return file.length() >= HEADER_SIZE_BYTES
+                && file.readInt() == MAGIC
+                && file.readInt() == VERSION
+                && file.readInt() == MILESTONE_COUNT;
+    }
+
+    @NonNull
+    private String summarizeComponentCosts() {
+        final StringBuilder result = new StringBuilder("\nComponents built this launch\n\n");
+
+        synchronized (componentCosts) {
+            for (final String componentCost : componentCosts) {
+                result.append(componentCost).append('\n');
+            }
+        }
+
+        return result.toString();
+    }
+
+    @NonNull
+    private static String summarize(@NonNull final List<long[]> launches) {
+        if (launches.isEmpty()) {
+            return "No startup traces recorded yet.";
+        }
+
+        final StringBuilder result = new StringBuilder()
+                .append(launches.size())
+                .append(" launches (p50 / p90 / max, ms)\n\n");
+
+        appendPercentiles(result, "MAIN_THREAD_CPU", launches, 1);
+
+        for (final Milestone milestone : Milestone.values()) {
+            appendPercentiles(result, milestone.name(), launches, 2 + milestone.ordinal());
+        }
+
+        return result.toString();
+    }
+
+    private static void appendPercentiles(
+            @NonNull final StringBuilder builder,
+            @NonNull final String label,
+            @NonNull final List<long[]> launches,
+            final int column) {
+
+        final List<Long> values = new ArrayList<>();
+
+        for (final long[] launch : launches) {
+            if (launch[column] != NOT_REACHED) {
+                values.add(launch[column]);
+            }
+        }
+
+        builder.append(label).append(": ");
+
+        if (values.isEmpty()) {
+            builder.append("n/a\n");
+            return;
+        }
+
+        Collections.sort(values);
+
+        builder.append(String.format(
+                Locale.US,
+                "%d / %d / %d\n",
+                percentile(values, 50),
+                percentile(values, 90),
+                values.get(values.size() - 1)));
+    }
+
+    private static long percentile(@NonNull final List<Long> sortedValues, final int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(0, index));
+    }
+
+}
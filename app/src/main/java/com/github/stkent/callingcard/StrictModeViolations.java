@@ -0,0 +1,154 @@
+package com.github.stkent.callingcard;
+
+import android.content.Context;
+import android.os.DropBoxManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counts, by type, the main-thread violations StrictMode has written to the drop box since this
+ * process started. Reading the drop box needs READ_LOGS, which is declared for debug builds but
+ * must still be granted over adb.
+ */
+final class StrictModeViolations {
+
+    interface ReportCallback {
+        /**
+         * Called on the main thread.
+         */
+        void onReportReady(@NonNull final String report);
+    }
+
+    private static final String TAG = "StrictModeViolations";
+
+    private static final String DROP_BOX_TAG = "data_app_strictmode";
+    private static final int MAX_ENTRY_CHARS = 4096;
+    private static final String OTHER_TYPE = "Other";
+
+    // Matches e.g. "android.os.StrictMode$StrictModeDiskReadViolation", capturing "DiskRead".
+    private static final Pattern VIOLATION_TYPE_PATTERN
+            = Pattern.compile("StrictMode\\$StrictMode(\\w+)Violation");
+
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final Executor reportExecutor = Executors.newSingleThreadExecutor();
+
+    @NonNull
+    private final Context context;
+
+    private final boolean enabled;
+    private final long startTimeMs;
+
+    StrictModeViolations(@NonNull final Context context, final boolean enabled) {
+        this.context = context.getApplicationContext();
+        this.enabled = enabled;
+        this.startTimeMs = System.currentTimeMillis();
+    }
+
+    void buildReport(@NonNull final ReportCallback callback) {
+        if (!enabled) {
+            callback.onReportReady("Detection is only enabled in debug builds.\n");
+            return;
+        }
+
+        reportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String report = readReport();
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReportReady(report);
+                    }
+                });
+            }
+        });
+    }
+
+    // Report thread only.
+    @NonNull
+    private String readReport() {
+        final DropBoxManager dropBoxManager
+                = (DropBoxManager) context.getSystemService(Context.DROPBOX_SERVICE);
+
+        final Map<String, Integer> countsByType;
+
+        try {
+            countsByType = countViolationsByType(dropBoxManager);
+        } catch (final SecurityException e) {
+            Log.w(TAG, "Unable to read the drop box.", e);
+
+            return "Violations are logged under the StrictMode tag. To count them here, run\n"
+                    + "  adb shell pm grant " + context.getPackageName()
+                    + " android.permission.READ_LOGS\n";
+        }
+
+        int totalCount = 0;
+
+        for (final int count : countsByType.values()) {
+            totalCount += count;
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "%d violations since launch\n", totalCount));
+
+        for (final Map.Entry<String, Integer> entry : countsByType.entrySet()) {
+            builder.append(String.format(
+                    Locale.US, "  %-13s %5d\n", entry.getKey(), entry.getValue()));
+        }
+
+        return builder.toString();
+    }
+
+    // Report thread only.
+    @NonNull
+    private Map<String, Integer> countViolationsByType(
+            @NonNull final DropBoxManager dropBoxManager) {
+
+        final Map<String, Integer> result = new TreeMap<>();
+        final String processHeader = "Process: " + context.getPackageName() + "\n";
+        long lastEntryTimeMs = startTimeMs;
+
+        DropBoxManager.Entry entry = dropBoxManager.getNextEntry(DROP_BOX_TAG, lastEntryTimeMs);
+
+        while (entry != null) {
+            try {
+                lastEntryTimeMs = entry.getTimeMillis();
+
+                final String text = entry.getText(MAX_ENTRY_CHARS);
+
+                if (text != null && text.startsWith(processHeader)) {
+                    final String type = getViolationType(text);
+                    final Integer count = result.get(type);
+                    result.put(type, count != null ? count + 1 : 1);
+                }
+            } finally {
+                entry.close();
+            }
+
+            entry = dropBoxManager.getNextEntry(DROP_BOX_TAG, lastEntryTimeMs);
+        }
+
+        return result;
+    }
+
+    @NonNull
+    private static String getViolationType(@NonNull final String text) {
+        final Matcher matcher = VIOLATION_TYPE_PATTERN.matcher(text);
+        return matcher.find() ? matcher.group(1) : OTHER_TYPE;
+    }
+
+}
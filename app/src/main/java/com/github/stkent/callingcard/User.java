@@ -36,6 +36,35 @@ public final class User implements Parcelable {
     @SerializedName("photoUrlString")
     private final Uri photoUrl;
 
+    // Tiny Base64-encoded JPEG avatar, shown until (or instead of) the photo at photoUrl.
+    @Expose
+    @Nullable
+    @SerializedName("thumbnail")
+    private final String thumbnail;
+
+    User(
+            final String name,
+            final String emailAddress,
+            final String id,
+            @Nullable final Uri photoUrl) {
+
+        this(name, emailAddress, id, photoUrl, null);
+    }
+
+    User(
+            final String name,
+            final String emailAddress,
+            final String id,
+            @Nullable final Uri photoUrl,
+            @Nullable final String thumbnail) {
+
+        this.name = name;
+        this.emailAddress = emailAddress;
+        this.id = id;
+        this.photoUrl = photoUrl;
+        this.thumbnail = thumbnail;
+    }
+
     public User(@NonNull final GoogleSignInAccount googleSignInAccount) {
         this.name = googleSignInAccount.getDisplayName();
         this.emailAddress = googleSignInAccount.getEmail();
@@ -56,6 +85,7 @@ public final class User implements Parcelable {
          * even when configured."
          */
         this.photoUrl = googleSignInAccount.getPhotoUrl();
+        this.thumbnail = null;
     }
 
     public String getName() {
@@ -75,10 +105,35 @@ public final class User implements Parcelable {
         return photoUrl;
     }
 
+    @Nullable
+    String getThumbnail() {
+        return thumbnail;
+    }
+
+    @NonNull
+    User withThumbnail(@Nullable final String thumbnail) {
+        return new User(name, emailAddress, id, photoUrl, thumbnail);
+    }
+
     public boolean isValid() {
         return name != null && emailAddress != null && id != null;
     }
 
+    /**
+     * Users are equal when their ids match; this additionally compares what the card displays.
+     */
+    boolean hasSameCardContents(@NonNull final User other) {
+        return equals(other)
+                && equalOrBothNull(name, other.name)
+                && equalOrBothNull(emailAddress, other.emailAddress)
+                && equalOrBothNull(photoUrl, other.photoUrl)
+                && equalOrBothNull(thumbnail, other.thumbnail);
+    }
+
+    private static boolean equalOrBothNull(@Nullable final Object lhs, @Nullable final Object rhs) {
+        return lhs == null ? rhs == null : lhs.equals(rhs);
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) {
@@ -112,6 +167,7 @@ public final class User implements Parcelable {
         dest.writeString(this.emailAddress);
         dest.writeString(this.id);
         dest.writeParcelable(this.photoUrl, flags);
+        dest.writeString(this.thumbnail);
     }
 
     protected User(@NonNull final Parcel in) {
@@ -119,6 +175,7 @@ public final class User implements Parcelable {
         this.emailAddress = in.readString();
         this.id = in.readString();
         this.photoUrl = in.readParcelable(Uri.class.getClassLoader());
+        this.thumbnail = in.readString();
     }
 
     public static final Parcelable.Creator<User> CREATOR = new Parcelable.Creator<User>() {
@@ -1,8 +1,10 @@
 package com.github.stkent.callingcard;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.support.annotation.ColorInt;
@@ -18,7 +20,10 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
-import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Callback;
+import com.squareup.picasso.RequestCreator;
+
+import java.io.File;
 
 import butterknife.Bind;
 import butterknife.ButterKnife;
@@ -40,6 +45,8 @@ public final class UserView extends LinearLayout {
     @DrawableRes
     private static final int PLACEHOLDER_IMAGE_RES = R.drawable.img_placeholder;
 
+    private static final float RECENTLY_SEEN_ALPHA = 0.5f;
+
     @Bind(R.id.name_field)
     protected TextView nameField;
 
@@ -49,6 +56,54 @@ public final class UserView extends LinearLayout {
     @Bind(R.id.photo_image_view)
     protected ImageView photoImageView;
 
+    @Bind(R.id.recently_seen_label)
+    protected TextView recentlySeenLabel;
+
+    @Nullable
+    private User boundUser;
+
+    // True if the bound card shows its thumbnail, rather than using it as a photo placeholder.
+    private boolean showingThumbnailAsPhoto;
+
+    // True once the bound card's photo (pinned or fetched) has been shown.
+    private boolean photoLoaded;
+
+    @NonNull
+    private final Callback photoCallback = new Callback() {
+        @Override
+        public void onSuccess() {
+            photoLoaded = true;
+        }
+
+        @Override
+        public void onError() {
+            // The thumbnail, if any, stays in place of the photo.
+        }
+    };
+
+    @NonNull
+    private final CardThumbnails.DecodeCallback thumbnailDecodeCallback
+            = new CardThumbnails.DecodeCallback() {
+                @Override
+                public void onThumbnailDecoded(
+                        @NonNull final String thumbnail,
+                        @NonNull final Bitmap bitmap) {
+
+                    // Skip if this view has been re-bound to another card in the meantime.
+                    if (boundUser == null || !thumbnail.equals(boundUser.getThumbnail())) {
+                        return;
+                    }
+
+                    if (showingThumbnailAsPhoto) {
+                        CustomApplication.getPicasso(getContext()).cancelRequest(photoImageView);
+                        photoImageView.setImageBitmap(bitmap);
+                    } else if (!photoLoaded) {
+                        // Stands in for the photo until it loads.
+                        photoImageView.setImageBitmap(bitmap);
+                    }
+                }
+            };
+
     public UserView(final Context context) {
         this(context, null);
     }
@@ -75,30 +130,124 @@ public final class UserView extends LinearLayout {
     }
 
     public void bindUser(@NonNull final User user) {
+        bindUser(user, true);
+    }
+
+    /**
+     * @param loadFullPhoto false to show only the card's embedded thumbnail, if it has one, rather
+     *                      than fetching the photo from the network.
+     */
+    public void bindUser(@NonNull final User user, final boolean loadFullPhoto) {
+        bindUser(user, loadFullPhoto, null);
+    }
+
+    /**
+     * @param pinnedAvatarFile if non-null, the photo is loaded from this local file (falling back
+     *                         to the card's embedded thumbnail) and never from the network.
+     */
+    public void bindUser(
+            @NonNull final User user,
+            final boolean loadFullPhoto,
+            @Nullable final File pinnedAvatarFile) {
+
+        final JankMonitor jankMonitor = CustomApplication.getJankMonitor(getContext());
+        jankMonitor.beginOperation(JankMonitor.Operation.BIND);
+
+        boundUser = user;
+        photoLoaded = false;
+
         nameField.setText(user.getName());
         emailAddressField.setText(user.getEmailAddress());
 
         final Uri photoUrl = user.getPhotoUrl();
+        final String thumbnail = user.getThumbnail();
+        Bitmap thumbnailBitmap = null;
+
+        showingThumbnailAsPhoto = thumbnail != null
+                && pinnedAvatarFile == null
+                && (!loadFullPhoto || photoUrl == null);
+
+        if (thumbnail != null) {
+            thumbnailBitmap = CardThumbnails.getDecoded(thumbnail);
+
+            // Bind without the thumbnail for now; the callback applies it once it is decoded.
+            if (thumbnailBitmap == null) {
+                CardThumbnails.decode(thumbnail, thumbnailDecodeCallback);
+            }
+        }
 
-        if (photoUrl != null) {
+        final Drawable thumbnailDrawable = thumbnailBitmap != null
+                ? new BitmapDrawable(getResources(), thumbnailBitmap)
+                : null;
+
+        if (pinnedAvatarFile != null) {
+            final RequestCreator requestCreator = loadPinnedAvatar(getContext(), pinnedAvatarFile);
+
+            // The avatar may not have been pinned yet, or at all.
+            if (thumbnailDrawable != null) {
+                requestCreator.placeholder(thumbnailDrawable).error(thumbnailDrawable);
+            } else {
+                requestCreator.placeholder(PLACEHOLDER_IMAGE_RES).error(PLACEHOLDER_IMAGE_RES);
+            }
+
+            requestCreator.into(photoImageView, photoCallback);
+        } else if (showingThumbnailAsPhoto && thumbnailBitmap != null) {
+            CustomApplication.getPicasso(getContext()).cancelRequest(photoImageView);
+            photoImageView.setImageBitmap(thumbnailBitmap);
+        } else if (photoUrl != null) {
             Log.d(TAG, "bindUser: User photo URL found: " + photoUrl);
             Log.d(TAG, "bindUser: Loading photo...");
 
-            Picasso.with(getContext())
+            final RequestCreator requestCreator = CustomApplication.getPicasso(getContext())
                     .load(photoUrl)
-                    .placeholder(PLACEHOLDER_IMAGE_RES)
+                    .config(CustomApplication.getPerformanceProfile(getContext())
+                            .getAvatarBitmapConfig())
                     .error(PLACEHOLDER_IMAGE_RES)
-                    .fit()
-                    .into(photoImageView);
+                    .fit();
+
+            // Show the thumbnail until the full photo arrives.
+            if (thumbnailDrawable != null) {
+                requestCreator.placeholder(thumbnailDrawable);
+            } else {
+                requestCreator.placeholder(PLACEHOLDER_IMAGE_RES);
+            }
+
+            requestCreator.into(photoImageView, photoCallback);
         } else {
             Log.d(TAG, "bindUser: No user photo URL found.");
 
-            Picasso.with(getContext())
+            CustomApplication.getPicasso(getContext())
                     .load(PLACEHOLDER_IMAGE_RES)
                     .error(PLACEHOLDER_IMAGE_RES)
                     .fit()
                     .into(photoImageView);
         }
+
+        jankMonitor.endOperation(JankMonitor.Operation.BIND);
+    }
+
+    /**
+     * Loads pinned avatars at a fixed size (rather than fit()) so that prefetched avatars share
+     * Picasso's memory cache entries with bound ones.
+     */
+    @NonNull
+    static RequestCreator loadPinnedAvatar(
+            @NonNull final Context context,
+            @NonNull final File pinnedAvatarFile) {
+
+        final int photoSizePx
+                = context.getResources().getDimensionPixelSize(R.dimen.user_photo_size);
+
+        return CustomApplication.getPicasso(context)
+                .load(pinnedAvatarFile)
+                .config(CustomApplication.getPerformanceProfile(context).getAvatarBitmapConfig())
+                .resize(photoSizePx, photoSizePx)
+                .centerCrop();
+    }
+
+    public void setRecentlySeen(final boolean recentlySeen) {
+        setAlpha(recentlySeen ? RECENTLY_SEEN_ALPHA : 1f);
+        recentlySeenLabel.setVisibility(recentlySeen ? VISIBLE : GONE);
     }
 
     public void setPublishing(final boolean publishing) {
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -13,7 +14,11 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import butterknife.Bind;
 import butterknife.ButterKnife;
@@ -36,9 +41,25 @@ public final class UsersView extends LinearLayout implements OnClickListener {
     @NonNull
     private final List<User> displayedUsers = new ArrayList<>();
 
+    /*
+     * Views detached when the list shrinks, reused instead of inflating new ones. Each pool holds
+     * at most one screen of rows, so a long list that is cleared does not stay in memory.
+     */
+    @NonNull
+    private final List<UserView> recycledUserViews = new ArrayList<>();
+
+    @NonNull
+    private final List<View> recycledSpacerViews = new ArrayList<>();
+
+    private final int maxRecycledRows;
+
+    private int inflationCount = 0;
+
     @Nullable
     private UserClickListener userClickListener;
 
+    private final boolean loadFullPhotos;
+
     public UsersView(@NonNull final Context context) {
         this(context, null);
     }
@@ -66,7 +87,14 @@ public final class UsersView extends LinearLayout implements OnClickListener {
         final String emptyStateText = typedArray.getString(R.styleable.UsersView_empty_state_text);
         emptyStateLabel.setText(emptyStateText);
 
+        loadFullPhotos = typedArray.getBoolean(R.styleable.UsersView_load_full_photos, true);
+
         typedArray.recycle();
+
+        final int minRowHeightPx = getResources().getDimensionPixelSize(R.dimen.user_photo_size)
+                + 2 * getResources().getDimensionPixelSize(R.dimen.user_view_padding);
+
+        maxRecycledRows = getResources().getDisplayMetrics().heightPixels / minRowHeightPx + 1;
     }
 
     @Override
@@ -83,18 +111,16 @@ public final class UsersView extends LinearLayout implements OnClickListener {
     }
 
     public void addUser(@NonNull final User userToAdd) {
+        addUser(userToAdd, false);
+    }
+
+    public void addUser(@NonNull final User userToAdd, final boolean recentlySeen) {
         if (userToAdd.isValid() && !displayedUsers.contains(userToAdd)) {
-            final UserView userView = new UserView(getContext());
-            userView.bindUser(userToAdd);
-            userView.setTag(userToAdd);
-            userView.setOnClickListener(this);
+            final UserView userView = obtainUserView();
+            bindUserView(userView, userToAdd, recentlySeen);
 
             if (userViewContainer.getChildCount() > 0) {
-                userViewContainer.addView(
-                        LayoutInflater.from(getContext()).inflate(
-                                R.layout.include_users_view_spacer,
-                                userViewContainer,
-                                false));
+                userViewContainer.addView(obtainSpacerView());
             }
 
             userViewContainer.addView(userView);
@@ -106,21 +132,135 @@ public final class UsersView extends LinearLayout implements OnClickListener {
     }
 
     public void setUsers(@NonNull final List<User> users) {
-        removeAllUsers();
+        setUsers(users, Collections.<User>emptySet());
+    }
+
+    /**
+     * @param recentlySeenUsers members of users that should be displayed as "recently seen" rather
+     *                          than as currently present.
+     */
+    public void setUsers(
+            @NonNull final List<User> users,
+            @NonNull final Collection<User> recentlySeenUsers) {
+
+        final int attachedUserViewCount = (userViewContainer.getChildCount() + 1) / 2;
+        final Set<User> addedUsers = new HashSet<>();
 
-        for (final User user: users) {
-            addUser(user);
+        displayedUsers.clear();
+
+        for (final User user : users) {
+            if (user.isValid() && addedUsers.add(user)) {
+                displayedUsers.add(user);
+            }
+        }
+
+        // Children alternate between user views and spacers. Rebind the user views already
+        // attached, then attach or detach views for the difference.
+        for (int i = 0; i < displayedUsers.size(); i++) {
+            final User user = displayedUsers.get(i);
+            final UserView userView;
+
+            if (i < attachedUserViewCount) {
+                userView = (UserView) userViewContainer.getChildAt(2 * i);
+            } else {
+                userView = obtainUserView();
+
+                if (i > 0) {
+                    userViewContainer.addView(obtainSpacerView());
+                }
+
+                userViewContainer.addView(userView);
+            }
+
+            bindUserView(userView, user, recentlySeenUsers.contains(user));
         }
+
+        detachViewsFrom(displayedUsers.isEmpty() ? 0 : 2 * displayedUsers.size() - 1);
+        updateEmptyStateVisibility();
     }
 
     public void removeAllUsers() {
-        userViewContainer.removeAllViews();
-
+        detachViewsFrom(0);
         displayedUsers.clear();
-
         updateEmptyStateVisibility();
     }
 
+    /**
+     * @return the number of views inflated by this instance; a measure of how much work roster
+     *         updates cost.
+     */
+    @VisibleForTesting
+    int getInflationCount() {
+        return inflationCount;
+    }
+
+    @VisibleForTesting
+    int getRecycledViewCount() {
+        return recycledUserViews.size() + recycledSpacerViews.size();
+    }
+
+    @VisibleForTesting
+    int getMaxRecycledRows() {
+        return maxRecycledRows;
+    }
+
+    private void bindUserView(
+            @NonNull final UserView userView,
+            @NonNull final User user,
+            final boolean recentlySeen) {
+
+        userView.bindUser(user, loadFullPhotos);
+        userView.setRecentlySeen(recentlySeen);
+        userView.setTag(user);
+        userView.setOnClickListener(this);
+    }
+
+    private void detachViewsFrom(final int firstChildIndex) {
+        final int childCount = userViewContainer.getChildCount();
+
+        if (firstChildIndex >= childCount) {
+            return;
+        }
+
+        for (int i = firstChildIndex; i < childCount; i++) {
+            final View child = userViewContainer.getChildAt(i);
+
+            if (child instanceof UserView) {
+                if (recycledUserViews.size() < maxRecycledRows) {
+                    recycledUserViews.add((UserView) child);
+                }
+            } else if (recycledSpacerViews.size() < maxRecycledRows) {
+                recycledSpacerViews.add(child);
+            }
+        }
+
+        userViewContainer.removeViews(firstChildIndex, childCount - firstChildIndex);
+    }
+
+    @NonNull
+    private UserView obtainUserView() {
+        if (!recycledUserViews.isEmpty()) {
+            return recycledUserViews.remove(recycledUserViews.size() - 1);
+        }
+
+        inflationCount++;
+        return new UserView(getContext());
+    }
+
+    @NonNull
+    private View obtainSpacerView() {
+        if (!recycledSpacerViews.isEmpty()) {
+            return recycledSpacerViews.remove(recycledSpacerViews.size() - 1);
+        }
+
+        inflationCount++;
+
+        return LayoutInflater.from(getContext()).inflate(
+                R.layout.include_users_view_spacer,
+                userViewContainer,
+                false);
+    }
+
     private void updateEmptyStateVisibility() {
         emptyStateLabel.setVisibility(displayedUsers.size() == 0 ? VISIBLE : GONE);
     }
@@ -0,0 +1,244 @@
+package com.github.stkent.callingcard;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Locale;
+
+/**
+ * Reads users from a vCard (2.1, 3.0 or 4.0) stream one record at a time, decoding vCard 2.1
+ * QUOTED-PRINTABLE values. Only UID, FN, EMAIL and PHOTO (when given as a URI) are interpreted;
+ * records without a UID, name or email address are skipped.
+ */
+final class VCardReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @NonNull
+    private final BufferedReader reader;
+
+    // The next physical line, read ahead to detect folded continuation lines.
+    @Nullable
+    private String lookaheadLine;
+
+    private int skippedRecordCount = 0;
+
+    VCardReader(@NonNull final Reader reader) {
+        this.reader = new BufferedReader(reader);
+    }
+
+    /**
+     * @return the next valid user in the stream, or null once the stream is exhausted.
+     */
+    @Nullable
+    User readNext() throws IOException {
+        String line;
+        boolean inRecord = false;
+        String id = null;
+        String name = null;
+        String emailAddress = null;
+        Uri photoUrl = null;
+
+        while ((line = readUnfoldedLine()) != null) {
+            final int colonIndex = line.indexOf(':');
+
+            if (colonIndex < 0) {
+                continue;
+            }
+
+            final String[] nameAndParameters = line.substring(0, colonIndex).split(";");
+            final String propertyName = stripGroup(nameAndParameters[0]).toUpperCase(Locale.US);
+            String value = line.substring(colonIndex + 1);
+
+            if (isQuotedPrintable(nameAndParameters)) {
+                value = decodeQuotedPrintable(value, getCharset(nameAndParameters));
+            }
+
+            if (propertyName.equals("BEGIN") && value.equalsIgnoreCase("VCARD")) {
+                inRecord = true;
+                id = null;
+                name = null;
+                emailAddress = null;
+                photoUrl = null;
+            } else if (!inRecord) {
+                continue;
+            } else if (propertyName.equals("END") && value.equalsIgnoreCase("VCARD")) {
+                inRecord = false;
+
+                if (id != null && name != null && emailAddress != null) {
+                    return new User(name, emailAddress, id, photoUrl);
+                }
+
+                skippedRecordCount++;
+            } else if (propertyName.equals("UID")) {
+                id = unescape(value);
+            } else if (propertyName.equals("FN")) {
+                name = unescape(value);
+            } else if (propertyName.equals("EMAIL") && emailAddress == null) {
+                emailAddress = unescape(value);
+            } else if (propertyName.equals("PHOTO") && isUriValue(nameAndParameters, value)) {
+                photoUrl = Uri.parse(value);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the number of records read so far that could not be converted into valid users.
+     */
+    int getSkippedRecordCount() {
+        return skippedRecordCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    @Nullable
+    private String readUnfoldedLine() throws IOException {
+        final String firstLine = lookaheadLine != null ? lookaheadLine : reader.readLine();
+
+        if (firstLine == null) {
+            return null;
+        }
+
+        final StringBuilder line = new StringBuilder(firstLine);
+        lookaheadLine = reader.readLine();
+
+        while (lookaheadLine != null) {
+            if (!lookaheadLine.isEmpty()
+                    && (lookaheadLine.charAt(0) == ' ' || lookaheadLine.charAt(0) == '\t')) {
+
+                line.append(lookaheadLine, 1, lookaheadLine.length());
+            } else if (endsWithSoftLineBreak(line)) {
+                // A quoted-printable value continues on the next line after a trailing '='.
+                line.setLength(line.length() - 1);
+                line.append(lookaheadLine);
+            } else {
+                break;
+            }
+
+            lookaheadLine = reader.readLine();
+        }
+
+        return line.toString();
+    }
+
+    private static boolean endsWithSoftLineBreak(@NonNull final StringBuilder line) {
+        if (line.length() == 0 || line.charAt(line.length() - 1) != '=') {
+            return false;
+        }
+
+        final int colonIndex = line.indexOf(":");
+
+        return colonIndex >= 0
+                && isQuotedPrintable(line.substring(0, colonIndex).split(";"));
+    }
+
+    private static boolean isQuotedPrintable(@NonNull final String[] nameAndParameters) {
+        for (int i = 1; i < nameAndParameters.length; i++) {
+            if (nameAndParameters[i].equalsIgnoreCase("ENCODING=QUOTED-PRINTABLE")
+                    || nameAndParameters[i].equalsIgnoreCase("QUOTED-PRINTABLE")) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the CHARSET parameter's charset, or UTF-8 if it is missing or unsupported.
+     */
+    @NonNull
+    private static Charset getCharset(@NonNull final String[] nameAndParameters) {
+        for (int i = 1; i < nameAndParameters.length; i++) {
+            final String parameter = nameAndParameters[i];
+
+            if (parameter.regionMatches(true, 0, "CHARSET=", 0, "CHARSET=".length())) {
+                try {
+                    return Charset.forName(parameter.substring("CHARSET=".length()));
+                } catch (final IllegalCharsetNameException | UnsupportedCharsetException e) {
+                    return UTF_8;
+                }
+            }
+        }
+
+        return UTF_8;
+    }
+
+    @NonNull
+    private static String decodeQuotedPrintable(
+            @NonNull final String value,
+            @NonNull final Charset charset) {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final int high = i + 2 < value.length() ? Character.digit(value.charAt(i + 1), 16) : -1;
+            final int low = i + 2 < value.length() ? Character.digit(value.charAt(i + 2), 16) : -1;
+
+            if (c == '=' && high >= 0 && low >= 0) {
+                bytes.write(high << 4 | low);
+                i += 2;
+            } else {
+                // Malformed escapes are kept as they are. Values are otherwise ASCII.
+                bytes.write(c);
+            }
+        }
+
+        return new String(bytes.toByteArray(), charset);
+    }
+
+    private static boolean isUriValue(
+            @NonNull final String[] nameAndParameters,
+            @NonNull final String value) {
+
+        for (int i = 1; i < nameAndParameters.length; i++) {
+            if (nameAndParameters[i].equalsIgnoreCase("VALUE=URI")
+                    || nameAndParameters[i].equalsIgnoreCase("VALUE=URL")) {
+
+                return true;
+            }
+        }
+
+        return value.startsWith("http://") || value.startsWith("https://");
+    }
+
+    @NonNull
+    private static String stripGroup(@NonNull final String propertyName) {
+        final int dotIndex = propertyName.indexOf('.');
+        return dotIndex >= 0 ? propertyName.substring(dotIndex + 1) : propertyName;
+    }
+
+    @NonNull
+    private static String unescape(@NonNull final String value) {
+        final StringBuilder result = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            if (c == '\\' && i + 1 < value.length()) {
+                final char next = value.charAt(++i);
+                result.append(next == 'n' || next == 'N' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+
+        return result.toString();
+    }
+
+}
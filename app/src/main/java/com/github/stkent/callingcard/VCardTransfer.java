@@ -0,0 +1,200 @@
+package com.github.stkent.callingcard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streams saved users to and from vCard files on a background thread.
+ */
+final class VCardTransfer {
+
+    interface ExportCallback {
+        /**
+         * @param file the exported file, or null if the export failed.
+         */
+        void onExportFinished(@Nullable final File file, final int exportedCount);
+    }
+
+    interface ImportListener {
+        /**
+         * Called on the main thread with each batch of new (not previously saved) users. Reading
+         * is paused until this returns, so it should hand any slow work off the main thread.
+         */
+        void onBatchImported(@NonNull final List<User> batch);
+
+        void onImportFinished(
+                final int importedCount,
+                final int skippedCount,
+                final boolean succeeded);
+    }
+
+    private static final String TAG = "VCardTransfer";
+    private static final String CHARSET_NAME = "UTF-8";
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    static void exportUsers(
+            @NonNull final Collection<User> users,
+            @NonNull final File file,
+            @NonNull final ExportCallback callback) {
+
+        final List<User> usersToExport = new ArrayList<>(users);
+
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                int exportedCount = 0;
+                boolean succeeded = true;
+
+                try {
+                    final VCardWriter vCardWriter = new VCardWriter(new OutputStreamWriter(
+                            new BufferedOutputStream(new FileOutputStream(file)), CHARSET_NAME));
+
+                    try {
+                        for (final User user : usersToExport) {
+                            vCardWriter.write(user);
+                            exportedCount++;
+                        }
+                    } finally {
+                        vCardWriter.close();
+                    }
+                } catch (final IOException e) {
+                    Log.e(TAG, "Failed to export saved users.", e);
+                    succeeded = false;
+                }
+
+                final int finalExportedCount = exportedCount;
+                final File exportedFile = succeeded ? file : null;
+
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onExportFinished(exportedFile, finalExportedCount);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param existingUserIds ids of users that are already saved; matching records are skipped.
+     */
+    static void importUsers(
+            @NonNull final InputStream inputStream,
+            @NonNull final Collection<String> existingUserIds,
+            @NonNull final ImportListener listener) {
+
+        final Set<String> seenUserIds = new HashSet<>(existingUserIds);
+
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                int importedCount = 0;
+                int duplicateCount = 0;
+                int invalidCount = 0;
+                boolean succeeded = true;
+
+                try {
+                    final VCardReader vCardReader
+                            = new VCardReader(new InputStreamReader(inputStream, CHARSET_NAME));
+
+                    try {
+                        List<User> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+                        User user;
+
+                        while ((user = vCardReader.readNext()) != null) {
+                            if (!seenUserIds.add(user.getId())) {
+                                duplicateCount++;
+                                continue;
+                            }
+
+                            batch.add(user);
+                            importedCount++;
+
+                            if (batch.size() == IMPORT_BATCH_SIZE) {
+                                applyBatch(batch, listener);
+                                batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+                            }
+                        }
+
+                        if (!batch.isEmpty()) {
+                            applyBatch(batch, listener);
+                        }
+
+                        invalidCount = vCardReader.getSkippedRecordCount();
+                    } finally {
+                        vCardReader.close();
+                    }
+                } catch (final IOException e) {
+                    Log.e(TAG, "Failed to import saved users.", e);
+                    succeeded = false;
+                } catch (final InterruptedException e) {
+                    Log.w(TAG, "Import interrupted.");
+                    Thread.currentThread().interrupt();
+                    succeeded = false;
+                }
+
+                final int finalImportedCount = importedCount;
+                final int skippedCount = duplicateCount + invalidCount;
+                final boolean finalSucceeded = succeeded;
+
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onImportFinished(finalImportedCount, skippedCount, finalSucceeded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Hands the batch to the listener on the main thread and blocks until it has been applied, so
+     * that a fast reader cannot queue the whole file up in memory behind a busy main thread.
+     */
+    private static void applyBatch(
+            @NonNull final List<User> batch,
+            @NonNull final ImportListener listener) throws InterruptedException {
+
+        final CountDownLatch applied = new CountDownLatch(1);
+
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onBatchImported(batch);
+                } finally {
+                    applied.countDown();
+                }
+            }
+        });
+
+        applied.await();
+    }
+
+    private VCardTransfer() {
+        // This class is not publicly instantiable.
+    }
+
+}
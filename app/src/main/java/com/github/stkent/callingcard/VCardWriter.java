@@ -0,0 +1,119 @@
+package com.github.stkent.callingcard;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes users as vCard 3.0 records, one record at a time, to an underlying Writer.
+ */
+final class VCardWriter implements Closeable {
+
+    // Excluding the line break; a continuation line's leading space counts towards it.
+    private static final int MAX_LINE_OCTETS = 75;
+    private static final String LINE_SEPARATOR = "\r\n";
+
+    @NonNull
+    private final Writer writer;
+
+    VCardWriter(@NonNull final Writer writer) {
+        this.writer = writer;
+    }
+
+    void write(@NonNull final User user) throws IOException {
+        writeLine("BEGIN:VCARD");
+        writeLine("VERSION:3.0");
+        writeLine("UID:" + escape(user.getId()));
+        writeLine("FN:" + escape(user.getName()));
+        writeLine("N:" + getStructuredName(user.getName()));
+        writeLine("EMAIL;TYPE=INTERNET:" + escape(user.getEmailAddress()));
+
+        final Uri photoUrl = user.getPhotoUrl();
+
+        if (photoUrl != null) {
+            writeLine("PHOTO;VALUE=URI:" + photoUrl);
+        }
+
+        writeLine("END:VCARD");
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    /*
+     * Folds lines longer than 75 octets of UTF-8, as required by RFC 2425. Lines are only folded
+     * between code points, so multi-byte characters and surrogate pairs are never split.
+     */
+    private void writeLine(@NonNull final String line) throws IOException {
+        int start = 0;
+        int lineOctets = 0;
+        int index = 0;
+
+        while (index < line.length()) {
+            final int codePoint = line.codePointAt(index);
+            final int codePointOctets = getUtf8Length(codePoint);
+
+            if (lineOctets + codePointOctets > MAX_LINE_OCTETS) {
+                writer.write(line, start, index - start);
+                writer.write(LINE_SEPARATOR);
+                writer.write(' ');
+                start = index;
+                lineOctets = 1;
+            }
+
+            lineOctets += codePointOctets;
+            index += Character.charCount(codePoint);
+        }
+
+        writer.write(line, start, line.length() - start);
+        writer.write(LINE_SEPARATOR);
+    }
+
+    /*
+     * Cards only carry a display name, so its last word is taken as the family name and the rest
+     * as the given names (N:family;given;additional;prefix;suffix). Single-word names are given
+     * names.
+     */
+    @NonNull
+    private static String getStructuredName(@NonNull final String name) {
+        final String trimmedName = name.trim();
+        final int lastSpaceIndex = trimmedName.lastIndexOf(' ');
+
+        if (lastSpaceIndex < 0) {
+            return ";" + escape(trimmedName) + ";;;";
+        }
+
+        final String familyName = trimmedName.substring(lastSpaceIndex + 1);
+        final String givenNames = trimmedName.substring(0, lastSpaceIndex).trim();
+
+        return escape(familyName) + ";" + escape(givenNames) + ";;;";
+    }
+
+    private static int getUtf8Length(final int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        } else if (codePoint < 0x800) {
+            return 2;
+        } else if (codePoint < 0x10000) {
+            return 3;
+        } else {
+            return 4;
+        }
+    }
+
+    @NonNull
+    private static String escape(@NonNull final String value) {
+        return value
+                .replace("\\", "\\\\")
+                .replace(",", "\\,")
+                .replace(";", "\\;")
+                .replace("\r\n", "\\n")
+                .replace("\n", "\\n");
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.github.stkent.callingcard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.nearby.messages.Message;
+import com.google.android.gms.nearby.messages.MessageListener;
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class BackgroundCardCollectorTest {
+
+    // More than the roster snapshot keeps, to check collected cards are not capped to it.
+    private static final int CARD_COUNT = RosterSnapshotStore.MAX_ROSTER_ENTRIES * 3;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Gson gson;
+    private RosterSnapshotStore collectedCardStore;
+    private EncounterLog encounterLog;
+    private BackgroundDiscovery backgroundDiscovery;
+    private BackgroundCardCollector backgroundCardCollector;
+
+    @Before
+    public void setUp() {
+        gson = CustomApplication.getGson(RuntimeEnvironment.application);
+
+        collectedCardStore = new RosterSnapshotStore(
+                new File(temporaryFolder.getRoot(), "collected_cards.bin"),
+                BackgroundCardCollector.MAX_COLLECTED_CARDS,
+                BackgroundCardCollector.MAX_COLLECTED_CARD_AGE_MS);
+
+        encounterLog = new EncounterLog(new File(temporaryFolder.getRoot(), "encounters.bin"));
+
+        final SharedPreferences sharedPreferences = RuntimeEnvironment.application
+                .getSharedPreferences("background_discovery_test", Context.MODE_PRIVATE);
+
+        sharedPreferences.edit().clear().commit();
+        backgroundDiscovery = new BackgroundDiscovery(sharedPreferences);
+
+        backgroundCardCollector = new BackgroundCardCollector(
+                gson, collectedCardStore, encounterLog, backgroundDiscovery);
+    }
+
+    @Test
+    public void persistsEveryDecodedCard() throws Exception {
+        final List<User> users = TestUsers.create(0, CARD_COUNT);
+        final FakeCardDeliverySource source = new FakeCardDeliverySource();
+
+        for (final User user : users) {
+            source.found.add(CardMessages.encode(gson, user));
+        }
+
+        source.found.add(CardMessages.encodeLegacy(gson, TestUsers.create(CARD_COUNT)));
+
+        collect(source);
+
+        final Map<User, Long> collectedCards = readCollectedCards();
+
+        assertEquals(CARD_COUNT + 1, collectedCards.size());
+        assertTrue(collectedCards.keySet().containsAll(users));
+    }
+
+    @Test
+    public void skipsInvalidCards() throws Exception {
+        final FakeCardDeliverySource source = new FakeCardDeliverySource();
+        source.found.add(CardMessages.encode(gson, TestUsers.create(0)));
+        source.found.add(createCardMessage("{}"));
+        source.found.add(createCardMessage("not a card"));
+        source.lost.add(createCardMessage("{}"));
+
+        collect(source);
+
+        assertEquals(Collections.singleton(TestUsers.create(0)), readCollectedCards().keySet());
+        assertEquals(1, readEncounters().size());
+    }
+
+    @Test
+    public void logsFoundAndLostEncounters() throws Exception {
+        final FakeCardDeliverySource source = new FakeCardDeliverySource();
+        source.found.add(CardMessages.encode(gson, TestUsers.create(0)));
+        source.found.add(CardMessages.encode(gson, TestUsers.create(1)));
+        source.lost.add(CardMessages.encode(gson, TestUsers.create(2)));
+
+        collect(source);
+
+        final List<EncounterLog.Encounter> encounters = readEncounters();
+        int foundCount = 0;
+
+        for (final EncounterLog.Encounter encounter : encounters) {
+            if (encounter.getType() == EncounterLog.Type.FOUND) {
+                foundCount++;
+            }
+        }
+
+        assertEquals(3, encounters.size());
+        assertEquals(2, foundCount);
+    }
+
+    @Test
+    public void mergesDeliveriesAndCountsEachWakeup() throws Exception {
+        final FakeCardDeliverySource firstSource = new FakeCardDeliverySource();
+        final FakeCardDeliverySource secondSource = new FakeCardDeliverySource();
+
+        for (final User user : TestUsers.create(0, 100)) {
+            firstSource.found.add(CardMessages.encode(gson, user));
+        }
+
+        for (final User user : TestUsers.create(50, 200)) {
+            secondSource.found.add(CardMessages.encode(gson, user));
+        }
+
+        collect(firstSource);
+        collect(secondSource);
+
+        assertEquals(250, readCollectedCards().size());
+        assertTrue(backgroundDiscovery.getTotalSummary()
+                .startsWith("Collected 300 cards in the background (2 wakeups, "));
+
+        assertTrue(backgroundDiscovery.consumeUnreportedSummary()
+                .startsWith("Collected 300 cards in the background (2 wakeups, "));
+    }
+
+    @Test
+    public void countsWakeupWithoutCards() throws Exception {
+        final FakeCardDeliverySource source = new FakeCardDeliverySource();
+        source.found.add(createCardMessage("{}"));
+
+        collect(source);
+
+        assertTrue(readCollectedCards().isEmpty());
+        assertTrue(backgroundDiscovery.getTotalSummary()
+                .startsWith("Collected 0 cards in the background (1 wakeups, "));
+    }
+
+    private void collect(@NonNull final CardDeliverySource source) throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        backgroundCardCollector.collect(source, new Runnable() {
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+        });
+
+        TestHelpers.await("the delivery to be collected", finished);
+    }
+
+    @NonNull
+    private Map<User, Long> readCollectedCards() throws InterruptedException {
+        final List<Map<User, Long>> result = new ArrayList<>();
+        final CountDownLatch read = new CountDownLatch(1);
+
+        collectedCardStore.read(new RosterSnapshotStore.ReadCallback() {
+            @Override
+            public void onSnapshotRead(@NonNull final Map<User, Long> lastSeenTimes) {
+                result.add(lastSeenTimes);
+                read.countDown();
+            }
+        });
+
+        TestHelpers.await("the collected cards", read);
+        return result.get(0);
+    }
+
+    @NonNull
+    private List<EncounterLog.Encounter> readEncounters() throws InterruptedException {
+        final List<EncounterLog.Encounter> result = new ArrayList<>();
+        final CountDownLatch read = new CountDownLatch(1);
+
+        encounterLog.readPage(EncounterLog.NEWEST, 1000, new EncounterLog.PageCallback() {
+            @Override
+            public void onPageRead(@NonNull final List<EncounterLog.Encounter> encounters) {
+                result.addAll(encounters);
+                read.countDown();
+            }
+        });
+
+        TestHelpers.await("the encounter log", read);
+        return result;
+    }
+
+    @NonNull
+    private static Message createCardMessage(@NonNull final String json) {
+        return new Message(json.getBytes(), CardMessages.NAMESPACE, CardMessages.CARD_V1_TYPE);
+    }
+
+    private static final class FakeCardDeliverySource implements CardDeliverySource {
+
+        private final List<Message> found = new ArrayList<>();
+        private final List<Message> lost = new ArrayList<>();
+
+        @Override
+        public void deliverTo(@NonNull final MessageListener messageListener) {
+            for (final Message message : found) {
+                messageListener.onFound(message);
+            }
+
+            for (final Message message : lost) {
+                messageListener.onLost(message);
+            }
+        }
+
+    }
+
+}
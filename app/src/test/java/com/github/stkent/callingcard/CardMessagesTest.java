@@ -0,0 +1,72 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.nearby.messages.Message;
+import com.google.gson.Gson;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class CardMessagesTest {
+
+    private Gson gson;
+
+    @Before
+    public void setUp() {
+        gson = CustomApplication.getGson(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void decodesEncodedCard() {
+        final User user = TestUsers.create(0);
+
+        final User decodedUser = CardMessages.decode(gson, CardMessages.encode(gson, user));
+
+        assertEquals(user, decodedUser);
+        assertEquals(user.getName(), decodedUser.getName());
+    }
+
+    @Test
+    public void decodesLegacyCard() {
+        final User user = TestUsers.create(0);
+
+        assertEquals(user, CardMessages.decode(gson, CardMessages.encodeLegacy(gson, user)));
+        assertEquals(user, CardMessages.decode(gson, new Message(gson.toJson(user).getBytes())));
+    }
+
+    @Test
+    public void rejectsCardWithoutId() {
+        final String json = "{\"name\":\"Ada Lovelace\",\"emailAddress\":\"ada@example.com\"}";
+
+        assertNull(CardMessages.decode(gson, createCardMessage(json)));
+    }
+
+    @Test
+    public void rejectsEmptyCard() {
+        assertNull(CardMessages.decode(gson, createCardMessage("{}")));
+    }
+
+    @Test
+    public void rejectsUnsupportedMessageType() {
+        final Message message = new Message(
+                gson.toJson(TestUsers.create(0)).getBytes(), CardMessages.NAMESPACE, "card-v0");
+
+        assertNull(CardMessages.decode(gson, message));
+    }
+
+    @NonNull
+    private static Message createCardMessage(@NonNull final String json) {
+        return new Message(json.getBytes(), CardMessages.NAMESPACE, CardMessages.CARD_V1_TYPE);
+    }
+
+}
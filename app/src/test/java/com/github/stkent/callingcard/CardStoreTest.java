@@ -0,0 +1,122 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that every place holding a card (nearby roster, saved cards, roster snapshot, views)
+ * shares one instance of it, so the heap held per person does not grow with the places.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class CardStoreTest {
+
+    private static final int PERSON_COUNT = 2000;
+    private static final int PLACE_COUNT = 4;
+    private static final int THUMBNAIL_LENGTH = 800;
+
+    private Gson gson;
+    private CardStore cardStore;
+    private List<User> people;
+
+    @Before
+    public void setUp() {
+        gson = CustomApplication.getGson(RuntimeEnvironment.application);
+        cardStore = new CardStore();
+        people = new ArrayList<>(PERSON_COUNT);
+
+        for (final User user : TestUsers.create(0, PERSON_COUNT)) {
+            people.add(user.withThumbnail(createThumbnail(user.getId())));
+        }
+    }
+
+    @Test
+    public void everyPlaceSharesOneInstancePerPerson() {
+        final List<List<User>> places = new ArrayList<>();
+
+        for (int i = 0; i < PLACE_COUNT; i++) {
+            places.add(cardStore.internAll(decodeCopies(people)));
+        }
+
+        for (int i = 0; i < PERSON_COUNT; i++) {
+            for (final List<User> place : places) {
+                assertSame(places.get(0).get(i), place.get(i));
+            }
+        }
+
+        // The users and strings reachable from every place are those reachable from one place.
+        assertEquals(
+                countDistinctObjects(places.subList(0, 1)),
+                countDistinctObjects(places));
+    }
+
+    @Test
+    public void editedCardReplacesPreviousInstance() {
+        final User user = cardStore.intern(decodeCopies(people).get(0));
+        final User editedUser = cardStore.intern(user.withThumbnail(null));
+
+        assertNotSame(user, editedUser);
+        assertSame(editedUser, cardStore.intern(decodeCopies(people).get(0).withThumbnail(null)));
+    }
+
+    /**
+     * @return freshly decoded copies of the given users, as each decoder produces.
+     */
+    @NonNull
+    private List<User> decodeCopies(@NonNull final List<User> users) {
+        final List<User> result = new ArrayList<>(users.size());
+
+        for (final User user : users) {
+            result.add(gson.fromJson(gson.toJson(user), User.class));
+        }
+
+        return result;
+    }
+
+    private static int countDistinctObjects(@NonNull final List<List<User>> places) {
+        final Set<Object> objects
+                = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        for (final List<User> place : places) {
+            for (final User user : place) {
+                objects.add(user);
+                objects.add(user.getName());
+                objects.add(user.getEmailAddress());
+                objects.add(user.getId());
+                objects.add(user.getThumbnail());
+            }
+        }
+
+        return objects.size();
+    }
+
+    @NonNull
+    private static String createThumbnail(@NonNull final String seed) {
+        final StringBuilder builder = new StringBuilder(THUMBNAIL_LENGTH);
+
+        while (builder.length() < THUMBNAIL_LENGTH) {
+            builder.append(seed);
+        }
+
+        return builder.substring(0, THUMBNAIL_LENGTH);
+    }
+
+}
@@ -0,0 +1,232 @@
+package com.github.stkent.callingcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.provider.ContactsContract.RawContacts;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class ContactsExporterTest {
+
+    /**
+     * A Contacts provider that only knows which raw contacts exist. Like the real provider, it
+     * applies a batch atomically: a failed assertion fails the whole batch.
+     */
+    private static final class FakeBatchApplier implements ContactsExporter.BatchApplier {
+        private final Set<Long> rawContactIds = new HashSet<>();
+        private final List<Integer> batchSizes = new ArrayList<>();
+        private final List<Integer> batchInsertCounts = new ArrayList<>();
+        private long nextRawContactId = 1000;
+        private int insertedRawContactCount;
+
+        @NonNull
+        @Override
+        public ContentProviderResult[] applyBatch(
+                @NonNull final ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+
+            for (final ContentProviderOperation operation : operations) {
+                if (isRawContactAssertion(operation)
+                        && !rawContactIds.contains(ContentUris.parseId(operation.getUri()))) {
+
+                    throw new OperationApplicationException("wrong number of rows: 0");
+                }
+            }
+
+            final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            int batchInsertCount = 0;
+
+            for (int i = 0; i < operations.size(); i++) {
+                if (operations.get(i).getUri().equals(RawContacts.CONTENT_URI)) {
+                    final long rawContactId = nextRawContactId++;
+                    rawContactIds.add(rawContactId);
+                    batchInsertCount++;
+                    results[i] = new ContentProviderResult(
+                            ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId));
+                } else {
+                    results[i] = new ContentProviderResult(1);
+                }
+            }
+
+            insertedRawContactCount += batchInsertCount;
+            batchSizes.add(operations.size());
+            batchInsertCounts.add(batchInsertCount);
+
+            return results;
+        }
+
+        private static boolean isRawContactAssertion(
+                @NonNull final ContentProviderOperation operation) {
+
+            final Uri uri = operation.getUri();
+
+            return uri.toString().startsWith(RawContacts.CONTENT_URI.toString() + "/");
+        }
+    }
+
+    private final User kept = new User("Ada Lovelace", "ada@example.com", "1", null);
+    private final User deleted = new User("Alan Turing", "alan@example.com", "2", null);
+    private final User added = new User("Grace Hopper", "grace@example.com", "3", null);
+
+    private FakeBatchApplier batchApplier;
+    private SharedPreferences exportState;
+    private ContactsExporter contactsExporter;
+
+    @Before
+    public void setUp() {
+        batchApplier = new FakeBatchApplier();
+
+        exportState = RuntimeEnvironment.application
+                .getSharedPreferences("contacts_export_test", Context.MODE_PRIVATE);
+
+        exportState.edit().clear().commit();
+
+        // Both were exported before with different contents, so both are re-exported as updates.
+        exportState.edit()
+                .putString(kept.getId(), "10:stale")
+                .putString(deleted.getId(), "11:stale")
+                .commit();
+
+        // The user has since deleted raw contact 11 from the Contacts app.
+        batchApplier.rawContactIds.add(10L);
+
+        contactsExporter = new ContactsExporter(
+                batchApplier,
+                exportState,
+                CustomApplication.getPicasso(RuntimeEnvironment.application));
+    }
+
+    @Test
+    public void reinsertsOnlyContactsWhoseRawContactIsGone() throws Exception {
+        final int[] counts = export(Arrays.asList(kept, deleted, added));
+
+        assertEquals(3, counts[0]);
+        assertEquals(0, counts[2]);
+
+        // One insert for the deleted contact and one for the new contact; none for the kept one.
+        assertEquals(2, batchApplier.insertedRawContactCount);
+        assertTrue(exportState.getString(kept.getId(), "").startsWith("10:"));
+        assertFalse(exportState.getString(deleted.getId(), "").startsWith("11:"));
+    }
+
+    @Test
+    public void doesNotReinsertWhenAllRawContactsExist() throws Exception {
+        batchApplier.rawContactIds.add(11L);
+
+        final int[] counts = export(Arrays.asList(kept, deleted, added));
+
+        assertEquals(3, counts[0]);
+        assertEquals(1, batchApplier.insertedRawContactCount);
+        assertTrue(exportState.getString(deleted.getId(), "").startsWith("11:"));
+    }
+
+    @Test
+    public void skipsUnchangedCardsOnReexport() throws Exception {
+        batchApplier.rawContactIds.add(11L);
+        export(Arrays.asList(kept, deleted, added));
+
+        final int batchCount = batchApplier.batchSizes.size();
+        final User editedAdded = new User("Grace Brewster Hopper", "grace@example.com", "3", null);
+
+        final int[] counts = export(Arrays.asList(kept, deleted, editedAdded));
+
+        assertEquals(1, counts[0]);
+        assertEquals(2, counts[1]);
+        assertEquals(batchCount + 1, batchApplier.batchSizes.size());
+
+        assertEquals(0, export(Arrays.asList(kept, deleted, editedAdded))[0]);
+        assertEquals(batchCount + 1, batchApplier.batchSizes.size());
+    }
+
+    @Test
+    public void splitsBatchesAtOperationLimit() throws Exception {
+        final int[] counts = export(TestUsers.create(100, 100));
+
+        assertEquals(100, counts[0]);
+        assertTrue(batchApplier.batchSizes.size() > 1);
+
+        for (final int batchSize : batchApplier.batchSizes) {
+            assertTrue(batchSize <= ContactsExporter.MAX_OPERATIONS_PER_BATCH);
+        }
+    }
+
+    @Test
+    public void splitsBatchesAtByteLimit() throws Exception {
+        final int nameLength = 16 * 1024;
+        final List<User> users = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            final String name = TestHelpers.repeat(String.valueOf((char) ('a' + i)), nameLength);
+            users.add(new User(name, "user" + i + "@example.com", "id" + (100 + i), null));
+        }
+
+        final int[] counts = export(users);
+
+        // Names are parceled as UTF-16, so each contact takes at least twice its name length.
+        final int maxContactsPerBatch = ContactsExporter.MAX_BYTES_PER_BATCH / (2 * nameLength);
+
+        assertEquals(users.size(), counts[0]);
+        assertTrue(batchApplier.batchInsertCounts.size() > 1);
+
+        for (final int batchInsertCount : batchApplier.batchInsertCounts) {
+            assertTrue(batchInsertCount <= maxContactsPerBatch);
+        }
+    }
+
+    /**
+     * @return the written, unchanged and failed counts reported by the exporter.
+     */
+    @NonNull
+    private int[] export(@NonNull final List<User> users) throws InterruptedException {
+        final int[] counts = new int[3];
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        contactsExporter.export(users, new ContactsExporter.ProgressListener() {
+            @Override
+            public void onExportProgress(final int processedCount, final int totalCount) {
+                // Not needed for these tests.
+            }
+
+            @Override
+            public void onExportFinished(
+                    final int writtenCount,
+                    final int unchangedCount,
+                    final int failedCount) {
+
+                counts[0] = writtenCount;
+                counts[1] = unchangedCount;
+                counts[2] = failedCount;
+                finished.countDown();
+            }
+        });
+
+        TestHelpers.await("the export to finish", finished);
+
+        return counts;
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class EncounterLogTest {
+
+    private static final int PAGE_SIZE = 10;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File logFile;
+
+    @Before
+    public void setUp() throws Exception {
+        logFile = new File(temporaryFolder.getRoot(), "encounters.bin");
+    }
+
+    @Test
+    public void dropsEncountersWithMissingOrOversizedUserIds() throws Exception {
+        final EncounterLog encounterLog = new EncounterLog(logFile);
+
+        encounterLog.append(EncounterLog.Type.FOUND, null);
+        encounterLog.append(EncounterLog.Type.FOUND, TestHelpers.repeat("x", 100));
+        encounterLog.append(EncounterLog.Type.FOUND, "id1");
+
+        final List<EncounterLog.Encounter> encounters = readNewestPage(encounterLog);
+
+        assertEquals(1, encounters.size());
+        assertEquals("id1", encounters.get(0).getUserId());
+    }
+
+    @Test
+    public void retriesEncountersAfterFailedWrite() throws Exception {
+        // A directory in place of the log makes every write fail.
+        assertTrue(logFile.mkdir());
+
+        final EncounterLog encounterLog = new EncounterLog(logFile);
+
+        encounterLog.append(EncounterLog.Type.FOUND, "id1");
+        encounterLog.append(EncounterLog.Type.LOST, "id1");
+
+        assertTrue(readNewestPage(encounterLog).isEmpty());
+
+        assertTrue(logFile.delete());
+
+        final List<EncounterLog.Encounter> encounters = readNewestPage(encounterLog);
+
+        assertEquals(2, encounters.size());
+        assertEquals(EncounterLog.Type.LOST, encounters.get(0).getType());
+        assertEquals(EncounterLog.Type.FOUND, encounters.get(1).getType());
+    }
+
+    @Test
+    public void pagesThroughTheWholeLogNewestFirst() throws Exception {
+        final EncounterLog encounterLog = new EncounterLog(logFile);
+
+        // Timestamps 1000, 2000, ..., 25000, so a cursor can fall between two records.
+        for (int i = 1; i <= 25; i++) {
+            encounterLog.append(EncounterLog.Type.FOUND, "id" + i, i * 1000L);
+        }
+
+        final List<EncounterLog.Encounter> firstPage = readNewestPage(encounterLog);
+        final List<EncounterLog.Encounter> secondPage = readPage(
+                encounterLog, firstPage.get(PAGE_SIZE - 1).getTimestamp(), PAGE_SIZE);
+
+        final List<EncounterLog.Encounter> lastPage = readPage(
+                encounterLog, secondPage.get(PAGE_SIZE - 1).getTimestamp(), PAGE_SIZE);
+
+        assertUserIds(firstPage, 25, 16);
+        assertUserIds(secondPage, 15, 6);
+        assertUserIds(lastPage, 5, 1);
+        assertTrue(readPage(encounterLog, lastPage.get(4).getTimestamp(), PAGE_SIZE).isEmpty());
+
+        // A cursor between two records starts the page at the older one.
+        assertUserIds(readPage(encounterLog, 12500, 3), 12, 10);
+        assertUserIds(readPage(encounterLog, 2500, PAGE_SIZE), 2, 1);
+    }
+
+    @Test
+    public void compactsOnceRecordCountExceedsCapAndSlack() throws Exception {
+        final EncounterLog encounterLog = new EncounterLog(logFile);
+        final int thresholdCount = EncounterLog.MAX_RECORDS + EncounterLog.RECORD_COUNT_SLACK;
+
+        for (int i = 1; i <= thresholdCount; i++) {
+            encounterLog.append(EncounterLog.Type.FOUND, "id" + i);
+        }
+
+        assertEquals(
+                thresholdCount,
+                readPage(encounterLog, EncounterLog.NEWEST, thresholdCount + 1).size());
+
+        encounterLog.append(EncounterLog.Type.LOST, "id" + (thresholdCount + 1));
+
+        final List<EncounterLog.Encounter> encounters
+                = readPage(encounterLog, EncounterLog.NEWEST, thresholdCount + 1);
+
+        assertUserIds(
+                encounters,
+                thresholdCount + 1,
+                thresholdCount + 2 - EncounterLog.MAX_RECORDS);
+    }
+
+    @Test
+    public void keepsRecordsOlderThanMaxAgeWithinSlack() throws Exception {
+        final EncounterLog encounterLog = new EncounterLog(logFile);
+        final long now = System.currentTimeMillis();
+
+        encounterLog.append(
+                EncounterLog.Type.FOUND, "id1", now - EncounterLog.MAX_RECORD_AGE_MS - DAY_MS);
+
+        encounterLog.append(EncounterLog.Type.FOUND, "id2", now);
+
+        assertUserIds(readNewestPage(encounterLog), 2, 1);
+    }
+
+    @Test
+    public void compactsToMaxAgeOnceOldestRecordExceedsSlack() throws Exception {
+        final EncounterLog encounterLog = new EncounterLog(logFile);
+        final long now = System.currentTimeMillis();
+        final long maxAgeMs = EncounterLog.MAX_RECORD_AGE_MS;
+
+        encounterLog.append(
+                EncounterLog.Type.FOUND,
+                "id1",
+                now - maxAgeMs - EncounterLog.RECORD_AGE_SLACK_MS - DAY_MS);
+
+        encounterLog.append(EncounterLog.Type.FOUND, "id2", now - maxAgeMs - DAY_MS);
+        encounterLog.append(EncounterLog.Type.FOUND, "id3", now - maxAgeMs + DAY_MS);
+        encounterLog.append(EncounterLog.Type.FOUND, "id4", now);
+
+        assertUserIds(readNewestPage(encounterLog), 4, 3);
+    }
+
+    @NonNull
+    private static List<EncounterLog.Encounter> readNewestPage(
+            @NonNull final EncounterLog encounterLog) throws InterruptedException {
+
+        return readPage(encounterLog, EncounterLog.NEWEST, PAGE_SIZE);
+    }
+
+    @NonNull
+    private static List<EncounterLog.Encounter> readPage(
+            @NonNull final EncounterLog encounterLog,
+            final long beforeTimestamp,
+            final int pageSize) throws InterruptedException {
+
+        final List<EncounterLog.Encounter> page = new ArrayList<>();
+        final CountDownLatch pageRead = new CountDownLatch(1);
+
+        encounterLog.readPage(beforeTimestamp, pageSize, new EncounterLog.PageCallback() {
+            @Override
+            public void onPageRead(@NonNull final List<EncounterLog.Encounter> encounters) {
+                page.addAll(encounters);
+                pageRead.countDown();
+            }
+        });
+
+        // The page is read on the disk thread and delivered through the main looper.
+        TestHelpers.await("the encounter log page", pageRead);
+
+        return page;
+    }
+
+    /**
+     * Checks the encounters are for ids newestId down to oldestId, in that order.
+     */
+    private static void assertUserIds(
+            @NonNull final List<EncounterLog.Encounter> encounters,
+            final int newestId,
+            final int oldestId) {
+
+        final List<String> expectedUserIds = new ArrayList<>();
+
+        for (int i = newestId; i >= oldestId; i--) {
+            expectedUserIds.add("id" + i);
+        }
+
+        final List<String> userIds = new ArrayList<>();
+
+        for (final EncounterLog.Encounter encounter : encounters) {
+            userIds.add(encounter.getUserId());
+        }
+
+        assertEquals(expectedUserIds, userIds);
+    }
+
+}
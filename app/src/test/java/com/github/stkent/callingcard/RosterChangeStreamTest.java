@@ -0,0 +1,163 @@
+package com.github.stkent.callingcard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class RosterChangeStreamTest {
+
+    private static final class RecordingSubscriber implements RosterChangeStream.Subscriber {
+        private final List<List<RosterChangeStream.Change>> changeBatches = new ArrayList<>();
+        private final List<List<User>> resets = new ArrayList<>();
+
+        @Override
+        public void onRosterChanged(@NonNull final List<RosterChangeStream.Change> changes) {
+            changeBatches.add(changes);
+        }
+
+        @Override
+        public void onRosterReset(@NonNull final List<User> roster) {
+            resets.add(roster);
+        }
+    }
+
+    private static final int CAPACITY = 3;
+
+    private final List<User> roster = new ArrayList<>();
+    private final RecordingSubscriber subscriber = new RecordingSubscriber();
+
+    private int rosterCopyCount;
+    private RosterChangeStream rosterChangeStream;
+
+    @Before
+    public void setUp() {
+        // Hold posted work so that changes queue up until the test drains them.
+        ShadowLooper.pauseMainLooper();
+
+        rosterChangeStream = new RosterChangeStream(new RosterChangeStream.RosterProvider() {
+            @NonNull
+            @Override
+            public List<User> getRoster() {
+                rosterCopyCount++;
+                return new ArrayList<>(roster);
+            }
+        });
+
+        rosterChangeStream.subscribe(subscriber, new Handler(Looper.getMainLooper()), CAPACITY);
+        ShadowLooper.runUiThreadTasks();
+
+        // The initial reset.
+        assertEquals(1, subscriber.resets.size());
+        subscriber.resets.clear();
+        rosterCopyCount = 0;
+    }
+
+    @After
+    public void tearDown() {
+        ShadowLooper.unPauseMainLooper();
+    }
+
+    @Test
+    public void deliversConflatedChangesWithinCapacity() {
+        final User ada = TestUsers.create(0);
+        final User alan = TestUsers.create(1);
+
+        add(ada);
+        rosterChangeStream.emit(RosterChangeStream.Change.Type.UPDATED, ada);
+        add(alan);
+        remove(alan);
+        ShadowLooper.runUiThreadTasks();
+
+        assertTrue(subscriber.resets.isEmpty());
+        assertEquals(1, subscriber.changeBatches.size());
+
+        final List<RosterChangeStream.Change> changes = subscriber.changeBatches.get(0);
+
+        assertEquals(1, changes.size());
+        assertEquals(RosterChangeStream.Change.Type.ADDED, changes.get(0).getType());
+        assertEquals(ada, changes.get(0).getUser());
+    }
+
+    @Test
+    public void overflowResetsSubscriberToLatestRosterOnce() {
+        final int userCount = 100;
+
+        for (final User user : TestUsers.create(0, userCount)) {
+            add(user);
+        }
+
+        ShadowLooper.runUiThreadTasks();
+
+        assertTrue(subscriber.changeBatches.isEmpty());
+        assertEquals(1, subscriber.resets.size());
+        assertEquals(userCount, subscriber.resets.get(0).size());
+
+        // The roster is copied once for the reset, not once per change after the overflow.
+        assertEquals(1, rosterCopyCount);
+    }
+
+    @Test
+    public void deliversChangesAfterResetIndividually() {
+        for (final User user : TestUsers.create(0, CAPACITY + 1)) {
+            add(user);
+        }
+
+        ShadowLooper.runUiThreadTasks();
+        subscriber.resets.clear();
+
+        final User user = TestUsers.create(CAPACITY + 1);
+
+        add(user);
+        ShadowLooper.runUiThreadTasks();
+
+        assertTrue(subscriber.resets.isEmpty());
+        assertEquals(1, subscriber.changeBatches.size());
+        assertEquals(user, subscriber.changeBatches.get(0).get(0).getUser());
+    }
+
+    @Test
+    public void cancelledSubscriberReceivesNothing() {
+        final RecordingSubscriber cancelledSubscriber = new RecordingSubscriber();
+
+        rosterChangeStream
+                .subscribe(cancelledSubscriber, new Handler(Looper.getMainLooper()), CAPACITY)
+                .cancel();
+
+        for (final User user : TestUsers.create(0, CAPACITY + 1)) {
+            add(user);
+        }
+
+        ShadowLooper.runUiThreadTasks();
+
+        assertTrue(cancelledSubscriber.resets.isEmpty());
+        assertTrue(cancelledSubscriber.changeBatches.isEmpty());
+    }
+
+    // Mirrors NearbySession, which mutates the roster before emitting the change.
+    private void add(@NonNull final User user) {
+        roster.add(user);
+        rosterChangeStream.emit(RosterChangeStream.Change.Type.ADDED, user);
+    }
+
+    private void remove(@NonNull final User user) {
+        roster.remove(user);
+        rosterChangeStream.emit(RosterChangeStream.Change.Type.REMOVED, user);
+    }
+
+}
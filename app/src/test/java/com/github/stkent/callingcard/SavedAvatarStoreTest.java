@@ -0,0 +1,141 @@
+package com.github.stkent.callingcard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.util.Base64;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class SavedAvatarStoreTest {
+
+    // Nothing listens on port 1, so fetches fail straight away.
+    private static final Uri UNREACHABLE_PHOTO_URL = Uri.parse("http://127.0.0.1:1/avatar.jpg");
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final User unreachableUser
+            = new User("Ada Lovelace", "ada@example.com", "1", UNREACHABLE_PHOTO_URL);
+
+    private SharedPreferences failedFetches;
+    private SavedAvatarStore savedAvatarStore;
+
+    @Before
+    public void setUp() {
+        failedFetches = RuntimeEnvironment.application
+                .getSharedPreferences("saved_avatar_failures_test", Context.MODE_PRIVATE);
+
+        failedFetches.edit().clear().commit();
+
+        savedAvatarStore = new SavedAvatarStore(
+                temporaryFolder.getRoot(),
+                CustomApplication.getPicasso(RuntimeEnvironment.application),
+                failedFetches);
+    }
+
+    @Test
+    public void pinsThumbnailWhenNoPhotoIsAvailable() throws Exception {
+        final User user = createUserWithThumbnail(0);
+
+        pinAndWait(user);
+
+        assertTrue(savedAvatarStore.getAvatarFile(user).exists());
+        assertTrue(buildReport().startsWith("1 pinned avatars"));
+    }
+
+    @Test
+    public void doesNotRefetchFailedAvatarBeforeRetryTime() throws Exception {
+        savedAvatarStore.pin(Collections.singleton(unreachableUser));
+
+        TestHelpers.waitFor("the failed fetch to be recorded", new TestHelpers.Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return failedFetches.getAll().size() == 1;
+            }
+        });
+
+        final String failure = (String) failedFetches.getAll().values().iterator().next();
+        assertTrue(failure.startsWith("1:"));
+
+        savedAvatarStore.pin(Collections.singleton(unreachableUser));
+        pinAndWait(createUserWithThumbnail(0));
+
+        // A second attempt would have counted a second failure.
+        assertEquals(failure, failedFetches.getAll().values().iterator().next());
+        assertFalse(savedAvatarStore.getAvatarFile(unreachableUser).exists());
+    }
+
+    @Test
+    public void reconcileDoesNotPinMissingAvatars() throws Exception {
+        final User user = createUserWithThumbnail(0);
+
+        savedAvatarStore.reconcile(Collections.singleton(user));
+        pinAndWait(createUserWithThumbnail(1));
+
+        assertFalse(savedAvatarStore.getAvatarFile(user).exists());
+    }
+
+    @Test
+    public void releaseForgetsFailedFetches() throws Exception {
+        savedAvatarStore.pin(Collections.singleton(unreachableUser));
+        savedAvatarStore.release(Collections.singleton(unreachableUser));
+        pinAndWait(createUserWithThumbnail(0));
+
+        assertTrue(failedFetches.getAll().isEmpty());
+    }
+
+    // Pins are applied in order, so earlier pins and releases have finished once this returns.
+    private void pinAndWait(@NonNull final User user) throws InterruptedException {
+        savedAvatarStore.pin(Collections.singleton(user));
+
+        TestHelpers.waitFor("the avatar to be pinned", new TestHelpers.Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return savedAvatarStore.getAvatarFile(user).exists();
+            }
+        });
+    }
+
+    @NonNull
+    private String buildReport() throws InterruptedException {
+        final String[] report = new String[1];
+        final CountDownLatch reportReady = new CountDownLatch(1);
+
+        savedAvatarStore.buildReport(new SavedAvatarStore.ReportCallback() {
+            @Override
+            public void onReportReady(@NonNull final String result) {
+                report[0] = result;
+                reportReady.countDown();
+            }
+        });
+
+        TestHelpers.await("the avatar store report", reportReady);
+        return report[0];
+    }
+
+    @NonNull
+    private static User createUserWithThumbnail(final int index) {
+        return TestUsers.create(index)
+                .withThumbnail(Base64.encodeToString(new byte[] {1, 2, 3}, Base64.NO_WRAP));
+    }
+
+}
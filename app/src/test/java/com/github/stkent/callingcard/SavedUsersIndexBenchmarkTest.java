@@ -0,0 +1,105 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fails when searches or updates over 10,000 saved cards exceed their budgets.
+ */
+public final class SavedUsersIndexBenchmarkTest {
+
+    private static final int SAVED_USER_COUNT = 10000;
+    private static final int MAX_RESULTS = 50;
+    private static final int WARM_UP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 500;
+
+    /*
+     * Baselines: at most 20us per query and 10us per update on a desktop JVM. The budgets leave
+     * 10x headroom for slower CI machines; a linear scan of 10k cards costs milliseconds.
+     */
+    private static final long QUERY_BUDGET_US = 200;
+    private static final long UPDATE_BUDGET_US = 100;
+
+    private static final List<String> QUERIES = Arrays.asList(
+            "u",            // short prefix matching every card
+            "user 12",      // name prefix
+            "user4567@",    // email prefix
+            "er 99",        // substring via the trigram index
+            "9@",           // short substring matching a tenth of the cards
+            "z",            // short query without matches
+            "xyz");         // no matches
+
+    private static SavedUsersIndex index;
+
+    @BeforeClass
+    public static void buildIndex() {
+        index = new SavedUsersIndex(TestUsers.create(0, SAVED_USER_COUNT));
+    }
+
+    @Test
+    public void searchesStayWithinBudget() {
+        for (final String query : QUERIES) {
+            final long medianUs = medianQueryTimeUs(query);
+
+            assertTrue(
+                    "Query \"" + query + "\" took " + medianUs + "us; budget is "
+                            + QUERY_BUDGET_US + "us.",
+                    medianUs <= QUERY_BUDGET_US);
+        }
+    }
+
+    @Test
+    public void incrementalUpdatesStayWithinBudget() {
+        final User user = TestUsers.create(SAVED_USER_COUNT);
+
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            index.add(user);
+            index.remove(user);
+        }
+
+        final long[] timesNs = new long[MEASURED_ITERATIONS];
+
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            final long startNs = System.nanoTime();
+            index.add(user);
+            index.remove(user);
+            timesNs[i] = (System.nanoTime() - startNs) / 2;
+        }
+
+        final long medianUs = median(timesNs) / 1000;
+
+        assertTrue(
+                "Updates took " + medianUs + "us; budget is " + UPDATE_BUDGET_US + "us.",
+                medianUs <= UPDATE_BUDGET_US);
+    }
+
+    private static long medianQueryTimeUs(@NonNull final String query) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            index.search(query, MAX_RESULTS);
+        }
+
+        final long[] timesNs = new long[MEASURED_ITERATIONS];
+
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            final long startNs = System.nanoTime();
+            index.search(query, MAX_RESULTS);
+            timesNs[i] = System.nanoTime() - startNs;
+        }
+
+        return median(timesNs) / 1000;
+    }
+
+    private static long median(@NonNull final long[] values) {
+        final long[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        return sortedValues[sortedValues.length / 2];
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.github.stkent.callingcard;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class SavedUsersIndexTest {
+
+    private static final int MAX_RESULTS = 50;
+
+    private final User ada = new User("Ada Lovelace", "ada@example.com", "1", null);
+    private final User alan = new User("Alan Turing", "alan@example.com", "2", null);
+
+    @Test
+    public void findsUsersByNameWordPrefix() {
+        final SavedUsersIndex index = new SavedUsersIndex(Arrays.asList(ada, alan));
+
+        assertEquals(Collections.singletonList(ada), index.search("love", MAX_RESULTS));
+    }
+
+    @Test
+    public void findsUsersByEmailPrefix() {
+        final SavedUsersIndex index = new SavedUsersIndex(Arrays.asList(ada, alan));
+
+        assertEquals(Collections.singletonList(alan), index.search("alan@", MAX_RESULTS));
+    }
+
+    @Test
+    public void findsUsersBySubstring() {
+        final SavedUsersIndex index = new SavedUsersIndex(Arrays.asList(ada, alan));
+
+        assertEquals(Collections.singletonList(alan), index.search("urin", MAX_RESULTS));
+    }
+
+    @Test
+    public void removedUserIsNotFound() {
+        final SavedUsersIndex index = new SavedUsersIndex(Arrays.asList(ada, alan));
+
+        index.remove(ada);
+
+        assertTrue(index.search("ada", MAX_RESULTS).isEmpty());
+        assertTrue(index.search("velac", MAX_RESULTS).isEmpty());
+    }
+
+    @Test
+    public void removingUsersKeepsTheOthers() {
+        final User grace = new User("Grace Hopper", "grace@example.com", "3", null);
+        final SavedUsersIndex index = new SavedUsersIndex(Arrays.asList(ada, alan, grace));
+
+        index.remove(ada);
+        index.remove(grace);
+
+        assertEquals(Collections.singletonList(alan), index.search("a", MAX_RESULTS));
+    }
+
+    @Test
+    public void findsUsersByShortSubstring() {
+        final SavedUsersIndex index = new SavedUsersIndex(Arrays.asList(ada, alan));
+
+        assertEquals(Collections.singletonList(ada), index.search("v", MAX_RESULTS));
+        assertEquals(Collections.singletonList(alan), index.search("ri", MAX_RESULTS));
+        assertTrue(index.search("q", MAX_RESULTS).isEmpty());
+    }
+
+    @Test
+    public void removingAnEditedCopyRemovesTheIndexedCard() {
+        final SavedUsersIndex index = new SavedUsersIndex(Arrays.asList(ada, alan));
+
+        // Same id as the indexed card, but different contents.
+        final User editedAda = new User("Augusta King", "augusta@example.com", "1", null);
+
+        index.remove(editedAda);
+
+        assertTrue(index.search("ada", MAX_RESULTS).isEmpty());
+        assertTrue(index.search("lovelace", MAX_RESULTS).isEmpty());
+        assertTrue(index.search("velac", MAX_RESULTS).isEmpty());
+        assertEquals(Collections.singletonList(alan), index.search("a", MAX_RESULTS));
+    }
+
+    @Test
+    public void addingAnEditedCardReplacesTheIndexedCard() {
+        final SavedUsersIndex index = new SavedUsersIndex(Arrays.asList(ada, alan));
+        final User editedAda = new User("Augusta King", "augusta@example.com", "1", null);
+
+        index.add(editedAda);
+
+        assertTrue(index.search("lovelace", MAX_RESULTS).isEmpty());
+
+        final List<User> result = index.search("augusta", MAX_RESULTS);
+
+        assertEquals(1, result.size());
+        assertTrue(result.get(0).hasSameCardContents(editedAda));
+    }
+
+    @Test
+    public void capsResults() {
+        final SavedUsersIndex index = new SavedUsersIndex(TestUsers.create(0, 100));
+
+        assertEquals(10, index.search("user", 10).size());
+    }
+
+}
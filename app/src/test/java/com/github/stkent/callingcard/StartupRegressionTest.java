@@ -0,0 +1,133 @@
+package com.github.stkent.callingcard;
+
+import android.content.Intent;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ActivityController;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fails when the main-thread CPU time of launching NearbyActivity regresses.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class StartupRegressionTest {
+
+    private static final long WARM_LAUNCH_MAIN_THREAD_BUDGET_MS = 400;
+
+    private static final int SAVED_USER_COUNT = 2000;
+
+    private Intent launchIntent;
+
+    @Before
+    public void setUp() throws Exception {
+        // A separate manager writes the saved cards, so the app's own manager has to read them
+        // back from disk on each launch.
+        final SavedUsersManager savedUsersManager = new SavedUsersManager(
+                PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.application),
+                CustomApplication.getGson(RuntimeEnvironment.application));
+
+        savedUsersManager.setUsers(TestUsers.create(0, SAVED_USER_COUNT));
+        savedUsersManager.commitSoon();
+
+        // Loads are queued behind commits, so this one completes once the cards are written.
+        final CountDownLatch committed = new CountDownLatch(1);
+
+        savedUsersManager.loadSavedUsers(new SavedUsersManager.LoadCallback() {
+            @Override
+            public void onSavedUsersLoaded(@NonNull final List<User> users) {
+                committed.countDown();
+            }
+        });
+
+        TestHelpers.await("the saved users to be committed", committed);
+
+        launchIntent = NearbyActivity.createIntent(
+                TestUsers.create(SAVED_USER_COUNT), RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void warmLaunchStaysWithinMainThreadBudget() throws Exception {
+        launchAndMeasureMainThreadCpuMs(launchIntent);
+
+        final long mainThreadCpuMs = launchAndMeasureMainThreadCpuMs(launchIntent);
+
+        assertTrue(
+                "Launching NearbyActivity took " + mainThreadCpuMs + "ms of main-thread CPU;"
+                        + " budget is " + WARM_LAUNCH_MAIN_THREAD_BUDGET_MS + "ms.",
+                mainThreadCpuMs <= WARM_LAUNCH_MAIN_THREAD_BUDGET_MS);
+    }
+
+    @Test
+    public void savedUsersAreBoundOnceLoaded() throws Exception {
+        final ActivityController<NearbyActivity> controller
+                = Robolectric.buildActivity(NearbyActivity.class)
+                        .withIntent(launchIntent)
+                        .create()
+                        .start()
+                        .resume()
+                        .visible();
+
+        final NearbyActivity activity = controller.get();
+        waitForSavedUsersToBeBound(activity);
+
+        assertEquals(SAVED_USER_COUNT, getSavedUserRowCount(activity));
+        controller.pause().stop().destroy();
+    }
+
+    // The saved users are parsed on the I/O thread, then merged and bound on the main looper.
+    private static void waitForSavedUsersToBeBound(@NonNull final NearbyActivity activity)
+            throws InterruptedException {
+
+        TestHelpers.waitFor("the saved users to be bound", new TestHelpers.Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return getSavedUserRowCount(activity) >= SAVED_USER_COUNT;
+            }
+        });
+    }
+
+    private static int getSavedUserRowCount(@NonNull final NearbyActivity activity) {
+        return activity.savedUsersListView.getCount()
+                - activity.savedUsersListView.getHeaderViewsCount();
+    }
+
+    private static long launchAndMeasureMainThreadCpuMs(@NonNull final Intent intent)
+            throws InterruptedException {
+
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        final long startCpuTimeNs = threadMXBean.getCurrentThreadCpuTime();
+
+        final ActivityController<NearbyActivity> controller
+                = Robolectric.buildActivity(NearbyActivity.class)
+                        .withIntent(intent)
+                        .create()
+                        .start()
+                        .resume()
+                        .visible();
+
+        // Count the merge and bind posted back from the I/O thread.
+        waitForSavedUsersToBeBound(controller.get());
+
+        final long cpuTimeMs = (threadMXBean.getCurrentThreadCpuTime() - startCpuTimeNs) / 1000000;
+
+        controller.pause().stop().destroy();
+        return cpuTimeMs;
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class StartupTracerTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File ringFile;
+
+    @Before
+    public void setUp() throws Exception {
+        ringFile = new File(temporaryFolder.getRoot(), "startup_traces.bin");
+    }
+
+    @Test
+    public void recordsLaunchStartedByActivity() throws Exception {
+        final StartupTracer startupTracer = new StartupTracer(ringFile);
+
+        startupTracer.onActivityCreated();
+        markAllMilestones(startupTracer);
+
+        assertTrue(buildReport(startupTracer).startsWith("1 launches"));
+    }
+
+    @Test
+    public void ignoresLaunchStartedByBroadcast() throws Exception {
+        final StartupTracer startupTracer = new StartupTracer(ringFile);
+
+        // E.g. BackgroundDiscoveryReceiver started the process; the user opens the app later.
+        startupTracer.onNonActivityComponentStarted();
+        startupTracer.onActivityCreated();
+        markAllMilestones(startupTracer);
+
+        assertTrue(buildReport(startupTracer).startsWith("No startup traces recorded yet."));
+    }
+
+    @Test
+    public void recordsLaunchWhenBroadcastArrivesAfterActivity() throws Exception {
+        final StartupTracer startupTracer = new StartupTracer(ringFile);
+
+        startupTracer.onActivityCreated();
+        startupTracer.onNonActivityComponentStarted();
+        markAllMilestones(startupTracer);
+
+        assertTrue(buildReport(startupTracer).startsWith("1 launches"));
+    }
+
+    private static void markAllMilestones(@NonNull final StartupTracer startupTracer) {
+        for (final StartupTracer.Milestone milestone : StartupTracer.Milestone.values()) {
+            startupTracer.mark(milestone);
+        }
+    }
+
+    @NonNull
+    private static String buildReport(@NonNull final StartupTracer startupTracer)
+            throws InterruptedException {
+
+        final String[] report = new String[1];
+        final CountDownLatch reportReady = new CountDownLatch(1);
+
+        startupTracer.buildReport(new StartupTracer.ReportCallback() {
+            @Override
+            public void onReportReady(@NonNull final String result) {
+                report[0] = result;
+                reportReady.countDown();
+            }
+        });
+
+        // The report is built on the disk thread and delivered through the main looper.
+        TestHelpers.await("the startup report", reportReady);
+
+        return report[0];
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Waits for background work and builds test data.
+ */
+final class TestHelpers {
+
+    interface Condition {
+        boolean isSatisfied();
+    }
+
+    private static final long TIMEOUT_MS = 10000;
+    private static final long POLL_INTERVAL_MS = 10;
+
+    /**
+     * Runs main looper tasks, through which background work delivers its results, until the
+     * condition is satisfied.
+     *
+     * @param description what is awaited, for the failure message.
+     */
+    static void waitFor(@NonNull final String description, @NonNull final Condition condition)
+            throws InterruptedException {
+
+        final long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (true) {
+            ShadowLooper.runUiThreadTasks();
+
+            if (condition.isSatisfied()) {
+                return;
+            }
+
+            if (System.currentTimeMillis() > deadlineMs) {
+                fail("Timed out waiting for " + description + ".");
+            }
+
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+    }
+
+    static void await(@NonNull final String description, @NonNull final CountDownLatch latch)
+            throws InterruptedException {
+
+        waitFor(description, new Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return latch.getCount() == 0;
+            }
+        });
+    }
+
+    @NonNull
+    static String repeat(@NonNull final String text, final int count) {
+        final StringBuilder result = new StringBuilder(text.length() * count);
+
+        for (int i = 0; i < count; i++) {
+            result.append(text);
+        }
+
+        return result.toString();
+    }
+
+    private TestHelpers() {
+        // This class is not publicly instantiable.
+    }
+
+}
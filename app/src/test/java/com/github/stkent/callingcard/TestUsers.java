@@ -0,0 +1,33 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds valid, distinct users for tests.
+ */
+final class TestUsers {
+
+    @NonNull
+    static User create(final int index) {
+        return new User("User " + index, "user" + index + "@example.com", "id" + index, null);
+    }
+
+    @NonNull
+    static List<User> create(final int firstIndex, final int count) {
+        final List<User> result = new ArrayList<>(count);
+
+        for (int i = firstIndex; i < firstIndex + count; i++) {
+            result.add(create(i));
+        }
+
+        return result;
+    }
+
+    private TestUsers() {
+        // This class is not publicly instantiable.
+    }
+
+}
@@ -0,0 +1,289 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fails when UsersView work regresses in inflations, time or allocations, compared with the
+ * baselines checked in as users_view_baselines.properties.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class UsersViewPerformanceTest {
+
+    private interface Operation {
+        void run(final int index);
+    }
+
+    private static final class Measurement {
+        private final long timeUs;
+        private final long allocationBytes;
+
+        private Measurement(final long timeUs, final long allocationBytes) {
+            this.timeUs = timeUs;
+            this.allocationBytes = allocationBytes;
+        }
+    }
+
+    private static final String BASELINES_RESOURCE = "/users_view_baselines.properties";
+
+    private static final List<Integer> USER_COUNTS = Arrays.asList(10, 100, 1000);
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int OPERATIONS_PER_ITERATION = 100;
+
+    private static Properties baselines;
+    private static double tolerance;
+
+    @BeforeClass
+    public static void loadBaselines() throws IOException {
+        baselines = new Properties();
+
+        final InputStream inputStream
+                = UsersViewPerformanceTest.class.getResourceAsStream(BASELINES_RESOURCE);
+
+        try {
+            baselines.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+
+        tolerance = Double.parseDouble(getBaseline("tolerance"));
+    }
+
+    @Test
+    public void initialBindStaysWithinBaselines() {
+        for (final int userCount : USER_COUNTS) {
+            final List<User> users = TestUsers.create(0, userCount);
+
+            // Warm up on a separate view, so class loading and resource parsing are not counted.
+            new UsersView(RuntimeEnvironment.application).setUsers(users);
+
+            final Measurement[] measurements = new Measurement[MEASURED_ITERATIONS];
+
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                final UsersView usersView = new UsersView(RuntimeEnvironment.application);
+                measurements[i] = measureSetUsers(usersView, users);
+
+                assertEquals(
+                        "Inflations for initial bind of " + userCount + " users.",
+                        Integer.parseInt(getBaseline("inflations.initial." + userCount)),
+                        usersView.getInflationCount());
+            }
+
+            assertWithinBaselines("initial." + userCount, measurements);
+        }
+    }
+
+    @Test
+    public void refreshStaysWithinBaselines() {
+        for (final int userCount : USER_COUNTS) {
+            final List<User> users = TestUsers.create(0, userCount);
+            final UsersView usersView = new UsersView(RuntimeEnvironment.application);
+
+            usersView.setUsers(users);
+            measureSetUsers(usersView, users);
+
+            final int inflationCount = usersView.getInflationCount();
+            final Measurement[] measurements = new Measurement[MEASURED_ITERATIONS];
+
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                measurements[i] = measureSetUsers(usersView, users);
+            }
+
+            assertEquals(
+                    "Inflations for refresh of " + userCount + " users.",
+                    Integer.parseInt(getBaseline("inflations.refresh." + userCount)),
+                    usersView.getInflationCount() - inflationCount);
+
+            assertWithinBaselines("refresh." + userCount, measurements);
+        }
+    }
+
+    @Test
+    public void addUserStaysWithinBaselines() {
+        final List<User> users
+                = TestUsers.create(0, OPERATIONS_PER_ITERATION * (MEASURED_ITERATIONS + 1));
+
+        final UsersView usersView = new UsersView(RuntimeEnvironment.application);
+
+        assertPerOperationWithinBaselines("addUser", new Operation() {
+            @Override
+            public void run(final int index) {
+                usersView.addUser(users.get(index));
+            }
+        });
+    }
+
+    @Test
+    public void userViewConstructionStaysWithinBaselines() {
+        assertPerOperationWithinBaselines("createUserView", new Operation() {
+            @Override
+            public void run(final int index) {
+                new UserView(RuntimeEnvironment.application);
+            }
+        });
+    }
+
+    @Test
+    public void bindUserStaysWithinBaselines() {
+        final List<User> users = TestUsers.create(0, OPERATIONS_PER_ITERATION);
+        final UserView userView = new UserView(RuntimeEnvironment.application);
+
+        assertPerOperationWithinBaselines("bindUser", new Operation() {
+            @Override
+            public void run(final int index) {
+                userView.bindUser(users.get(index % OPERATIONS_PER_ITERATION), false);
+            }
+        });
+    }
+
+    @Test
+    public void recycledViewsAreCappedAtOneScreen() {
+        final UsersView usersView = new UsersView(RuntimeEnvironment.application);
+
+        usersView.setUsers(TestUsers.create(0, 1000));
+        usersView.setUsers(Collections.<User>emptyList());
+
+        assertTrue(usersView.getMaxRecycledRows() < 100);
+        assertTrue(usersView.getRecycledViewCount() <= 2 * usersView.getMaxRecycledRows());
+    }
+
+    @NonNull
+    private static Measurement measureSetUsers(
+            @NonNull final UsersView usersView,
+            @NonNull final List<User> users) {
+
+        final long startAllocatedBytes = getAllocatedBytes();
+        final long startNs = System.nanoTime();
+
+        usersView.setUsers(users);
+
+        return createMeasurement(startNs, startAllocatedBytes, 1);
+    }
+
+    /**
+     * Runs the operation OPERATIONS_PER_ITERATION times per iteration, after one warm-up
+     * iteration, and checks the median cost of a single run. Each run gets a distinct index.
+     */
+    private static void assertPerOperationWithinBaselines(
+            @NonNull final String name,
+            @NonNull final Operation operation) {
+
+        final Measurement[] measurements = new Measurement[MEASURED_ITERATIONS];
+        int index = 0;
+
+        for (int i = -1; i < MEASURED_ITERATIONS; i++) {
+            final long startAllocatedBytes = getAllocatedBytes();
+            final long startNs = System.nanoTime();
+
+            for (int j = 0; j < OPERATIONS_PER_ITERATION; j++) {
+                operation.run(index++);
+            }
+
+            if (i >= 0) {
+                measurements[i] = createMeasurement(
+                        startNs, startAllocatedBytes, OPERATIONS_PER_ITERATION);
+            }
+        }
+
+        assertWithinBaselines(name, measurements);
+    }
+
+    @NonNull
+    private static Measurement createMeasurement(
+            final long startNs,
+            final long startAllocatedBytes,
+            final int operationCount) {
+
+        final long timeUs = (System.nanoTime() - startNs) / 1000 / operationCount;
+        final long allocationBytes = startAllocatedBytes >= 0
+                ? (getAllocatedBytes() - startAllocatedBytes) / operationCount
+                : -1;
+
+        return new Measurement(timeUs, allocationBytes);
+    }
+
+    private static void assertWithinBaselines(
+            @NonNull final String name,
+            @NonNull final Measurement[] measurements) {
+
+        final long[] timesUs = new long[measurements.length];
+        final long[] allocationsBytes = new long[measurements.length];
+
+        for (int i = 0; i < measurements.length; i++) {
+            timesUs[i] = measurements[i].timeUs;
+            allocationsBytes[i] = measurements[i].allocationBytes;
+        }
+
+        final long medianTimeUs = median(timesUs);
+        final long timeBaselineUs = Long.parseLong(getBaseline("timeUs." + name));
+
+        assertTrue(
+                name + " took " + medianTimeUs + "us; baseline is " + timeBaselineUs + "us.",
+                medianTimeUs <= timeBaselineUs * tolerance);
+
+        final long medianAllocationBytes = median(allocationsBytes);
+
+        // Allocations are only measurable on JVMs that expose per-thread allocation counters.
+        // Robolectric runs view code on the test thread, so its allocations are those measured.
+        if (medianAllocationBytes >= 0) {
+            final long allocationBaselineKb = Long.parseLong(getBaseline("allocationKb." + name));
+
+            assertTrue(
+                    name + " allocated " + medianAllocationBytes / 1024 + "KB; baseline is "
+                            + allocationBaselineKb + "KB.",
+                    medianAllocationBytes <= allocationBaselineKb * 1024 * tolerance);
+        }
+    }
+
+    @NonNull
+    private static String getBaseline(@NonNull final String key) {
+        final String value = baselines.getProperty(key);
+
+        if (value == null) {
+            throw new IllegalStateException("Missing baseline " + key);
+        }
+
+        return value;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or a negative value if the JVM
+     *         does not track them.
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return -1;
+    }
+
+    private static long median(@NonNull final long[] values) {
+        final long[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        return sortedValues[sortedValues.length / 2];
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public final class VCardReaderTest {
+
+    @Test
+    public void unfoldsContinuationLines() throws IOException {
+        final User user = read("BEGIN:VCARD\r\n"
+                + "VERSION:3.0\r\n"
+                + "UID:1\r\n"
+                + "FN:Ada\r\n"
+                + "  King\r\n"
+                + "\t Lovelace\r\n"
+                + "EMAIL:ada@example.com\r\n"
+                + "END:VCARD\r\n");
+
+        assertEquals("Ada King Lovelace", user.getName());
+    }
+
+    @Test
+    public void decodesQuotedPrintableValues() throws IOException {
+        final User user = read("BEGIN:VCARD\r\n"
+                + "VERSION:2.1\r\n"
+                + "UID:1\r\n"
+                + "FN;CHARSET=UTF-8;ENCODING=QUOTED-PRINTABLE:Ren=C3=A9e =\r\n"
+                + "Descartes\r\n"
+                + "EMAIL;QUOTED-PRINTABLE:rene=40example.com\r\n"
+                + "END:VCARD\r\n");
+
+        assertEquals("Ren\u00e9e Descartes", user.getName());
+        assertEquals("rene@example.com", user.getEmailAddress());
+    }
+
+    @Test
+    public void decodesQuotedPrintableValuesInDeclaredCharset() throws IOException {
+        final User user = read("BEGIN:VCARD\r\n"
+                + "VERSION:2.1\r\n"
+                + "UID:1\r\n"
+                + "FN;CHARSET=ISO-8859-1;ENCODING=QUOTED-PRINTABLE:Ren=E9e\r\n"
+                + "EMAIL:rene@example.com\r\n"
+                + "END:VCARD\r\n");
+
+        assertEquals("Ren\u00e9e", user.getName());
+    }
+
+    @Test
+    public void keepsEqualsSignsInUnencodedValues() throws IOException {
+        final User user = read("BEGIN:VCARD\r\n"
+                + "VERSION:3.0\r\n"
+                + "UID:1\r\n"
+                + "FN:A=B\r\n"
+                + "EMAIL:ab@example.com\r\n"
+                + "END:VCARD\r\n");
+
+        assertEquals("A=B", user.getName());
+    }
+
+    @NonNull
+    private static User read(@NonNull final String vCard) throws IOException {
+        final User user = new VCardReader(new StringReader(vCard)).readNext();
+
+        assertNotNull(user);
+        return user;
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public final class VCardTransferTest {
+
+    private static final int CARD_COUNT = 3500;
+    private static final int BATCH_SIZE = 1000;
+
+    // Covers the read-ahead of the decoder and BufferedReader buffers.
+    private static final long READ_AHEAD_SLACK_BYTES = 32 * 1024;
+
+    @Test
+    public void readerWaitsForEachBatchToBeApplied() throws Exception {
+        final byte[] vCards = writeVCards(TestUsers.create(0, CARD_COUNT));
+        final long bytesPerBatch = (long) vCards.length * BATCH_SIZE / CARD_COUNT;
+        final AtomicLong bytesRead = new AtomicLong();
+
+        final InputStream countingInputStream = new FilterInputStream(
+                new ByteArrayInputStream(vCards)) {
+
+            @Override
+            public int read(@NonNull final byte[] buffer, final int offset, final int length)
+                    throws IOException {
+
+                final int result = super.read(buffer, offset, length);
+                bytesRead.addAndGet(Math.max(result, 0));
+                return result;
+            }
+        };
+
+        final List<Integer> batchSizes = new ArrayList<>();
+        final List<Long> bytesReadPerBatch = new ArrayList<>();
+        final int[] importedCounts = new int[1];
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        VCardTransfer.importUsers(
+                countingInputStream,
+                Collections.<String>emptySet(),
+                new VCardTransfer.ImportListener() {
+                    @Override
+                    public void onBatchImported(@NonNull final List<User> batch) {
+                        // Give an unthrottled reader time to run ahead.
+                        sleep(50);
+
+                        batchSizes.add(batch.size());
+                        bytesReadPerBatch.add(bytesRead.get());
+                    }
+
+                    @Override
+                    public void onImportFinished(
+                            final int importedCount,
+                            final int skippedCount,
+                            final boolean succeeded) {
+
+                        importedCounts[0] = importedCount;
+                        finished.countDown();
+                    }
+                });
+
+        TestHelpers.await("the import to finish", finished);
+
+        assertEquals(CARD_COUNT, importedCounts[0]);
+        assertEquals(4, batchSizes.size());
+
+        for (int i = 0; i < bytesReadPerBatch.size(); i++) {
+            final long maxBytesRead = (i + 1) * bytesPerBatch + READ_AHEAD_SLACK_BYTES;
+
+            assertTrue(
+                    "Read " + bytesReadPerBatch.get(i) + " bytes before batch " + i
+                            + " was applied; expected at most " + maxBytesRead + ".",
+                    bytesReadPerBatch.get(i) <= maxBytesRead);
+        }
+    }
+
+    @NonNull
+    private static byte[] writeVCards(@NonNull final List<User> users) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final VCardWriter vCardWriter = new VCardWriter(
+                new OutputStreamWriter(outputStream, Charset.forName("UTF-8")));
+
+        for (final User user : users) {
+            vCardWriter.write(user);
+        }
+
+        vCardWriter.close();
+        return outputStream.toByteArray();
+    }
+
+    private static void sleep(final long durationMs) {
+        try {
+            Thread.sleep(durationMs);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.github.stkent.callingcard;
+
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class VCardWriterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void foldsLinesAtSeventyFiveOctets() throws IOException {
+        final String longName = TestHelpers.repeat("a", 200);
+        final String vCard = write(new User(longName, "a@example.com", "1", null));
+
+        for (final String line : vCard.split("\r\n")) {
+            assertTrue(line, line.getBytes(UTF_8).length <= 75);
+        }
+    }
+
+    @Test
+    public void foldsMultiByteCharactersWithoutSplittingThem() throws IOException {
+        // Two-, three- and four-octet characters, the last a surrogate pair.
+        final String name = TestHelpers.repeat("\u00e9\u4e2d\ud83d\ude00", 40);
+        final String vCard = write(new User(name, "e@example.com", "1", null));
+
+        for (final String line : vCard.split("\r\n")) {
+            assertTrue(line, line.getBytes(UTF_8).length <= 75);
+            assertFalse(line, Character.isHighSurrogate(line.charAt(line.length() - 1)));
+            assertFalse(line, Character.isLowSurrogate(line.charAt(line.startsWith(" ") ? 1 : 0)));
+        }
+    }
+
+    @Test
+    public void foldedRecordsReadBackUnchanged() throws IOException {
+        final String name = TestHelpers.repeat("Ada \u00e9\u4e2d\ud83d\ude00 ", 30).trim();
+        final User user = new User(name, "ada@example.com", "ada-1", null);
+
+        final User readUser = new VCardReader(new StringReader(write(user))).readNext();
+
+        assertTrue(readUser != null && readUser.hasSameCardContents(user));
+    }
+
+    @Test
+    public void writesLastWordAsFamilyName() throws IOException {
+        final String vCard = write(new User("Ada King Lovelace", "ada@example.com", "1", null));
+
+        assertTrue(vCard, vCard.contains("\r\nN:Lovelace;Ada King;;;\r\n"));
+    }
+
+    @Test
+    public void writesSingleWordNameAsGivenName() throws IOException {
+        final String vCard = write(new User("Plato", "plato@example.com", "1", null));
+
+        assertTrue(vCard, vCard.contains("\r\nN:;Plato;;;\r\n"));
+    }
+
+    @Test
+    public void escapesNameComponents() throws IOException {
+        final String vCard = write(new User("Ada; Countess", "ada@example.com", "1", null));
+
+        assertTrue(vCard, vCard.contains("\r\nN:Countess;Ada\\;;;;\r\n"));
+    }
+
+    @NonNull
+    private static String write(@NonNull final User user) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final VCardWriter vCardWriter
+                = new VCardWriter(new OutputStreamWriter(outputStream, UTF_8));
+
+        vCardWriter.write(user);
+        vCardWriter.close();
+
+        return new String(outputStream.toByteArray(), UTF_8);
+    }
+
+}